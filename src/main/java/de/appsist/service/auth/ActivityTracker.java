@@ -0,0 +1,202 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import de.appsist.service.auth.store.SessionStore;
+
+/**
+ * Tracker for the last activity of sessions.
+ * Activities are recorded in memory and written to the session store periodically with a single update for all sessions active within the same second.
+ * A session is only written again if its stored last activity is older than the lag tolerance, so the database load depends on the number of active sessions instead of the number of requests.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class ActivityTracker {
+	private static final Logger logger = LoggerFactory.getLogger(ActivityTracker.class);
+	
+	private final SessionStore store;
+	private final SessionCache cache;
+	private final UserSessionIndex userIndex;
+	private final long lagTolerance;
+	private final ConcurrentMap<String, Long> touched = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Long> persisted = new ConcurrentHashMap<>();
+	private final AtomicLong touches = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong writtenSessions = new AtomicLong();
+	
+	/**
+	 * Creates an activity tracker.
+	 * @param store Store for the sessions.
+	 * @param cache Session cache to update together with the store.
+	 * @param userIndex User session index to update together with the store.
+	 * @param lagToleranceSeconds Maximum age of the last activity stored for active sessions, in addition to the flush interval.
+	 */
+	public ActivityTracker(SessionStore store, SessionCache cache, UserSessionIndex userIndex, int lagToleranceSeconds) {
+		this.store = store;
+		this.cache = cache;
+		this.userIndex = userIndex;
+		this.lagTolerance = lagToleranceSeconds * 1000L;
+	}
+	
+	/**
+	 * Records an activity for a session.
+	 * @param sessionId ID of the active session.
+	 */
+	public void touch(String sessionId) {
+		touches.incrementAndGet();
+		touched.put(sessionId, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Records that the last activity of a session has been written by another operation.
+	 * @param sessionId ID of the session.
+	 * @param time Last activity in milliseconds since epoch.
+	 */
+	public void persisted(String sessionId, long time) {
+		persisted.put(sessionId, time);
+	}
+	
+	/**
+	 * Stops tracking a session.
+	 * @param sessionId ID of the session.
+	 */
+	public void forget(String sessionId) {
+		touched.remove(sessionId);
+		persisted.remove(sessionId);
+	}
+	
+	/**
+	 * Writes the recorded activities to the session store.
+	 * Each session is written with the time of its last recorded activity, truncated to full seconds. Sessions with the same time are written with a single update.
+	 * Activities of sessions which have been written within the lag tolerance are kept for a later flush.
+	 */
+	public void flush() {
+		flush(null);
+	}
+	
+	/**
+	 * Writes the recorded activities to the session store, see {@link #flush()}.
+	 * @param resultHandler Handler to be notified when all writes of the flush completed. Fails if any of them failed. May be <code>null</code>.
+	 */
+	public void flush(final AsyncResultHandler<Void> resultHandler) {
+		long now = System.currentTimeMillis();
+		Map<Long, List<String>> sessionsByActivity = new HashMap<>();
+		for (Map.Entry<String, Long> entry : touched.entrySet()) {
+			String sessionId = entry.getKey();
+			Long lastPersisted = persisted.get(sessionId);
+			if (lastPersisted == null || now - lastPersisted >= lagTolerance) {
+				if (touched.remove(sessionId, entry.getValue())) {
+					long lastActivity = entry.getValue() - entry.getValue() % 1000;
+					List<String> sessionIds = sessionsByActivity.get(lastActivity);
+					if (sessionIds == null) {
+						sessionIds = new ArrayList<>();
+						sessionsByActivity.put(lastActivity, sessionIds);
+					}
+					sessionIds.add(sessionId);
+					persisted.put(sessionId, lastActivity);
+				}
+			}
+		}
+		// Sessions without activity within the lag tolerance will be written with the next touch anyway.
+		Iterator<Long> iterator = persisted.values().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next() >= lagTolerance) iterator.remove();
+		}
+		if (sessionsByActivity.isEmpty()) {
+			if (resultHandler != null) resultHandler.handle(createResult(null));
+			return;
+		}
+		final AtomicInteger pending = new AtomicInteger(sessionsByActivity.size());
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		AsyncResultHandler<Void> writeHandler = new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> writeRequest) {
+				if (writeRequest.failed()) failure.compareAndSet(null, writeRequest.cause());
+				if (pending.decrementAndGet() == 0 && resultHandler != null) {
+					resultHandler.handle(createResult(failure.get()));
+				}
+			}
+		};
+		for (Map.Entry<Long, List<String>> entry : sessionsByActivity.entrySet()) {
+			flush(entry.getValue(), entry.getKey(), writeHandler);
+		}
+	}
+	
+	private void flush(final List<String> sessionIds, final long lastActivity, final AsyncResultHandler<Void> writeHandler) {
+		store.setLastActivity(sessionIds, ISODateTimeFormat.dateTime().print(lastActivity), new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> updateRequest) {
+				if (updateRequest.succeeded()) {
+					flushes.incrementAndGet();
+					writtenSessions.addAndGet(sessionIds.size());
+					for (String sessionId : sessionIds) {
+						cache.setLastActivity(sessionId, lastActivity);
+						userIndex.setLastActivity(sessionId, lastActivity);
+					}
+				} else {
+					logger.warn("Failed to update activity of " + sessionIds.size() + " session(s): " + updateRequest.cause().getMessage());
+					for (String sessionId : sessionIds) {
+						// Retry with the next flush, unless the session has been touched again in the meantime.
+						persisted.remove(sessionId);
+						touched.putIfAbsent(sessionId, lastActivity);
+					}
+				}
+				writeHandler.handle(updateRequest);
+			}
+		});
+	}
+	
+	private static AsyncResult<Void> createResult(final Throwable cause) {
+		return new AsyncResult<Void>() {
+			
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+			
+			@Override
+			public Void result() {
+				return null;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the statistics of the tracker.
+	 * @return JSON object with the fields pending, touches, flushes and writtenSessions.
+	 */
+	public JsonObject getStatistics() {
+		return new JsonObject()
+			.putNumber("pending", touched.size())
+			.putNumber("touches", touches.get())
+			.putNumber("flushes", flushes.get())
+			.putNumber("writtenSessions", writtenSessions.get());
+	}
+}
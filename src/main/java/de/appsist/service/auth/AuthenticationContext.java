@@ -0,0 +1,137 @@
+package de.appsist.service.auth;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.SessionOwnership;
+
+/**
+ * Immutable result of a session scoped authentication.
+ * The token is validated exactly once when the context is created, all handlers of the request share the outcome. Contexts are created asynchronously, so signatures are verified on the crypto executor instead of the event loop.
+ * Requests are authenticated with the ownership of the session. The session itself is only available if the request has been authenticated with the complete session.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public final class AuthenticationContext {
+	private final SessionOwnership ownership;
+	private final Session session; // null if authenticated with the ownership only
+	private final String subject;
+	private final JsonObject claims;
+
+	private AuthenticationContext(SessionOwnership ownership, Session session, String subject, JsonObject claims) {
+		this.ownership = ownership;
+		this.session = session;
+		this.subject = subject;
+		this.claims = claims;
+	}
+
+	/**
+	 * Authenticates a request for the given session.
+	 * The request is authenticated if either the session is owned by the subject encoded in the token or if the session is no user session.
+	 * The signature of tokens which have not been verified before is verified using the crypto executor of the token manager.
+	 * @param session Session addressed by the request.
+	 * @param token JSON web token. May be <code>null</code> if the session is no user session.
+	 * @param tokenManager Token manager to validate the token with.
+	 * @param resultHandler Handler for the authentication context. Fails with an {@link InvalidTokenException} if the session is a user session and the token is invalid or issued for another subject.
+	 */
+	public static void authenticate(Session session, String token, TokenManager tokenManager, AsyncResultHandler<AuthenticationContext> resultHandler) {
+		authenticate(new SessionOwnership(session), session, token, tokenManager, resultHandler);
+	}
+
+	/**
+	 * Authenticates a request for the session with the given ownership, see {@link #authenticate(Session, String, TokenManager, AsyncResultHandler)}.
+	 * The signature of tokens which have not been verified before is verified using the crypto executor of the token manager.
+	 * @param ownership Ownership of the session addressed by the request.
+	 * @param token JSON web token. May be <code>null</code> if the session is no user session.
+	 * @param tokenManager Token manager to validate the token with.
+	 * @param resultHandler Handler for the authentication context, without the session. Fails with an {@link InvalidTokenException} if the session is a user session and the token is invalid or issued for another subject.
+	 */
+	public static void authenticate(SessionOwnership ownership, String token, TokenManager tokenManager, AsyncResultHandler<AuthenticationContext> resultHandler) {
+		authenticate(ownership, null, token, tokenManager, resultHandler);
+	}
+
+	private static void authenticate(final SessionOwnership ownership, final Session session, String token, TokenManager tokenManager, final AsyncResultHandler<AuthenticationContext> resultHandler) {
+		final String userId = ownership.getUserId();
+		if (userId == null) {
+			resultHandler.handle(createResult(new AuthenticationContext(ownership, session, null, null), null));
+			return;
+		}
+		tokenManager.validateToken(token, userId, new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(AsyncResult<JsonObject> validationRequest) {
+				if (validationRequest.succeeded()) {
+					resultHandler.handle(createResult(new AuthenticationContext(ownership, session, userId, validationRequest.result()), null));
+				} else {
+					resultHandler.handle(createResult(null, validationRequest.cause()));
+				}
+			}
+		});
+	}
+
+	private static AsyncResult<AuthenticationContext> createResult(final AuthenticationContext context, final Throwable cause) {
+		return new AsyncResult<AuthenticationContext>() {
+
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+
+			@Override
+			public AuthenticationContext result() {
+				return context;
+			}
+
+			@Override
+			public boolean failed() {
+				return cause != null;
+			}
+
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+
+	/**
+	 * Returns the ownership of the session addressed by the request.
+	 * @return Session ownership.
+	 */
+	public SessionOwnership getOwnership() {
+		return ownership;
+	}
+
+	/**
+	 * Returns the session addressed by the request.
+	 * @return Session or <code>null</code> if the request has been authenticated with the ownership of the session only.
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * Returns the authenticated subject.
+	 * @return User identifier or <code>null</code> if the session is no user session.
+	 */
+	public String getSubject() {
+		return subject;
+	}
+
+	/**
+	 * Returns the claims of the validated token.
+	 * @return Copy of the claims or <code>null</code> if no token has been validated.
+	 */
+	public JsonObject getClaims() {
+		return claims != null ? claims.copy() : null;
+	}
+
+	/**
+	 * Checks if the request has been authenticated with a user token.
+	 * @return <code>true</code> if a token has been validated, otherwise <code>false</code>.
+	 */
+	public boolean isUserSession() {
+		return subject != null;
+	}
+}
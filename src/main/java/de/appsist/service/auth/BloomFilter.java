@@ -0,0 +1,92 @@
+package de.appsist.service.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter for strings.
+ * The filter answers whether a string may have been added. False positives occur with the configured probability, false negatives do not occur.
+ * Strings cannot be removed, the filter has to be rebuilt instead. The filter is safe to be used by multiple threads.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public final class BloomFilter {
+	private final AtomicLongArray bits;
+	private final int numBits;
+	private final int numHashes;
+	private final int capacity;
+
+	/**
+	 * Creates an empty bloom filter.
+	 * @param capacity Expected number of strings to add. The false positive probability increases if more strings are added.
+	 * @param falsePositiveProbability False positive probability at full capacity, e.g., 0.01.
+	 */
+	public BloomFilter(int capacity, double falsePositiveProbability) {
+		this.capacity = Math.max(1, capacity);
+		long optimalBits = (long) Math.ceil(-this.capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+		numBits = (int) Math.max(64, Math.min(optimalBits, Integer.MAX_VALUE - 63));
+		numHashes = Math.max(1, (int) Math.round((double) numBits / this.capacity * Math.log(2)));
+		bits = new AtomicLongArray((numBits + 63) / 64);
+	}
+
+	/**
+	 * Adds a string to the filter.
+	 * @param value String to add.
+	 */
+	public void put(String value) {
+		long hash = hash(value);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % numBits;
+			int index = bit >>> 6;
+			long mask = 1L << bit;
+			long word = bits.get(index);
+			while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask)) {
+				word = bits.get(index);
+			}
+		}
+	}
+
+	/**
+	 * Checks if a string may have been added to the filter.
+	 * @param value String to check.
+	 * @return <code>false</code> if the string has definitely not been added, <code>true</code> if it may have been added.
+	 */
+	public boolean mightContain(String value) {
+		long hash = hash(value);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % numBits;
+			if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of strings the filter has been sized for.
+	 * @return Expected number of strings.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the UTF-8 bytes, finalized with the MurmurHash3 mixer to spread the bits of both halves.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
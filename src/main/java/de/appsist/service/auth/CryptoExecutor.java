@@ -0,0 +1,163 @@
+package de.appsist.service.auth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Bounded thread pool for CPU intensive operations like signing tokens and hashing passwords.
+ * Operations are executed off the event loop, results are delivered on the context of the caller.
+ * If all threads are busy and the queue is full, operations are rejected instead of blocking the event loop.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class CryptoExecutor {
+	private final Vertx vertx;
+	private final ThreadPoolExecutor executor;
+	private final int queueSize;
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final AtomicLong executionTime = new AtomicLong();
+
+	/**
+	 * Creates a crypto executor.
+	 * @param vertx Vert.x instance to return results on the context of the caller. May be <code>null</code> to return results on the worker thread.
+	 * @param poolSize Number of worker threads.
+	 * @param queueSize Maximum number of operations waiting for a worker thread.
+	 * @throws IllegalArgumentException The pool or queue size is less than 1.
+	 */
+	public CryptoExecutor(Vertx vertx, int poolSize, int queueSize) throws IllegalArgumentException {
+		if (poolSize < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("Pool and queue size must be positive.");
+		}
+		this.vertx = vertx;
+		this.queueSize = queueSize;
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "auth-crypto-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Executes an operation on a worker thread.
+	 * @param operation Operation to execute.
+	 * @param resultHandler Handler for the result of the operation. Called on the context of the caller, if any. Fails if the operation throws an exception or the executor is overloaded.
+	 */
+	public <T> void execute(final Callable<T> operation, final AsyncResultHandler<T> resultHandler) {
+		final Context context = vertx != null ? vertx.currentContext() : null;
+		final long submitted = System.nanoTime();
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					long started = System.nanoTime();
+					T result = null;
+					Throwable cause = null;
+					try {
+						result = operation.call();
+					} catch (Exception e) {
+						cause = e;
+					}
+					long finished = System.nanoTime();
+					recordTimes(started - submitted, finished - started);
+					deliver(context, resultHandler, result, cause);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			deliver(null, resultHandler, null, new RejectedExecutionException("Crypto executor overloaded, operation rejected."));
+		}
+	}
+
+	private void recordTimes(long wait, long execution) {
+		completed.incrementAndGet();
+		waitTime.addAndGet(wait);
+		executionTime.addAndGet(execution);
+		long max = maxWaitTime.get();
+		while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+			max = maxWaitTime.get();
+		}
+	}
+
+	private static <T> void deliver(Context context, final AsyncResultHandler<T> resultHandler, final T result, final Throwable cause) {
+		final AsyncResult<T> asyncResult = new AsyncResult<T>() {
+
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+
+			@Override
+			public T result() {
+				return result;
+			}
+
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+		if (context != null) {
+			context.runOnContext(new Handler<Void>() {
+
+				@Override
+				public void handle(Void event) {
+					resultHandler.handle(asyncResult);
+				}
+			});
+		} else {
+			resultHandler.handle(asyncResult);
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Queued operations are still executed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the statistics of the executor.
+	 * The wait time is the time an operation spent in the queue, the execution time the time needed to perform it.
+	 * @return JSON object with the fields poolSize, queueSize, queued, active, completed, rejected, avgWaitMillis, maxWaitMillis and avgExecutionMillis.
+	 */
+	public JsonObject getStatistics() {
+		long count = completed.get();
+		return new JsonObject()
+			.putNumber("poolSize", executor.getMaximumPoolSize())
+			.putNumber("queueSize", queueSize)
+			.putNumber("queued", executor.getQueue().size())
+			.putNumber("active", executor.getActiveCount())
+			.putNumber("completed", count)
+			.putNumber("rejected", rejected.get())
+			.putNumber("avgWaitMillis", count > 0 ? waitTime.get() / count / 1e6 : 0.0)
+			.putNumber("maxWaitMillis", maxWaitTime.get() / 1e6)
+			.putNumber("avgExecutionMillis", count > 0 ? executionTime.get() / count / 1e6 : 0.0);
+	}
+}
@@ -1,7 +1,10 @@
 package de.appsist.service.auth;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.vertx.java.core.AsyncResult;
@@ -18,6 +21,7 @@ import de.appsist.commons.event.AppsistEvent;
 import de.appsist.commons.event.UserOnlineEvent;
 import de.appsist.service.auth.UserManager.AccessScope;
 import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.SessionOwnership;
 import de.appsist.service.auth.model.User;
 import de.appsist.service.auth.model.View;
 
@@ -31,12 +35,18 @@ public class EBHandler {
 	private final SessionManager sessionManager;
 	private final UserManager userManager;
 	private final TokenManager tokenManager;
+	private final RefreshTokenStore refreshTokens;
+	private final RevocationManager revocationManager;
+	private final CryptoExecutor cryptoExecutor;
 	private final EventBus eventBus;
 	
-	public EBHandler(SessionManager sessionManager, UserManager userManager, TokenManager tokenManager, EventBus eventBus) {
+	public EBHandler(SessionManager sessionManager, UserManager userManager, TokenManager tokenManager, RefreshTokenStore refreshTokens, RevocationManager revocationManager, CryptoExecutor cryptoExecutor, EventBus eventBus) {
 		this.sessionManager = sessionManager;
 		this.userManager = userManager;
 		this.tokenManager = tokenManager;
+		this.refreshTokens = refreshTokens;
+		this.revocationManager = revocationManager;
+		this.cryptoExecutor = cryptoExecutor;
 		this.eventBus = eventBus;
 		registerHandler();
 	}
@@ -71,6 +81,9 @@ public class EBHandler {
 				case "removeView":
 					handleRemoveView(message);
 					break;
+				case "heartbeat":
+					handleHeartbeat(message);
+					break;
 				case "storeData":
 					handleStoreData(message);
 					break;
@@ -98,9 +111,27 @@ public class EBHandler {
 				case "validateToken":
 					handleValidateToken(message);
 					break;
+				case "validateTokens":
+					handleValidateTokens(message);
+					break;
+				case "refreshToken":
+					handleRefreshToken(message);
+					break;
+				case "revokeRefreshToken":
+					handleRevokeRefreshToken(message);
+					break;
+				case "revokeToken":
+					handleRevokeToken(message);
+					break;
 				case "authorizeResource":
 					handleAuthorizeResource(message);
 					break;
+				case "getJwks":
+					handleGetJwks(message);
+					break;
+				case "getMetrics":
+					handleGetMetrics(message);
+					break;
 				default:
 					message.fail(400, "Missing action to perform.");
 				}
@@ -129,26 +160,37 @@ public class EBHandler {
 		JsonObject body = message.body();
 		final String token = body.getString("token");
 		final Session session;
+		final JsonObject data;
 		try {
-			session = new Session(body.getObject("session"));
-		} catch (IllegalArgumentException e) {
+			JsonObject sessionObject = body.getObject("session");
+			session = new Session(sessionObject);
+			data = sessionObject.getObject("data");
+		} catch (IllegalArgumentException | ClassCastException e) {
 			message.reply(generateErrorResponse("Invalid session object: " + e.getMessage()));
 			return;
 		}
 		
 		String userIdOfSession = session.getUserId();
-		if (userIdOfSession != null) {
-			// User session, we have to ensure the request is authorized by a valid token.
-			try {
-				tokenManager.validateToken(token, userIdOfSession);
-			} catch (InvalidTokenException e) {
-				JsonObject response = generateErrorResponse("Token authentication failed: " + e.getMessage());
-				message.reply(response);
-				return;
-			}
+		if (userIdOfSession == null) {
+			storeSession(message, session, data);
+			return;
 		}
-		
-		sessionManager.storeSession(session, new AsyncResultHandler<Void>() {
+		// User session, we have to ensure the request is authorized by a valid token.
+		tokenManager.validateToken(token, userIdOfSession, new AsyncResultHandler<JsonObject>() {
+			
+			@Override
+			public void handle(AsyncResult<JsonObject> validationRequest) {
+				if (validationRequest.failed()) {
+					message.reply(generateErrorResponse("Token authentication failed: " + validationRequest.cause().getMessage()));
+					return;
+				}
+				storeSession(message, session, data);
+			}
+		});
+	}
+	
+	private void storeSession(final Message<JsonObject> message, final Session session, JsonObject data) {
+		sessionManager.storeSession(session, data, new AsyncResultHandler<Void>() {
 			@Override
 			public void handle(AsyncResult<Void> storeSessionRequest) {
 				JsonObject response;
@@ -170,53 +212,70 @@ public class EBHandler {
 		final String userId = body.getString("userId");
 		final String token = body.getString("token");
 		if (userId != null) {
-			try {
-				tokenManager.validateToken(token, userId);
-				sessionManager.getSessionForUser(userId, new AsyncResultHandler<Session>() {
-					
-					@Override
-					public void handle(AsyncResult<Session> sessionRequest) {
-						JsonObject response;
-						if (sessionRequest.succeeded()) {
-							Session session = sessionRequest.result();
-							if (session != null) {
-								response = generateResponse();
-								response.putObject("session", session.asJson());
+			tokenManager.validateToken(token, userId, new AsyncResultHandler<JsonObject>() {
+				
+				@Override
+				public void handle(AsyncResult<JsonObject> validationRequest) {
+					if (validationRequest.failed()) {
+						message.reply(generateErrorResponse(validationRequest.cause().getMessage()));
+						return;
+					}
+					sessionManager.getSessionForUser(userId, new AsyncResultHandler<Session>() {
+						
+						@Override
+						public void handle(AsyncResult<Session> sessionRequest) {
+							if (sessionRequest.failed()) {
+								message.reply(generateErrorResponse(sessionRequest.cause().getMessage()));
+							} else if (sessionRequest.result() == null) {
+								message.reply(generateErrorResponse("No session found."));
 							} else {
-								response = generateErrorResponse("No session found.");
+								replySession(message, sessionRequest.result());
 							}
-						} else {
-							response = generateErrorResponse(sessionRequest.cause().getMessage());
 						}
-						message.reply(response);
-					}
-				});
-			} catch (InvalidTokenException e) {
-				message.reply(generateErrorResponse(e.getMessage()));
-			}
+					});
+				}
+			});
 		} else {
 			final String sessionId = body.getString("sessionId");
 			if (sessionId == null || sessionId.isEmpty()) {
 				message.reply(generateErrorResponse("Missing session or user identifier (sessionId, userId)."));
 				return;
 			}
-			retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+			retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 				@Override
-				public void handle(AsyncResult<Session> sessionRequest) {
-					JsonObject response;
-					if (sessionRequest.succeeded()) {
-						Session session = sessionRequest.result();
-						response = generateResponse();
-						response.putObject("session", session.asJson());
+				public void handle(AsyncResult<AuthenticationContext> authRequest) {
+					if (authRequest.succeeded()) {
+						replySession(message, authRequest.result().getSession());
 					} else {
-						response = generateErrorResponse(sessionRequest.cause().getMessage());
+						message.reply(generateErrorResponse(authRequest.cause().getMessage()));
 					}
-					message.reply(response);
 				}
 			});
 		}
 	}
+	
+	/**
+	 * Replies with a session including its data, which is stored separately.
+	 */
+	private void replySession(final Message<JsonObject> message, final Session session) {
+		sessionManager.getData(session.getId(), null, new AsyncResultHandler<JsonObject>() {
+			
+			@Override
+			public void handle(AsyncResult<JsonObject> dataRequest) {
+				JsonObject response;
+				if (dataRequest.succeeded()) {
+					JsonObject sessionObject = session.asJson();
+					if (dataRequest.result() != null) sessionObject.putObject("data", dataRequest.result());
+					response = generateResponse();
+					response.putObject("session", sessionObject);
+				} else {
+					response = generateErrorResponse(dataRequest.cause().getMessage());
+				}
+				message.reply(response);
+			}
+		});
+	}
 
 	private void handleDeleteSession(final Message<JsonObject> message) {
 		JsonObject body = message.body();
@@ -226,17 +285,24 @@ public class EBHandler {
 			message.reply(generateErrorResponse("Missing session identifier (sessionId)."));
 			return;
 		}
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		// The access token is not bound to the session and may be used for other sessions of the user, it is only revoked on request.
+		final boolean revokeToken = body.getBoolean("revokeToken", false);
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 			
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
+					final AuthenticationContext context = authRequest.result();
 					sessionManager.deleteSession(sessionId, new AsyncResultHandler<Integer>() {
 						
 						@Override
 						public void handle(AsyncResult<Integer> sessionDeleteRequest) {
 							JsonObject response;
 							if (sessionDeleteRequest.succeeded()) {
+								refreshTokens.revokeSession(sessionId);
+								if (revokeToken && context.isUserSession()) {
+									revocationManager.revokeToken(context.getClaims(), null);
+								}
 								if (sessionDeleteRequest.result() > 0) {
 									response = generateResponse();
 								} else {
@@ -249,7 +315,7 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
@@ -271,11 +337,11 @@ public class EBHandler {
 			return;
 		}
 		final String token = body.getString("token");
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
 					sessionManager.registerView(sessionId, view, new AsyncResultHandler<Session>() {
 						
 						@Override
@@ -296,7 +362,7 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
@@ -316,11 +382,11 @@ public class EBHandler {
 			return;
 		}
 		final String token = body.getString("token");
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
 					sessionManager.removeView(sessionId, viewId, new AsyncResultHandler<Session>() {
 						
 						@Override
@@ -338,13 +404,49 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
 		});
 	}
 	
+	private void handleHeartbeat(final Message<JsonObject> message) {
+		JsonObject body = message.body();
+		final String viewId = body.getString("viewId");
+		if (viewId == null) {
+			message.reply(generateErrorResponse("Missing view (viewId)."));
+			return;
+		}
+		final String sessionId = body.getString("sessionId");
+		if (sessionId == null || sessionId.isEmpty()) {
+			message.reply(generateErrorResponse("Missing session identifier (sessionId)."));
+			return;
+		}
+		final String token = body.getString("token");
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
+
+			@Override
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
+					sessionManager.heartbeat(sessionId, viewId, new AsyncResultHandler<Void>() {
+						
+						@Override
+						public void handle(AsyncResult<Void> heartbeatRequest) {
+							if (heartbeatRequest.succeeded()) {
+								message.reply(generateResponse());
+							} else {
+								message.reply(generateErrorResponse(heartbeatRequest.cause().getMessage()));
+							}
+						}
+					});
+				} else {
+					message.reply(generateErrorResponse(authRequest.cause().getMessage()));
+				}
+			}
+		});
+	}
+	
 	private void handleStoreData(final Message<JsonObject> message) {
 		JsonObject body = message.body();
 		final String sessionId = body.getString("sessionId");
@@ -358,11 +460,11 @@ public class EBHandler {
 			message.reply(generateErrorResponse("Missing data to store (data)."));
 			return;
 		}
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
 					sessionManager.storeData(sessionId, data, new AsyncResultHandler<Void>() {
 						
 						@Override
@@ -377,7 +479,7 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
@@ -401,11 +503,11 @@ public class EBHandler {
 		for (Object field : fieldsArray) {
 			fieldNames.add((String) field);
 		}
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
 					sessionManager.getData(sessionId, fieldNames, new AsyncResultHandler<JsonObject>() {
 						
 						@Override
@@ -421,7 +523,7 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
@@ -446,11 +548,11 @@ public class EBHandler {
 		for (Object field : fieldsArray) {
 			fieldNames.add((String) field);
 		}
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
 					sessionManager.deleteData(sessionId, fieldNames, new AsyncResultHandler<Void>() {
 						
 						@Override
@@ -465,7 +567,7 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
@@ -481,11 +583,11 @@ public class EBHandler {
 		}
 		final String sessionId = body.getString("sessionId");
 		final String token = body.getString("token");
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				AccessScope accessScope = sessionRequest.succeeded() ? AccessScope.RESTRICTED : AccessScope.PUBLIC;
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				AccessScope accessScope = authRequest.succeeded() ? AccessScope.RESTRICTED : AccessScope.PUBLIC;
 				userManager.getUser(userId, accessScope, new AsyncResultHandler<User>() {
 					
 					@Override
@@ -533,6 +635,7 @@ public class EBHandler {
 			message.reply(generateErrorResponse("Missing user identifier (userId)."));
 			return;
 		}
+		final String sessionId = body.getString("sessionId");
 		
 		final String type, code;
 		if (body.containsField("password")) {
@@ -557,17 +660,29 @@ public class EBHandler {
 					
 					@Override
 					public void handle(AsyncResult<User> result) {
-						JsonObject response;
-						if (result.succeeded()) {
-							response = generateResponse();
-							User user = result.result();
-							response.putObject("user", user.asJson());
-							String jwt = tokenManager.generateToken(userId);
-							response.putString("token", jwt);
-						} else {
-							response = generateErrorResponse(result.cause().getMessage());
+						if (result.failed()) {
+							message.reply(generateErrorResponse(result.cause().getMessage()));
+							return;
 						}
-						message.reply(response);
+						final User user = result.result();
+						tokenManager.generateToken(userId, new AsyncResultHandler<String>() {
+							
+							@Override
+							public void handle(AsyncResult<String> tokenRequest) {
+								JsonObject response;
+								if (tokenRequest.succeeded()) {
+									response = generateResponse();
+									response.putObject("user", user.asJson());
+									response.putString("token", tokenRequest.result());
+									if (sessionId != null) {
+										response.putString("refreshToken", refreshTokens.issue(userId, sessionId));
+									}
+								} else {
+									response = generateErrorResponse("Failed to generate token: " + tokenRequest.cause().getMessage());
+								}
+								message.reply(response);
+							}
+						});
 					}
 				});
 			}
@@ -581,29 +696,16 @@ public class EBHandler {
 			message.reply(generateErrorResponse("Missing user identifier (userId)."));
 			return;
 		}
-		sessionManager.getSessionForUser(userId, new AsyncResultHandler<Session>() {
+		sessionManager.getUserStatus(userId, new AsyncResultHandler<JsonObject>() {
 			
 			@Override
-			public void handle(AsyncResult<Session> result) {
+			public void handle(AsyncResult<JsonObject> statusRequest) {
 				JsonObject response;
-				if (result.succeeded()) {
+				if (statusRequest.succeeded()) {
 					response = generateResponse();
-					Session session = result.result();
-					JsonObject userStatus = new JsonObject();
-					if (session != null) {
-						boolean isOnline = session.hasView();
-						userStatus.putBoolean("isOnline", isOnline);
-						userStatus.putString("lastActivity", session.asJson().getString("lastActvitiy"));
-						if (isOnline) {
-							userStatus.putString("sessionId", session.getId());
-							userStatus.putArray("views", session.asJson().getArray("views"));
-						}
-					} else {
-						userStatus.putBoolean("isOnline", false);
-					}
-					response.putObject("userStatus", userStatus);
+					response.putObject("userStatus", statusRequest.result());
 				} else {
-					response = generateErrorResponse(result.cause().getMessage());
+					response = generateErrorResponse(statusRequest.cause().getMessage());
 				}
 				message.reply(response);
 			}
@@ -614,6 +716,7 @@ public class EBHandler {
 		JsonObject body = message.body();
 		final String userId = body.getString("userId");
 		final String serviceId = body.getString("serviceId");
+		final String sessionId = body.getString("sessionId");
 		if (userId != null) {
 			String authType, authCode;
 			if (body.containsField("password")) {
@@ -633,29 +736,47 @@ public class EBHandler {
 				
 				@Override
 				public void handle(AsyncResult<User> result) {
-					JsonObject response;
 					if (result.succeeded()) {
-						String jwt = tokenManager.generateToken(userId);
-						response = generateResponse();
-						response.putString("subject", userId);
-						response.putString("token", jwt);
+						replyWithToken(message, userId, sessionId);
 					} else {
-						response = generateErrorResponse(result.cause().getMessage());
+						message.reply(generateErrorResponse(result.cause().getMessage()));
 					}
-					message.reply(response);
 				}
 			});
 		} else if (serviceId != null) {
-			String jwt = tokenManager.generateToken(userId);
-			JsonObject response = generateResponse();
-			response.putString("subject", userId);
-			response.putString("token", jwt);
-			message.reply(response);
+			replyWithToken(message, userId, null);
 		} else {
 			message.reply(generateErrorResponse("Unknown subject: User or system identifier required."));
 		}
 	}
 	
+	/**
+	 * Generates an access token and replies it.
+	 * @param message Message to reply to.
+	 * @param subject Subject of the token.
+	 * @param sessionId ID of the session to bind a new refresh token to. If <code>null</code>, no refresh token is issued.
+	 */
+	private void replyWithToken(final Message<JsonObject> message, final String subject, final String sessionId) {
+		tokenManager.generateToken(subject, new AsyncResultHandler<String>() {
+			
+			@Override
+			public void handle(AsyncResult<String> tokenRequest) {
+				JsonObject response;
+				if (tokenRequest.succeeded()) {
+					response = generateResponse();
+					response.putString("subject", subject);
+					response.putString("token", tokenRequest.result());
+					if (sessionId != null) {
+						response.putString("refreshToken", refreshTokens.issue(subject, sessionId));
+					}
+				} else {
+					response = generateErrorResponse("Failed to generate token: " + tokenRequest.cause().getMessage());
+				}
+				message.reply(response);
+			}
+		});
+	}
+	
 	private void handleValidateToken(final Message<JsonObject> message) {
 		JsonObject body = message.body();
 		String subject = body.getString("subject");
@@ -668,16 +789,162 @@ public class EBHandler {
 			message.reply(generateErrorResponse("Missing token (token)."));
 			return;
 		}
-		JsonObject response;
+		tokenManager.validateToken(jwt, subject, new AsyncResultHandler<JsonObject>() {
+			
+			@Override
+			public void handle(AsyncResult<JsonObject> validationRequest) {
+				JsonObject response;
+				if (validationRequest.succeeded()) {
+					response = generateResponse();
+					response.putObject("claims", validationRequest.result());
+				} else {
+					logger.warn("Invalid token request.", validationRequest.cause());
+					response = generateErrorResponse("Failed to validate token: " + validationRequest.cause().getMessage());
+				}
+				message.reply(response);
+			}
+		});
+	}
+	
+	private void handleValidateTokens(final Message<JsonObject> message) {
+		JsonArray entries = message.body().getArray("tokens");
+		if (entries == null) {
+			message.reply(generateErrorResponse("Missing list of tokens (tokens)."));
+			return;
+		}
+		final JsonObject[] results = new JsonObject[entries.size()];
+		// Identical requests are validated only once.
+		Map<List<String>, List<Integer>> requests = new LinkedHashMap<>();
+		for (int i = 0; i < results.length; i++) {
+			Object entry = entries.get(i);
+			String subject = entry instanceof JsonObject ? ((JsonObject) entry).getString("subject") : null;
+			String jwt = entry instanceof JsonObject ? ((JsonObject) entry).getString("token") : null;
+			if (subject == null || subject.isEmpty() || jwt == null || jwt.isEmpty()) {
+				results[i] = generateErrorResponse("Missing subject (subject) or token (token).");
+				continue;
+			}
+			List<String> request = Arrays.asList(subject, jwt);
+			List<Integer> positions = requests.get(request);
+			if (positions == null) {
+				positions = new ArrayList<>();
+				requests.put(request, positions);
+			}
+			positions.add(i);
+		}
+		if (requests.isEmpty()) {
+			replyValidationResults(message, results);
+			return;
+		}
+		final int[] pending = {requests.size()};
+		for (Map.Entry<List<String>, List<Integer>> request : requests.entrySet()) {
+			final List<Integer> positions = request.getValue();
+			tokenManager.validateToken(request.getKey().get(1), request.getKey().get(0), new AsyncResultHandler<JsonObject>() {
+				
+				@Override
+				public void handle(AsyncResult<JsonObject> validationRequest) {
+					JsonObject result;
+					if (validationRequest.succeeded()) {
+						result = generateResponse();
+						result.putObject("claims", validationRequest.result());
+					} else {
+						result = generateErrorResponse("Failed to validate token: " + validationRequest.cause().getMessage());
+					}
+					for (int position : positions) {
+						results[position] = result;
+					}
+					if (--pending[0] == 0) {
+						replyValidationResults(message, results);
+					}
+				}
+			});
+		}
+	}
+	
+	private void replyValidationResults(Message<JsonObject> message, JsonObject[] results) {
+		JsonArray resultsArray = new JsonArray();
+		for (JsonObject result : results) {
+			resultsArray.addObject(result);
+		}
+		JsonObject response = generateResponse();
+		response.putArray("results", resultsArray);
+		message.reply(response);
+	}
+	
+	private void handleRefreshToken(final Message<JsonObject> message) {
+		JsonObject body = message.body();
+		String sessionId = body.getString("sessionId");
+		if (sessionId == null || sessionId.isEmpty()) {
+			message.reply(generateErrorResponse("Missing session identifier (sessionId)."));
+			return;
+		}
+		String refreshToken = body.getString("refreshToken");
+		if (refreshToken == null || refreshToken.isEmpty()) {
+			message.reply(generateErrorResponse("Missing refresh token (refreshToken)."));
+			return;
+		}
+		String subject;
 		try {
-			JsonObject claims = tokenManager.validateToken(jwt, subject);
-			response = generateResponse();
-			response.putObject("claims", claims);
+			subject = refreshTokens.validate(refreshToken, sessionId);
 		} catch (InvalidTokenException e) {
-			logger.warn("Invalid token request.", e);
-			response = generateErrorResponse("Failed to validate token: " + e.getMessage());
+			message.reply(generateErrorResponse("Failed to refresh token: " + e.getMessage()));
+			return;
 		}
-		message.reply(response);
+		replyWithToken(message, subject, null);
+	}
+	
+	private void handleRevokeRefreshToken(final Message<JsonObject> message) {
+		String refreshToken = message.body().getString("refreshToken");
+		if (refreshToken == null || refreshToken.isEmpty()) {
+			message.reply(generateErrorResponse("Missing refresh token (refreshToken)."));
+			return;
+		}
+		if (refreshTokens.revoke(refreshToken)) {
+			message.reply(generateResponse());
+		} else {
+			message.reply(generateErrorResponse("Unknown refresh token."));
+		}
+	}
+	
+	private void handleRevokeToken(final Message<JsonObject> message) {
+		JsonObject body = message.body();
+		final String subject = body.getString("subject");
+		if (subject == null || subject.isEmpty()) {
+			message.reply(generateErrorResponse("Missing subject of token (subject)."));
+			return;
+		}
+		String jwt = body.getString("token");
+		if (jwt == null || jwt.isEmpty()) {
+			message.reply(generateErrorResponse("Missing token (token)."));
+			return;
+		}
+		final boolean allTokens = body.getBoolean("allTokens", false);
+		tokenManager.validateToken(jwt, subject, new AsyncResultHandler<JsonObject>() {
+			
+			@Override
+			public void handle(AsyncResult<JsonObject> validationRequest) {
+				if (validationRequest.failed()) {
+					message.reply(generateErrorResponse("Failed to validate token: " + validationRequest.cause().getMessage()));
+					return;
+				}
+				AsyncResultHandler<Void> revocationHandler = new AsyncResultHandler<Void>() {
+					
+					@Override
+					public void handle(AsyncResult<Void> revocationRequest) {
+						if (revocationRequest.succeeded()) {
+							message.reply(generateResponse());
+						} else {
+							message.reply(generateErrorResponse("Failed to store revocation: " + revocationRequest.cause().getMessage()));
+						}
+					}
+				};
+				if (allTokens) {
+					refreshTokens.revokeSubject(subject);
+					revocationManager.revokeSubject(subject, revocationHandler);
+				} else {
+					revocationManager.revokeToken(validationRequest.result(), revocationHandler);
+				}
+			}
+		});
 	}
 	
 	private void handleAuthorizeResource(final Message<JsonObject> message) {
@@ -689,13 +956,13 @@ public class EBHandler {
 		}
 		final String token = body.getString("token");
 		final String resourceId = body.getString("resourceId");
-		retrieveAndValidateSession(sessionId, token, new AsyncResultHandler<Session>() {
+		retrieveAndValidateOwnership(sessionId, token, new AsyncResultHandler<AuthenticationContext>() {
 
 			@Override
-			public void handle(AsyncResult<Session> sessionRequest) {
-				if (sessionRequest.succeeded()) {
-					Session session = sessionRequest.result();
-					userManager.getUser(session.getUserId(), AccessScope.RESTRICTED, new AsyncResultHandler<User>() {
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
+					SessionOwnership ownership = authRequest.result().getOwnership();
+					userManager.getUser(ownership.getUserId(), AccessScope.RESTRICTED, new AsyncResultHandler<User>() {
 						
 						@Override
 						public void handle(AsyncResult<User> result) {
@@ -715,75 +982,125 @@ public class EBHandler {
 						}
 					});
 				} else {
-					JsonObject response = generateErrorResponse(sessionRequest.cause().getMessage());
+					JsonObject response = generateErrorResponse(authRequest.cause().getMessage());
 					message.reply(response);
 				}
 			}
 		});
 	}
-
+	
+	private void handleGetJwks(final Message<JsonObject> message) {
+		JsonObject jwks = tokenManager.getJwks();
+		JsonObject response = generateResponse();
+		response.putObject("jwks", jwks);
+		response.putNumber("version", jwks.getLong("version"));
+		message.reply(response);
+	}
+	
+	private void handleGetMetrics(final Message<JsonObject> message) {
+		JsonObject metrics = new JsonObject();
+		metrics.putObject("tokenCache", tokenManager.getCacheStatistics());
+		metrics.putObject("sessionCache", sessionManager.getCacheStatistics());
+		metrics.putObject("sessionActivity", sessionManager.getActivityStatistics());
+		metrics.putObject("sessionMutations", sessionManager.getMutationStatistics());
+		metrics.putObject("sessionLookup", sessionManager.getLookupStatistics());
+		metrics.putObject("userSessions", new JsonObject().putNumber("size", sessionManager.getUserSessionCount()));
+		metrics.putObject("cryptoExecutor", cryptoExecutor.getStatistics());
+		metrics.putObject("refreshTokens", new JsonObject().putNumber("size", refreshTokens.size()));
+		metrics.putObject("revocations", new JsonObject().putNumber("size", tokenManager.getRevocationList().size()));
+		JsonObject response = generateResponse();
+		response.putObject("metrics", metrics);
+		message.reply(response);
+	}
 	
 	/**
 	 * Validates a session request.
 	 * The request succeeds if either the requested session is owned by the subject encoded in the token or if the session is no user session.
-	 * The validation automatically fails if the session does not exist.
+	 * The validation automatically fails if the session does not exist. The token is validated exactly once per request.
+	 * The complete session is retrieved, use {@link #retrieveAndValidateOwnership(String, String, AsyncResultHandler)} if the session is not required for the reply.
 	 * @param sessionId ID of the session to validate.
-	 * @param token JSON web token as used by the {@link TokenManagerImpl}. May be <code>null</code> if the session is no user session.
-	 * @param resultHandler Handler to return the session if both the session exists and has been validated. 
+	 * @param token JSON web token as used by the {@link TokenManager}. May be <code>null</code> if the session is no user session.
+	 * @param resultHandler Handler to return the authentication context if both the session exists and has been validated. 
 	 */
-	private void retrieveAndValidateSession(String sessionId, final String token, final AsyncResultHandler<Session> resultHandler) {
+	private void retrieveAndValidateSession(String sessionId, final String token, final AsyncResultHandler<AuthenticationContext> resultHandler) {
 		if (sessionId == null) sessionId = "INVALID";
 		sessionManager.getSession(sessionId, new AsyncResultHandler<Session>() {
 			
 			@Override
 			public void handle(final AsyncResult<Session> event) {
-				final Session session = event.result();
-				resultHandler.handle(new AsyncResult<Session>() {
-					
-					@Override
-					public boolean succeeded() {
-						if (event.succeeded()) {
-							String userId = session.getUserId();
-							if (userId != null) {
-								try {
-									tokenManager.validateToken(token, userId);
-									return true;
-								} catch (InvalidTokenException e) {
-									return false;
-								}
-							} else {
-								return true;
-							}
-						} else {
-							return false;
-						}
-					}
-					
-					@Override
-					public Session result() {
-						return succeeded() ? session : null;
-					}
-					
-					@Override
-					public boolean failed() {
-						return !succeeded();
-					}
-					
-					@Override
-					public Throwable cause() {
-						if (event.succeeded() && failed()) {
-							return new Throwable("Token authentication failed.");
-						} else if (event.failed()) {
-							return event.cause();
-						} else {
-							return null;
-						}
-					}
-				});
+				if (event.failed()) {
+					resultHandler.handle(createAuthenticationResult(null, event.cause()));
+					return;
+				}
+				AuthenticationContext.authenticate(event.result(), token, tokenManager, authenticating(resultHandler));
 			}
 		});
 	}
 	
+	/**
+	 * Creates a handler forwarding an authentication context. Invalid tokens are reported without details.
+	 */
+	private AsyncResultHandler<AuthenticationContext> authenticating(final AsyncResultHandler<AuthenticationContext> resultHandler) {
+		return new AsyncResultHandler<AuthenticationContext>() {
+			
+			@Override
+			public void handle(AsyncResult<AuthenticationContext> authRequest) {
+				if (authRequest.succeeded()) {
+					resultHandler.handle(authRequest);
+				} else {
+					resultHandler.handle(createAuthenticationResult(null, new Throwable("Token authentication failed.")));
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Validates a session request with the ownership of the session, see {@link #retrieveAndValidateSession(String, String, AsyncResultHandler)}.
+	 * The views and data of the session are not retrieved, the authentication context contains no session.
+	 * @param sessionId ID of the session to validate.
+	 * @param token JSON web token as used by the {@link TokenManager}. May be <code>null</code> if the session is no user session.
+	 * @param resultHandler Handler to return the authentication context if both the session exists and has been validated.
+	 */
+	private void retrieveAndValidateOwnership(String sessionId, final String token, final AsyncResultHandler<AuthenticationContext> resultHandler) {
+		if (sessionId == null) sessionId = "INVALID";
+		sessionManager.getOwnership(sessionId, new AsyncResultHandler<SessionOwnership>() {
+			
+			@Override
+			public void handle(final AsyncResult<SessionOwnership> event) {
+				if (event.failed()) {
+					resultHandler.handle(createAuthenticationResult(null, event.cause()));
+					return;
+				}
+				AuthenticationContext.authenticate(event.result(), token, tokenManager, authenticating(resultHandler));
+			}
+		});
+	}
+	
+	private static AsyncResult<AuthenticationContext> createAuthenticationResult(final AuthenticationContext authContext, final Throwable cause) {
+		return new AsyncResult<AuthenticationContext>() {
+			
+			@Override
+			public boolean succeeded() {
+				return authContext != null;
+			}
+			
+			@Override
+			public AuthenticationContext result() {
+				return authContext;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+	
 	private JsonObject generateErrorResponse(String message) {
 		JsonObject response = new JsonObject();
 		response.putString("status", "error");
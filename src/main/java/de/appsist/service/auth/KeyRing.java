@@ -0,0 +1,188 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jose4j.jwk.EllipticCurveJsonWebKey;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.JsonWebKey.OutputControlLevel;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jwk.PublicJsonWebKey;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.lang.JoseException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Immutable set of keys used to sign and verify tokens.
+ * The key ring is serialized as JSON web key set. The first key of the set is the active signing key, all other keys are only used to verify tokens issued before the last rotations.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public final class KeyRing {
+	private final long version;
+	private final List<PublicJsonWebKey> keys;
+	private final Map<String, PublicJsonWebKey> keysById;
+	private final Map<String, Long> created;
+
+	/**
+	 * Creates a key ring.
+	 * @param version Version of the key ring. Increased whenever the set of keys changes.
+	 * @param keys Keys of the ring, the active signing key first. Each key requires a unique key identifier.
+	 * @param created Creation time in milliseconds since epoch for each key identifier. Missing entries default to <code>now</code>.
+	 * @throws IllegalArgumentException The list of keys is empty or contains a key without identifier.
+	 */
+	public KeyRing(long version, List<PublicJsonWebKey> keys, Map<String, Long> created) throws IllegalArgumentException {
+		if (keys == null || keys.isEmpty()) {
+			throw new IllegalArgumentException("A key ring requires at least one key.");
+		}
+		long now = System.currentTimeMillis();
+		Map<String, PublicJsonWebKey> keysById = new HashMap<>();
+		Map<String, Long> createdById = new HashMap<>();
+		for (PublicJsonWebKey key : keys) {
+			String keyId = key.getKeyId();
+			if (keyId == null) {
+				throw new IllegalArgumentException("Missing key identifier (kid).");
+			}
+			keysById.put(keyId, key);
+			Long createdAt = created != null ? created.get(keyId) : null;
+			createdById.put(keyId, createdAt != null ? createdAt : now);
+		}
+		this.version = version;
+		this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+		this.keysById = Collections.unmodifiableMap(keysById);
+		this.created = Collections.unmodifiableMap(createdById);
+	}
+
+	/**
+	 * Parses a key ring from a JSON web key set.
+	 * @param json JSON web key set including the private key parameters.
+	 * @return Key ring.
+	 * @throws JoseException The key set could not be parsed or contains a symmetric key.
+	 */
+	public static KeyRing fromJson(String json) throws JoseException {
+		JsonWebKeySet keySet = new JsonWebKeySet(json);
+		List<PublicJsonWebKey> keys = new ArrayList<>();
+		for (JsonWebKey key : keySet.getJsonWebKeys()) {
+			if (!(key instanceof PublicJsonWebKey)) {
+				throw new JoseException("Unsupported key type: " + key.getKeyType());
+			}
+			keys.add((PublicJsonWebKey) key);
+		}
+		JsonObject keyRingObject = new JsonObject(json);
+		Long version = keyRingObject.getLong("version");
+		Map<String, Long> created = new HashMap<>();
+		JsonObject createdObject = keyRingObject.getObject("created");
+		if (createdObject != null) for (String keyId : createdObject.getFieldNames()) {
+			created.put(keyId, createdObject.getLong(keyId));
+		}
+		try {
+			return new KeyRing(version != null ? version : 1, keys, created);
+		} catch (IllegalArgumentException e) {
+			throw new JoseException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Serializes the key ring as JSON web key set.
+	 * @param level Defines whether private key parameters are included. The creation times of the keys are only included together with the private parameters.
+	 * @return JSON web key set with an additional version field.
+	 */
+	public JsonObject toJson(OutputControlLevel level) {
+		JsonArray keysArray = new JsonArray();
+		JsonObject createdObject = new JsonObject();
+		for (PublicJsonWebKey key : keys) {
+			keysArray.addObject(new JsonObject(key.toJson(level)));
+			createdObject.putNumber(key.getKeyId(), created.get(key.getKeyId()));
+		}
+		JsonObject json = new JsonObject()
+			.putNumber("version", version)
+			.putArray(JsonWebKeySet.JWK_SET_MEMBER_NAME, keysArray);
+		if (level == OutputControlLevel.INCLUDE_PRIVATE) {
+			json.putObject("created", createdObject);
+		}
+		return json;
+	}
+
+	/**
+	 * Creates a new key ring with the given key as active signing key.
+	 * The previous keys are kept for verification as long as tokens signed with them may still be valid.
+	 * @param newKey Key to sign new tokens with.
+	 * @param now Time of the rotation in milliseconds since epoch.
+	 * @param retention Duration in milliseconds a retired key is kept for verification.
+	 * @return Rotated key ring with an increased version.
+	 */
+	public KeyRing rotate(PublicJsonWebKey newKey, long now, long retention) {
+		List<PublicJsonWebKey> rotatedKeys = new ArrayList<>();
+		Map<String, Long> rotatedCreated = new HashMap<>();
+		rotatedKeys.add(newKey);
+		rotatedCreated.put(newKey.getKeyId(), now);
+		long retiredAt = now;
+		for (PublicJsonWebKey key : keys) {
+			if (retiredAt + retention > now) {
+				rotatedKeys.add(key);
+				rotatedCreated.put(key.getKeyId(), created.get(key.getKeyId()));
+			}
+			// A key retires as soon as its successor is created.
+			retiredAt = created.get(key.getKeyId());
+		}
+		return new KeyRing(version + 1, rotatedKeys, rotatedCreated);
+	}
+
+	/**
+	 * Returns the signature algorithm of a key.
+	 * Keys without an algorithm parameter are RSA keys generated before the algorithm became configurable.
+	 * @param key Key to check.
+	 * @return JWS algorithm identifier, e.g., RS256 or ES256.
+	 */
+	public static String getAlgorithm(PublicJsonWebKey key) {
+		if (key.getAlgorithm() != null) {
+			return key.getAlgorithm();
+		}
+		return key instanceof EllipticCurveJsonWebKey ? AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256 : AlgorithmIdentifiers.RSA_USING_SHA256;
+	}
+	
+	/**
+	 * Returns the version of the key ring.
+	 * @return Version number.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the key used to sign new tokens.
+	 * @return Active signing key.
+	 */
+	public PublicJsonWebKey getActiveKey() {
+		return keys.get(0);
+	}
+
+	/**
+	 * Returns a key of the ring.
+	 * @param keyId Key identifier (kid).
+	 * @return Key or <code>null</code> if the ring contains no key with the given identifier.
+	 */
+	public PublicJsonWebKey getKey(String keyId) {
+		return keysById.get(keyId);
+	}
+
+	/**
+	 * Returns the creation time of a key.
+	 * @param keyId Key identifier (kid).
+	 * @return Milliseconds since epoch or <code>null</code> if the ring contains no key with the given identifier.
+	 */
+	public Long getCreated(String keyId) {
+		return created.get(keyId);
+	}
+
+	/**
+	 * Returns all keys of the ring.
+	 * @return Unmodifiable list of keys, the active signing key first.
+	 */
+	public List<PublicJsonWebKey> getKeys() {
+		return keys;
+	}
+}
@@ -1,15 +1,15 @@
 package de.appsist.service.auth;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang3.StringUtils;
-import org.joda.time.DateTime;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
@@ -17,6 +17,9 @@ import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.http.HttpServerRequest;
 import org.vertx.java.core.http.HttpServerResponse;
 import org.vertx.java.core.http.RouteMatcher;
+import org.vertx.java.core.impl.Closeable;
+import org.vertx.java.core.impl.DefaultFutureResult;
+import org.vertx.java.core.impl.VertxInternal;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
@@ -32,6 +35,11 @@ import de.appsist.service.auth.UserManager.AccessScope;
 import de.appsist.service.auth.connector.MongoDBConnector;
 import de.appsist.service.auth.model.Session;
 import de.appsist.service.auth.model.User;
+import de.appsist.service.auth.store.FileSessionStore;
+import de.appsist.service.auth.store.JournalSessionStore;
+import de.appsist.service.auth.store.MemorySessionStore;
+import de.appsist.service.auth.store.MongoSessionStore;
+import de.appsist.service.auth.store.SessionStore;
 import de.appsist.service.iid.server.connector.IIDConnector;
 import de.appsist.service.iid.server.model.ContentBody;
 import de.appsist.service.iid.server.model.Popup;
@@ -45,12 +53,19 @@ import de.appsist.service.iid.server.model.PopupBuilder;
 public class MainVerticle extends Verticle {
 	public static final String SERVICE_ID = "appsist:service:auth";
 	private static final Logger logger = LoggerFactory.getLogger(MainVerticle.class);
+	private static final int JWKS_MAX_AGE_SECONDS = 300;
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
 	
 	private static ModuleConfiguration config;
 	private RouteMatcher routeMatcher;
 	private SessionManager sessionManager;
 	private UserManager userManager;
 	private TokenManager tokenManager;
+	private CryptoExecutor cryptoExecutor;
+	private RefreshTokenStore refreshTokens;
+	private RevocationManager revocationManager;
+	private SessionSnapshot sessionSnapshot;
+	private SessionStore sessionStore;
 	private Map<String, Template> templates = new HashMap<>();
 	private IIDConnector iidConnector;
 
@@ -65,10 +80,58 @@ public class MainVerticle extends Verticle {
 		}
 		
 		MongoDBConnector mongoConnector = new MongoDBConnector(config.getMongoPersistorAddress(), vertx.eventBus());
-		sessionManager = new SessionManager(mongoConnector, vertx.eventBus());
-		userManager = new UserManager(mongoConnector);
-		tokenManager = new TokenManager();
-		new EBHandler(sessionManager, userManager, tokenManager, vertx.eventBus());
+		cryptoExecutor = new CryptoExecutor(vertx, config.getCryptoPoolSize(), config.getCryptoQueueSize());
+		ConcurrentMap<String, SessionCache> sharedCaches = vertx.sharedData().getMap(SERVICE_ID + ":sessionCache");
+		SessionCache sessionCache = new SessionCache(config.getSessionCacheSize());
+		SessionCache existingCache = sharedCaches.putIfAbsent("sessions", sessionCache);
+		ConcurrentMap<String, SessionMutationQueue> sharedQueues = vertx.sharedData().getMap(SERVICE_ID + ":sessionMutations");
+		SessionMutationQueue mutationQueue = new SessionMutationQueue(vertx);
+		SessionMutationQueue existingQueue = sharedQueues.putIfAbsent("sessions", mutationQueue);
+		if (existingQueue != null) mutationQueue = existingQueue;
+		ConcurrentMap<String, UserSessionIndex> sharedIndexes = vertx.sharedData().getMap(SERVICE_ID + ":userSessions");
+		UserSessionIndex userIndex = new UserSessionIndex(config.isUserIndexEnabled());
+		UserSessionIndex existingIndex = sharedIndexes.putIfAbsent("sessions", userIndex);
+		if (existingIndex != null) userIndex = existingIndex;
+		ConcurrentMap<String, SessionExpiryQueue<String>> sharedExpiryQueues = vertx.sharedData().getMap(SERVICE_ID + ":sessionExpiry");
+		SessionExpiryQueue<String> expiryQueue = new SessionExpiryQueue<>(config.getHoursUntilSessionPurged() * 3600000L);
+		SessionExpiryQueue<String> existingExpiryQueue = sharedExpiryQueues.putIfAbsent("sessions", expiryQueue);
+		if (existingExpiryQueue != null) expiryQueue = existingExpiryQueue;
+		ConcurrentMap<String, SessionExpiryQueue<ViewKey>> sharedHeartbeatQueues = vertx.sharedData().getMap(SERVICE_ID + ":viewExpiry");
+		SessionExpiryQueue<ViewKey> heartbeatQueue = new SessionExpiryQueue<>(config.getHeartbeatIntervalSeconds() * config.getMissedHeartbeats() * 1000L);
+		SessionExpiryQueue<ViewKey> existingHeartbeatQueue = sharedHeartbeatQueues.putIfAbsent("views", heartbeatQueue);
+		if (existingHeartbeatQueue != null) heartbeatQueue = existingHeartbeatQueue;
+		ConcurrentMap<String, SessionLookupFilter> sharedFilters = vertx.sharedData().getMap(SERVICE_ID + ":sessionLookup");
+		SessionLookupFilter lookupFilter = new SessionLookupFilter(config.isSessionLookupFilterEnabled(), config.getUnknownSessionSeconds() * 1000L);
+		SessionLookupFilter existingFilter = sharedFilters.putIfAbsent("sessions", lookupFilter);
+		if (existingFilter != null) lookupFilter = existingFilter;
+		sessionStore = createSessionStore(mongoConnector);
+		sessionManager = new SessionManager(sessionStore, vertx.eventBus(), existingCache != null ? existingCache : sessionCache, mutationQueue, userIndex, expiryQueue, heartbeatQueue, lookupFilter, config.getActivityLagSeconds(), config.isLazySessionCreationEnabled());
+		if (existingCache == null) {
+			// First instance of the JVM, initialize the shared session structures.
+			final SessionManager.StartupMode startupMode = config.getSessionStartupMode();
+			if (startupMode == SessionManager.StartupMode.SNAPSHOT) {
+				sessionSnapshot = new SessionSnapshot(config.getSessionSnapshotFile());
+			}
+			sessionManager.initialize(startupMode, sessionSnapshot, config.getHoursUntilSessionPurged() * 3600000L, new AsyncResultHandler<Integer>() {
+				
+				@Override
+				public void handle(AsyncResult<Integer> initRequest) {
+					if (initRequest.failed()) {
+						logger.warn("Failed to initialize sessions (" + startupMode + "): " + initRequest.cause().getMessage());
+					}
+					sessionManager.rebuildLookupFilter();
+				}
+			});
+		}
+		userManager = new UserManager(mongoConnector, cryptoExecutor);
+		ConcurrentMap<String, SigningKeyStore> sharedKeyStores = vertx.sharedData().getMap(SERVICE_ID + ":keyStore");
+		SigningKeyStore keyStore = new SigningKeyStore(vertx.sharedData().<String, String>getMap(SERVICE_ID + ":keys"), config.getTokenKeyFile(), config.getTokenAlgorithm());
+		SigningKeyStore existingKeyStore = sharedKeyStores.putIfAbsent("keys", keyStore);
+		if (existingKeyStore != null) keyStore = existingKeyStore;
+		tokenManager = new TokenManager(keyStore, config.getTokenCacheSize(), config.getKeyRotationHours(), config.getTokenLifetimeMinutes(), cryptoExecutor);
+		refreshTokens = new RefreshTokenStore(vertx.sharedData().<String, String>getMap(SERVICE_ID + ":refreshTokens"), config.getRefreshTokenLifetimeHours());
+		revocationManager = new RevocationManager(mongoConnector, vertx.eventBus(), tokenManager);
+		new EBHandler(sessionManager, userManager, tokenManager, refreshTokens, revocationManager, cryptoExecutor, vertx.eventBus());
 		
 		iidConnector = new IIDConnector(vertx.eventBus(), IIDConnector.DEFAULT_ADDRESS);
 				
@@ -77,29 +140,76 @@ public class MainVerticle extends Verticle {
 			.requestHandler(routeMatcher)
 			.listen(config.getWebserverPort());
 		
-		final int hoursUntilPurge = config.getHoursUntilSessionPurged();
-		if (hoursUntilPurge > 0) {
-			vertx.setPeriodic(900000, new Handler<Long>() { // one an hour
+		final boolean expireSessions = config.getHoursUntilSessionPurged() > 0;
+		vertx.setPeriodic(1000, new Handler<Long>() {
 
-				@Override
-				public void handle(Long event) {
-					DateTime purgeBefore = new DateTime().minusHours(hoursUntilPurge);
-					sessionManager.purgeOldSessions(purgeBefore, new AsyncResultHandler<Integer>() {
-						
-						@Override
-						public void handle(AsyncResult<Integer> event) {
-							if (event.succeeded()) {
-								if (event.result() > 0) {
-									logger.debug("Purged " + event.result() + " obsolete session(s).");
-								}
-							} else {
-								logger.warn("Failed to purge obsolete sessions: " + event.cause().getMessage());
+			@Override
+			public void handle(Long event) {
+				if (expireSessions) sessionManager.expireSessions(new AsyncResultHandler<Integer>() {
+					
+					@Override
+					public void handle(AsyncResult<Integer> event) {
+						if (event.succeeded()) {
+							if (event.result() > 0) {
+								logger.debug("Removed " + event.result() + " view(s) of inactive sessions.");
 							}
+						} else {
+							logger.warn("Failed to expire inactive sessions: " + event.cause().getMessage());
 						}
-					});
-				}
-			});
-		};
+					}
+				});
+				sessionManager.expireViews(new AsyncResultHandler<Integer>() {
+					
+					@Override
+					public void handle(AsyncResult<Integer> event) {
+						if (event.succeeded()) {
+							if (event.result() > 0) {
+								logger.debug("Removed " + event.result() + " view(s) without heartbeat.");
+							}
+						} else {
+							logger.warn("Failed to remove views without heartbeat: " + event.cause().getMessage());
+						}
+					}
+				});
+			}
+		});
+
+		
+		vertx.setPeriodic(config.getActivityFlushSeconds() * 1000L, new Handler<Long>() {
+			
+			@Override
+			public void handle(Long event) {
+				sessionManager.flushActivity();
+			}
+		});
+		
+		// Verticle.stop() is synchronous and runs on the event loop which receives the replies of the store, so it cannot wait for the final flush.
+		// The undeployment waits for the close hooks of the verticle's context instead.
+		((VertxInternal) vertx).getContext().addCloseHook(new Closeable() {
+			
+			@Override
+			public void close(Handler<AsyncResult<Void>> doneHandler) {
+				shutdown(doneHandler);
+			}
+		});
+		
+		vertx.setPeriodic(60000, new Handler<Long>() { // once a minute
+			
+			@Override
+			public void handle(Long event) {
+				tokenManager.rotateKeys(new AsyncResultHandler<Void>() {
+					
+					@Override
+					public void handle(AsyncResult<Void> rotationRequest) {
+						if (rotationRequest.failed()) {
+							logger.warn("Failed to rotate signing keys: " + rotationRequest.cause().getMessage());
+						}
+					}
+				});
+				refreshTokens.purgeExpired();
+				revocationManager.purgeExpired();
+			}
+		});
 		
 		JsonObject statusSignalObject = config.getStatusSignalConfig();
 		StatusSignalConfiguration statusSignalConfig;
@@ -115,9 +225,87 @@ public class MainVerticle extends Verticle {
 		logger.debug("APPsist service \"Authentication and Session Service\" has been initialized with the following configuration:\n" + config.asJson().encodePrettily());
 	}
 	
-	@Override
-	public void stop() {
-		logger.debug("APPsist service \"Authentication and Session Service\" has been stopped.");
+	/**
+	 * Writes the session activities and pending sessions, then the journal and the session snapshot.
+	 * The snapshot is written after the flush, so it contains the final state of the sessions. If the flush does not complete within {@value #SHUTDOWN_TIMEOUT_MILLIS} ms, the service is stopped anyway.
+	 * @param doneHandler Handler to be notified when the service has been stopped.
+	 */
+	private void shutdown(final Handler<AsyncResult<Void>> doneHandler) {
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final Handler<Void> stopHandler = new Handler<Void>() {
+			
+			@Override
+			public void handle(Void event) {
+				if (!stopped.compareAndSet(false, true)) return;
+				if (sessionStore instanceof JournalSessionStore) ((JournalSessionStore) sessionStore).sync();
+				if (sessionSnapshot != null) {
+					try {
+						int count = sessionManager.writeSnapshot(sessionSnapshot);
+						logger.info("Stored " + count + " sessions in snapshot " + sessionSnapshot + ".");
+					} catch (IOException e) {
+						logger.warn("Failed to write session snapshot " + sessionSnapshot + ".", e);
+					}
+				}
+				cryptoExecutor.shutdown();
+				logger.debug("APPsist service \"Authentication and Session Service\" has been stopped.");
+				doneHandler.handle(new DefaultFutureResult<>((Void) null));
+			}
+		};
+		final long timerId = vertx.setTimer(SHUTDOWN_TIMEOUT_MILLIS, new Handler<Long>() {
+			
+			@Override
+			public void handle(Long event) {
+				logger.warn("Session activities have not been written within " + SHUTDOWN_TIMEOUT_MILLIS + " ms, stopping anyway.");
+				stopHandler.handle(null);
+			}
+		});
+		sessionManager.flushActivity(new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> flushRequest) {
+				if (flushRequest.failed()) {
+					logger.warn("Failed to write session activities on shutdown: " + flushRequest.cause().getMessage());
+				}
+				vertx.cancelTimer(timerId);
+				stopHandler.handle(null);
+			}
+		});
+	}
+	
+	/**
+	 * Creates the configured session store. Stores holding sessions in memory are shared between all service instances of the JVM.
+	 * @param mongoConnector Connector for the MongoDB instance.
+	 * @return Session store.
+	 * @throws RuntimeException Failed to open the session file.
+	 */
+	private SessionStore createSessionStore(MongoDBConnector mongoConnector) throws RuntimeException {
+		ModuleConfiguration.SessionStoreType type = config.getSessionStoreType();
+		if (type == ModuleConfiguration.SessionStoreType.MONGO) {
+			return new MongoSessionStore(mongoConnector);
+		}
+		ConcurrentMap<String, MemorySessionStore> sharedStores = vertx.sharedData().getMap(SERVICE_ID + ":sessionStore");
+		synchronized (MainVerticle.class) {
+			MemorySessionStore store = sharedStores.get("sessions");
+			if (store == null) {
+				try {
+					switch (type) {
+					case FILE:
+						store = new FileSessionStore(config.getSessionStoreFile());
+						break;
+					case JOURNAL:
+						store = new JournalSessionStore(config.getSessionJournalDirectory(), config.getSessionJournalSegmentMegabytes() * 1024 * 1024, config.getSessionJournalSyncMillis());
+						break;
+					default:
+						store = new MemorySessionStore();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("Failed to open session store (" + type + ").", e);
+				}
+				if (store.size() > 0) logger.info("Loaded " + store.size() + " sessions from " + store + ".");
+				sharedStores.put("sessions", store);
+			}
+			return store;
+		}
 	}
 	
 	/**
@@ -202,12 +390,6 @@ public class MainVerticle extends Verticle {
 								request.formAttributes().get("mail"));
 						
 						String password = request.formAttributes().get("password");
-						try {
-							user.setHash(UserManager.hash(password));
-						} catch (NoSuchAlgorithmException e) {
-							response.setStatusCode(500).end("Failed to hash password: " + e.getMessage());
-							return;
-						}
 						
 						String pin = request.formAttributes().get("pin");
 						if (pin != null && pin.length() > 0) {
@@ -233,7 +415,7 @@ public class MainVerticle extends Verticle {
 							return;
 						}
 						
-						userManager.storeUser(user, new AsyncResultHandler<Void>() {
+						userManager.storeUser(user, password, new AsyncResultHandler<Void>() {
 							@Override
 							public void handle(AsyncResult<Void> storeRequest) {
 								if (storeRequest.succeeded()) {
@@ -281,12 +463,14 @@ public class MainVerticle extends Verticle {
 
 					@Override
 					public void handle(Buffer buffer) {
-						String userId = request.formAttributes().get("id");
+						final String userId = request.formAttributes().get("id");
 						userManager.deleteUser(userId, new AsyncResultHandler<Void>() {
 							
 							@Override
 							public void handle(AsyncResult<Void> deleteRequest) {
 								if (deleteRequest.succeeded()) {
+									refreshTokens.revokeSubject(userId);
+									revocationManager.revokeSubject(userId, null);
 									response.headers().add("Location", basePath + "/admin/listUsers");
 									response.setStatusCode(303).end();
 								} else {
@@ -348,14 +532,6 @@ public class MainVerticle extends Verticle {
 									user.setMail(request.formAttributes().get("mail"));
 									
 									String password = request.formAttributes().get("password");
-									if (password != null && password.length() > 0) {
-										try {
-											user.setHash(UserManager.hash(password));
-										} catch (NoSuchAlgorithmException e) {
-											response.setStatusCode(500).end("Failed to hash password: " + e.getMessage());
-											return;
-										}
-									};
 									
 									String pin = request.formAttributes().get("pin");
 									if (pin != null && pin.length() > 0) {
@@ -387,7 +563,7 @@ public class MainVerticle extends Verticle {
 										return;
 									}
 
-									userManager.storeUser(user, new AsyncResultHandler<Void>() {
+									userManager.storeUser(user, password, new AsyncResultHandler<Void>() {
 										@Override
 										public void handle(AsyncResult<Void> storeRequest) {
 											if (storeRequest.succeeded()) {
@@ -527,6 +703,24 @@ public class MainVerticle extends Verticle {
 				});
 				
 			}
+		}).get("/jwks", new Handler<HttpServerRequest>() {
+			
+			@Override
+			public void handle(HttpServerRequest request) {
+				HttpServerResponse response = request.response();
+				JsonObject jwks = tokenManager.getJwks();
+				// The version changes with each key rotation, consumers only have to reload the key set if it differs.
+				String eTag = "\"" + jwks.getLong("version") + "\"";
+				response.headers()
+					.add("Cache-Control", "public, max-age=" + JWKS_MAX_AGE_SECONDS)
+					.add("ETag", eTag);
+				if (eTag.equals(request.headers().get("If-None-Match"))) {
+					response.setStatusCode(304).end();
+				} else {
+					response.headers().add("Content-Type", "application/json");
+					response.end(jwks.encode());
+				}
+			}
 		});
 		
 		
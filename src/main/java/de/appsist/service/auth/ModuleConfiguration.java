@@ -1,5 +1,6 @@
 package de.appsist.service.auth;
 
+import org.jose4j.jws.AlgorithmIdentifiers;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
@@ -10,6 +11,20 @@ import org.vertx.java.core.json.JsonObject;
 public class ModuleConfiguration {
 	private final JsonObject config;
 	
+	/**
+	 * Implementations available to store sessions.
+	 */
+	public enum SessionStoreType {
+		/** Sessions are stored in the "sessions" collection of the MongoDB instance. */
+		MONGO,
+		/** Sessions are kept in memory only and lost on restart. */
+		MEMORY,
+		/** Sessions are kept in memory and each change is appended to a local file. */
+		FILE,
+		/** Sessions are kept in memory and each change is appended to a memory mapped journal. */
+		JOURNAL
+	}
+	
 	/**
 	 * Creates a wrapper for the given configuration object. 
 	 * @param config JSON object containing the module configuration. 
@@ -37,6 +52,42 @@ public class ModuleConfiguration {
 		if (getMongoPersistorAddress() == null) {
 			throw new IllegalArgumentException("Configuration for MongoDB persistor [mongoPersistorAddress] is missing.");
 		}
+		String algorithm = getTokenAlgorithm();
+		if (!AlgorithmIdentifiers.RSA_USING_SHA256.equals(algorithm) && !AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256.equals(algorithm)) {
+			throw new IllegalArgumentException("Unsupported token signature algorithm [tokens.algorithm]: " + algorithm);
+		}
+		if (getSessionStartupMode() == SessionManager.StartupMode.SNAPSHOT && getSessionSnapshotFile() == null) {
+			throw new IllegalArgumentException("Configuration for session snapshot file [sessions.snapshotFile] is missing.");
+		}
+		if (getSessionStartupMode() == SessionManager.StartupMode.SNAPSHOT && !isUserIndexEnabled()) {
+			throw new IllegalArgumentException("Session snapshots [sessions.startupMode] require the user index [sessions.userIndex].");
+		}
+		if (getSessionStoreType() == SessionStoreType.FILE && getSessionStoreFile() == null) {
+			throw new IllegalArgumentException("Configuration for session store file [sessions.storeFile] is missing.");
+		}
+		if (getSessionStoreType() == SessionStoreType.JOURNAL && getSessionJournalDirectory() == null) {
+			throw new IllegalArgumentException("Configuration for session journal directory [sessions.journalDirectory] is missing.");
+		}
+		validateRange("sessions.activityFlushSeconds", getActivityFlushSeconds(), 1, Integer.MAX_VALUE / 1000);
+		validateRange("sessions.activityLagSeconds", getActivityLagSeconds(), 0, Integer.MAX_VALUE / 1000);
+		validateRange("sessions.heartbeatIntervalSeconds", getHeartbeatIntervalSeconds(), 1, Integer.MAX_VALUE / 1000);
+		validateRange("sessions.missedHeartbeats", getMissedHeartbeats(), 1, Integer.MAX_VALUE);
+		validateRange("sessions.journalSyncMillis", getSessionJournalSyncMillis(), 1, Integer.MAX_VALUE);
+		validateRange("sessions.journalSegmentMB", getSessionJournalSegmentMegabytes(), 1, Integer.MAX_VALUE / (1024 * 1024));
+	}
+	
+	/**
+	 * Checks that a numeric configuration value is within the given bounds.
+	 * @param field Path of the configuration field, used in the error message.
+	 * @param value Configured value.
+	 * @param min Minimum value allowed.
+	 * @param max Maximum value allowed.
+	 * @throws IllegalArgumentException The value is out of range.
+	 */
+	private static void validateRange(String field, int value, int min, int max) throws IllegalArgumentException {
+		if (value < min || value > max) {
+			throw new IllegalArgumentException("Invalid value for [" + field + "]: " + value + " (allowed: " + min + " to " + max + ").");
+		}
 	}
 	
 	/**
@@ -98,8 +149,8 @@ public class ModuleConfiguration {
 	}
 	
 	/**
-	 * Returns the hours until a obsolete session is purged.
-	 * @return Number of hours. 0 means sessions are not purged.
+	 * Returns the hours until an inactive online session expires. All views of expired sessions are removed.
+	 * @return Number of hours. 0 means sessions do not expire.
 	 */
 	public int getHoursUntilSessionPurged() {
 		Integer hours = config.getInteger("hoursUntilSessionPurge");
@@ -109,4 +160,263 @@ public class ModuleConfiguration {
 	public JsonObject getStatusSignalConfig() {
 		return config.getObject("statusSignal");
 	}
+	
+	/**
+	 * Returns the configuration for token generation and validation.
+	 * @return JSON object with token settings. Empty if not set.
+	 */
+	private JsonObject getTokenConfig() {
+		JsonObject tokens = config.getObject("tokens");
+		return tokens != null ? tokens : new JsonObject();
+	}
+	
+	/**
+	 * Returns the maximum number of verified tokens to keep in memory.
+	 * @return Number of tokens. 0 disables the cache. Defaults to 1000.
+	 */
+	public int getTokenCacheSize() {
+		Integer size = getTokenConfig().getInteger("cacheSize");
+		return (size != null) ? size : 1000;
+	}
+	
+	/**
+	 * Returns the path of the file containing the keys to sign and verify tokens.
+	 * If the file does not exist, it is created with newly generated keys.
+	 * @return Path of a JSON web key set file or <code>null</code> if keys should not be persisted.
+	 */
+	public String getTokenKeyFile() {
+		return getTokenConfig().getString("keyFile");
+	}
+	
+	/**
+	 * Returns the lifetime of access tokens.
+	 * @return Number of minutes. Defaults to 10.
+	 */
+	public int getTokenLifetimeMinutes() {
+		Integer minutes = getTokenConfig().getInteger("lifetimeMinutes");
+		return (minutes != null) ? minutes : 10;
+	}
+	
+	/**
+	 * Returns the lifetime of refresh tokens.
+	 * @return Number of hours. Defaults to 24.
+	 */
+	public int getRefreshTokenLifetimeHours() {
+		Integer hours = getTokenConfig().getInteger("refreshLifetimeHours");
+		return (hours != null) ? hours : 24;
+	}
+	
+	/**
+	 * Returns the algorithm to sign tokens with.
+	 * ES256 signs considerably faster than RS256 and yields shorter tokens. EdDSA is not supported by the JOSE library in use.
+	 * @return JWS algorithm identifier: RS256 (default) or ES256.
+	 */
+	public String getTokenAlgorithm() {
+		return getTokenConfig().getString("algorithm", AlgorithmIdentifiers.RSA_USING_SHA256);
+	}
+	
+	/**
+	 * Returns the hours after which the signing key is rotated.
+	 * @return Number of hours. 0 means keys are not rotated.
+	 */
+	public int getKeyRotationHours() {
+		Integer hours = getTokenConfig().getInteger("rotationHours");
+		return (hours != null) ? hours : 0;
+	}
+	
+	/**
+	 * Returns the configuration of the executor for token signing and password hashing.
+	 * @return JSON object with executor settings. Empty if not set.
+	 */
+	private JsonObject getCryptoConfig() {
+		JsonObject crypto = config.getObject("crypto");
+		return crypto != null ? crypto : new JsonObject();
+	}
+	
+	/**
+	 * Returns the number of threads for token signing and password hashing.
+	 * @return Number of threads. Defaults to the number of available processors.
+	 */
+	public int getCryptoPoolSize() {
+		Integer size = getCryptoConfig().getInteger("poolSize");
+		return (size != null) ? size : Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Returns the maximum number of signing and hashing operations waiting for a thread. Further operations are rejected.
+	 * @return Number of operations. Defaults to 1000.
+	 */
+	public int getCryptoQueueSize() {
+		Integer size = getCryptoConfig().getInteger("queueSize");
+		return (size != null) ? size : 1000;
+	}
+	
+	/**
+	 * Returns the configuration for session handling.
+	 * @return JSON object with session settings. Empty if not set.
+	 */
+	private JsonObject getSessionConfig() {
+		JsonObject sessions = config.getObject("sessions");
+		return sessions != null ? sessions : new JsonObject();
+	}
+	
+	/**
+	 * Returns the maximum number of sessions to keep in memory, see {@link SessionCache}.
+	 * The cache only sees the changes made by this JVM. It must not be enabled if other service nodes or processes share the session database, as they would be served outdated sessions.
+	 * @return Number of sessions. 0 disables the cache. Defaults to 0.
+	 */
+	public int getSessionCacheSize() {
+		Integer size = getSessionConfig().getInteger("cacheSize");
+		return (size != null) ? size : 0;
+	}
+	
+	/**
+	 * Checks if users are mapped to their sessions in memory, see {@link UserSessionIndex}.
+	 * The index only sees the sessions changed by this JVM. It must not be enabled if other service nodes or processes share the session database, as user lookups and user status would be outdated.
+	 * @return <code>true</code> if the index is enabled, otherwise <code>false</code>. Defaults to <code>false</code>.
+	 */
+	public boolean isUserIndexEnabled() {
+		return getSessionConfig().getBoolean("userIndex", false);
+	}
+	
+	/**
+	 * Checks if requests for unknown sessions are rejected using a filter of all session identifiers, see {@link SessionLookupFilter}.
+	 * The filter only knows the sessions created by this JVM. It must not be enabled if other service nodes or processes share the session database, as their sessions would be rejected.
+	 * @return <code>true</code> if the filter is enabled, otherwise <code>false</code>. Defaults to <code>false</code>.
+	 */
+	public boolean isSessionLookupFilterEnabled() {
+		return getSessionConfig().getBoolean("lookupFilter", false);
+	}
+	
+	/**
+	 * Returns the time sessions which have been deleted or not been found are remembered as unknown.
+	 * @return Number of seconds. 0 disables the negative cache. Defaults to 10.
+	 */
+	public int getUnknownSessionSeconds() {
+		Integer seconds = getSessionConfig().getInteger("unknownSessionSeconds");
+		return (seconds != null) ? seconds : 10;
+	}
+	
+	/**
+	 * Checks if new sessions are written to the database lazily.
+	 * If enabled, "createSession" replies without a database request. The session is written before its first change or with the next activity flush, whichever comes first.
+	 * @return <code>true</code> if sessions are created lazily, otherwise <code>false</code>. Defaults to <code>false</code>.
+	 */
+	public boolean isLazySessionCreationEnabled() {
+		return getSessionConfig().getBoolean("lazyCreate", false);
+	}
+	
+	/**
+	 * Returns the interval in which session activities are written to the database.
+	 * @return Number of seconds. Defaults to 5.
+	 */
+	public int getActivityFlushSeconds() {
+		Integer seconds = getSessionConfig().getInteger("activityFlushSeconds");
+		return (seconds != null) ? seconds : 5;
+	}
+	
+	/**
+	 * Returns the maximum age of the last activity stored for an active session.
+	 * Active sessions are written at most once within this period.
+	 * @return Number of seconds. Defaults to 60.
+	 */
+	public int getActivityLagSeconds() {
+		Integer seconds = getSessionConfig().getInteger("activityLagSeconds");
+		return (seconds != null) ? seconds : 60;
+	}
+	
+	/**
+	 * Returns the interval in which views are expected to send heartbeats.
+	 * @return Number of seconds. Defaults to 30.
+	 */
+	public int getHeartbeatIntervalSeconds() {
+		Integer seconds = getSessionConfig().getInteger("heartbeatIntervalSeconds");
+		return (seconds != null) ? seconds : 30;
+	}
+	
+	/**
+	 * Returns the number of heartbeats a view may miss before it is removed.
+	 * Only views which have sent at least one heartbeat are removed.
+	 * @return Number of heartbeats. Defaults to 3.
+	 */
+	public int getMissedHeartbeats() {
+		Integer heartbeats = getSessionConfig().getInteger("missedHeartbeats");
+		return (heartbeats != null) ? heartbeats : 3;
+	}
+	
+	/**
+	 * Returns how sessions are initialized on startup.
+	 * @return Startup mode. Defaults to {@link SessionManager.StartupMode#PURGE}.
+	 * @throws IllegalArgumentException The configured mode is unknown.
+	 */
+	public SessionManager.StartupMode getSessionStartupMode() throws IllegalArgumentException {
+		String mode = getSessionConfig().getString("startupMode");
+		if (mode == null) {
+			return SessionManager.StartupMode.PURGE;
+		}
+		try {
+			return SessionManager.StartupMode.valueOf(mode.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown session startup mode [sessions.startupMode]: " + mode);
+		}
+	}
+	
+	/**
+	 * Returns the path of the snapshot file used to restore sessions on startup.
+	 * @return Path of the snapshot file or <code>null</code> if not configured.
+	 */
+	public String getSessionSnapshotFile() {
+		return getSessionConfig().getString("snapshotFile");
+	}
+	
+	/**
+	 * Returns the implementation used to store sessions.
+	 * @return Session store type. Defaults to {@link SessionStoreType#MONGO}.
+	 * @throws IllegalArgumentException The configured type is unknown.
+	 */
+	public SessionStoreType getSessionStoreType() throws IllegalArgumentException {
+		String type = getSessionConfig().getString("store");
+		if (type == null) {
+			return SessionStoreType.MONGO;
+		}
+		try {
+			return SessionStoreType.valueOf(type.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown session store [sessions.store]: " + type);
+		}
+	}
+	
+	/**
+	 * Returns the path of the file sessions are stored in by the file session store.
+	 * @return Path of the session file or <code>null</code> if not configured.
+	 */
+	public String getSessionStoreFile() {
+		return getSessionConfig().getString("storeFile");
+	}
+	
+	/**
+	 * Returns the directory for the journal of the journal session store.
+	 * @return Path of the journal directory or <code>null</code> if not configured.
+	 */
+	public String getSessionJournalDirectory() {
+		return getSessionConfig().getString("journalDirectory");
+	}
+	
+	/**
+	 * Returns the size of a segment of the session journal. When a segment is full, the journal is compacted.
+	 * @return Size in megabytes, at most 2047. Defaults to 64.
+	 */
+	public int getSessionJournalSegmentMegabytes() {
+		Integer size = getSessionConfig().getInteger("journalSegmentMB");
+		return (size != null) ? size : 64;
+	}
+	
+	/**
+	 * Returns the interval to force the session journal to disk.
+	 * @return Interval in milliseconds. Defaults to 1000.
+	 */
+	public int getSessionJournalSyncMillis() {
+		Integer interval = getSessionConfig().getInteger("journalSyncMillis");
+		return (interval != null) ? interval : 1000;
+	}
 }
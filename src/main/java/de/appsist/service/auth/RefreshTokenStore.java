@@ -0,0 +1,142 @@
+package de.appsist.service.auth;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jose4j.base64url.Base64Url;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Store for refresh tokens.
+ * A refresh token is an opaque random string bound to a user and a session. It is exchanged for new access tokens without authenticating the user again.
+ * Tokens are kept in memory and shared between all service instances of the JVM. Only a digest of each token is stored.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class RefreshTokenStore {
+	private static final int TOKEN_BYTES = 32;
+
+	private final ConcurrentMap<String, String> tokens;
+	private final long lifetime;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Creates a refresh token store.
+	 * @param tokens Map shared between all service instances of the JVM.
+	 * @param lifetimeHours Hours a refresh token is valid after it has been issued.
+	 */
+	public RefreshTokenStore(ConcurrentMap<String, String> tokens, int lifetimeHours) {
+		this.tokens = tokens;
+		this.lifetime = lifetimeHours * 3600000L;
+	}
+
+	/**
+	 * Issues a refresh token.
+	 * @param subject ID of the user the token is issued for.
+	 * @param sessionId ID of the session the token is bound to.
+	 * @return Refresh token.
+	 */
+	public String issue(String subject, String sessionId) {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		random.nextBytes(bytes);
+		String refreshToken = Base64Url.encode(bytes);
+		JsonObject entry = new JsonObject()
+			.putString("subject", subject)
+			.putString("sessionId", sessionId)
+			.putNumber("expires", System.currentTimeMillis() + lifetime);
+		tokens.put(TokenCache.digest(refreshToken), entry.encode());
+		return refreshToken;
+	}
+
+	/**
+	 * Validates a refresh token.
+	 * @param refreshToken Refresh token to validate.
+	 * @param sessionId ID of the session the token is used for.
+	 * @return ID of the user the token has been issued for.
+	 * @throws InvalidTokenException The token is unknown, expired, revoked or bound to another session.
+	 */
+	public String validate(String refreshToken, String sessionId) throws InvalidTokenException {
+		if (refreshToken == null) {
+			throw new InvalidTokenException(refreshToken, "Token is null.");
+		}
+		String key = TokenCache.digest(refreshToken);
+		String json = tokens.get(key);
+		if (json == null) {
+			throw new InvalidTokenException(refreshToken, "Unknown or revoked refresh token.");
+		}
+		JsonObject entry = new JsonObject(json);
+		if (entry.getLong("expires") <= System.currentTimeMillis()) {
+			tokens.remove(key, json);
+			throw new InvalidTokenException(refreshToken, "Refresh token expired.");
+		}
+		if (!entry.getString("sessionId").equals(sessionId)) {
+			throw new InvalidTokenException(refreshToken, "Refresh token is bound to another session.");
+		}
+		return entry.getString("subject");
+	}
+
+	/**
+	 * Revokes a refresh token.
+	 * @param refreshToken Refresh token to revoke.
+	 * @return <code>true</code> if the token has been revoked, <code>false</code> if it is unknown.
+	 */
+	public boolean revoke(String refreshToken) {
+		return refreshToken != null && tokens.remove(TokenCache.digest(refreshToken)) != null;
+	}
+
+	/**
+	 * Revokes all refresh tokens bound to a session.
+	 * @param sessionId ID of the session.
+	 * @return Number of revoked tokens.
+	 */
+	public int revokeSession(String sessionId) {
+		return removeIf("sessionId", sessionId);
+	}
+
+	/**
+	 * Revokes all refresh tokens of a user.
+	 * @param subject ID of the user.
+	 * @return Number of revoked tokens.
+	 */
+	public int revokeSubject(String subject) {
+		return removeIf("subject", subject);
+	}
+
+	/**
+	 * Removes expired refresh tokens.
+	 * @return Number of removed tokens.
+	 */
+	public int purgeExpired() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		Iterator<Map.Entry<String, String>> iterator = tokens.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (new JsonObject(iterator.next().getValue()).getLong("expires") <= now) {
+				iterator.remove();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of stored refresh tokens, including expired tokens not purged yet.
+	 * @return Number of tokens.
+	 */
+	public int size() {
+		return tokens.size();
+	}
+
+	private int removeIf(String field, String value) {
+		int count = 0;
+		Iterator<Map.Entry<String, String>> iterator = tokens.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (value.equals(new JsonObject(iterator.next().getValue()).getString(field))) {
+				iterator.remove();
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,135 @@
+package de.appsist.service.auth;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * In-memory list of revoked tokens.
+ * Single tokens are revoked by their token identifier (jti), all tokens of a user by the subject (sub). A revocation of a subject covers all tokens issued until the revocation.
+ * The issue time (iat) of a token only has a precision of seconds, so revocations of subjects are compared in seconds as well. Tokens issued in the same second as the revocation cannot be ordered and are treated as revoked.
+ * A bloom filter is checked first, so validating a token which has not been revoked requires no map lookup. Entries are removed as soon as the revoked tokens would have expired anyway.
+ * The list is safe to be used by multiple threads.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class RevocationList {
+	private static final int MIN_CAPACITY = 1024;
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+	private static final String TOKEN_PREFIX = "jti:";
+	private static final String SUBJECT_PREFIX = "sub:";
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile BloomFilter filter = new BloomFilter(MIN_CAPACITY, FALSE_POSITIVE_PROBABILITY);
+
+	private static class Entry {
+		private final long revokedAt; // seconds since epoch, as the issue time of tokens
+		private final long expires;
+
+		private Entry(long revokedAt, long expires) {
+			this.revokedAt = revokedAt;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Returns the entry identifier for a revoked token.
+	 * @param tokenId Token identifier (jti).
+	 * @return Entry identifier.
+	 */
+	public static String tokenEntry(String tokenId) {
+		return TOKEN_PREFIX + tokenId;
+	}
+
+	/**
+	 * Returns the entry identifier for a revoked subject.
+	 * @param subject Subject (sub) of the tokens.
+	 * @return Entry identifier.
+	 */
+	public static String subjectEntry(String subject) {
+		return SUBJECT_PREFIX + subject;
+	}
+
+	/**
+	 * Adds a revocation. Existing revocations with the same identifier are replaced if the new one is more recent.
+	 * @param id Entry identifier as returned by {@link #tokenEntry(String)} or {@link #subjectEntry(String)}.
+	 * @param revokedAt Time of the revocation in milliseconds since epoch. It is truncated to seconds.
+	 * @param expires Time in milliseconds since epoch after which the entry is obsolete.
+	 */
+	public synchronized void add(String id, long revokedAt, long expires) {
+		long revokedAtSeconds = revokedAt / 1000;
+		Entry current = entries.get(id);
+		if (current != null && current.revokedAt >= revokedAtSeconds) {
+			return;
+		}
+		entries.put(id, new Entry(revokedAtSeconds, expires));
+		if (entries.size() > filter.getCapacity()) {
+			rebuildFilter();
+		} else {
+			filter.put(id);
+		}
+	}
+
+	/**
+	 * Checks if a token has been revoked.
+	 * @param claims Claims of the token.
+	 * @return <code>true</code> if either the token or all tokens of its subject have been revoked, otherwise <code>false</code>. Tokens issued in the same second as the revocation of their subject are revoked.
+	 */
+	public boolean isRevoked(JsonObject claims) {
+		String tokenId = claims.getString("jti");
+		String subject = claims.getString("sub");
+		BloomFilter currentFilter = filter;
+		boolean tokenCandidate = tokenId != null && currentFilter.mightContain(tokenEntry(tokenId));
+		boolean subjectCandidate = subject != null && currentFilter.mightContain(subjectEntry(subject));
+		if (!tokenCandidate && !subjectCandidate) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (tokenCandidate) {
+			Entry entry = entries.get(tokenEntry(tokenId));
+			if (entry != null && entry.expires > now) return true;
+		}
+		if (subjectCandidate) {
+			Entry entry = entries.get(subjectEntry(subject));
+			Long issuedAt = claims.getLong("iat");
+			if (entry != null && entry.expires > now && (issuedAt == null || issuedAt <= entry.revokedAt)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes obsolete entries and rebuilds the bloom filter.
+	 * @return Number of removed entries.
+	 */
+	public synchronized int purgeExpired() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue().expires <= now) {
+				iterator.remove();
+				count++;
+			}
+		}
+		if (count > 0) rebuildFilter();
+		return count;
+	}
+
+	/**
+	 * Returns the number of revocations.
+	 * @return Number of entries, including obsolete entries not purged yet.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private void rebuildFilter() {
+		BloomFilter newFilter = new BloomFilter(Math.max(MIN_CAPACITY, entries.size() * 2), FALSE_POSITIVE_PROBABILITY);
+		for (String id : entries.keySet()) {
+			newFilter.put(id);
+		}
+		filter = newFilter;
+	}
+}
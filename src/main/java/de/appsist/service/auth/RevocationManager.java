@@ -0,0 +1,114 @@
+package de.appsist.service.auth;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import de.appsist.service.auth.connector.MongoDBConnector;
+
+/**
+ * Manager for token revocations.
+ * Revocations are applied to the revocation list of the token manager, stored in MongoDB and published to all service instances.
+ * On startup, the revocations which are still relevant are loaded from the database.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class RevocationManager {
+	private static final Logger logger = LoggerFactory.getLogger(RevocationManager.class);
+	public static final String ADDRESS = MainVerticle.SERVICE_ID + ":revocations";
+	private static final String COLLECTION = "revocations";
+	
+	private final MongoDBConnector mongo;
+	private final EventBus eventBus;
+	private final TokenManager tokenManager;
+	private final RevocationList revocations;
+	
+	public RevocationManager(MongoDBConnector mongoConnector, EventBus eventBus, TokenManager tokenManager) {
+		this.mongo = mongoConnector;
+		this.eventBus = eventBus;
+		this.tokenManager = tokenManager;
+		this.revocations = tokenManager.getRevocationList();
+		eventBus.registerHandler(ADDRESS, new Handler<Message<JsonObject>>() {
+			
+			@Override
+			public void handle(Message<JsonObject> message) {
+				apply(message.body());
+			}
+		});
+		loadRevocations();
+	}
+	
+	private void loadRevocations() {
+		JsonObject matcher = new JsonObject()
+			.putObject("expires", new JsonObject().putNumber("$gt", System.currentTimeMillis()));
+		mongo.find(COLLECTION, matcher, new JsonObject().putNumber("_id", 0), new AsyncResultHandler<JsonArray>() {
+			
+			@Override
+			public void handle(AsyncResult<JsonArray> result) {
+				if (result.succeeded()) {
+					for (Object entry : result.result()) {
+						apply((JsonObject) entry);
+					}
+				} else {
+					logger.warn("Failed to load token revocations: " + result.cause().getMessage());
+				}
+			}
+		});
+	}
+	
+	private void apply(JsonObject entry) {
+		revocations.add(entry.getString("id"), entry.getLong("revokedAt"), entry.getLong("expires"));
+	}
+	
+	/**
+	 * Revokes a single token.
+	 * @param claims Claims of the token to revoke. Requires the token identifier (jti) and expiration time (exp).
+	 * @param resultHandler Handler to check if the revocation has been stored. May be <code>null</code>.
+	 */
+	public void revokeToken(JsonObject claims, AsyncResultHandler<Void> resultHandler) {
+		long expires = (claims.getLong("exp") + TokenManager.ALLOWED_CLOCK_SKEW_SECONDS) * 1000;
+		revoke(RevocationList.tokenEntry(claims.getString("jti")), expires, resultHandler);
+	}
+	
+	/**
+	 * Revokes all tokens issued for a subject until now.
+	 * @param subject Subject of the tokens to revoke.
+	 * @param resultHandler Handler to check if the revocation has been stored. May be <code>null</code>.
+	 */
+	public void revokeSubject(String subject, AsyncResultHandler<Void> resultHandler) {
+		revoke(RevocationList.subjectEntry(subject), System.currentTimeMillis() + tokenManager.getMaxTokenAge(), resultHandler);
+	}
+	
+	private void revoke(String id, long expires, AsyncResultHandler<Void> resultHandler) {
+		JsonObject entry = new JsonObject()
+			.putString("id", id)
+			.putNumber("revokedAt", System.currentTimeMillis())
+			.putNumber("expires", expires);
+		apply(entry);
+		eventBus.publish(ADDRESS, entry);
+		mongo.update(COLLECTION, new JsonObject().putString("id", id), entry, true, false, resultHandler);
+	}
+	
+	/**
+	 * Removes revocations of tokens which expired in the meantime, both from memory and from the database.
+	 */
+	public void purgeExpired() {
+		revocations.purgeExpired();
+		JsonObject matcher = new JsonObject()
+			.putObject("expires", new JsonObject().putNumber("$lte", System.currentTimeMillis()));
+		mongo.delete(COLLECTION, matcher, new AsyncResultHandler<Integer>() {
+			
+			@Override
+			public void handle(AsyncResult<Integer> event) {
+				if (event.failed()) {
+					logger.warn("Failed to purge token revocations: " + event.cause().getMessage());
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,407 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.shareddata.Shareable;
+
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.SessionOwnership;
+import de.appsist.service.auth.model.View;
+
+/**
+ * Bounded in-memory cache for sessions.
+ * The cache is shared between all service instances of a JVM using the Vert.x shared data. Cached session objects are never modified, changes replace the entry with a modified copy.
+ * Callers always receive copies they are free to modify.
+ * The ownership of sessions is cached for authorization checks, it is derived from the session if the session itself is cached.
+ * Session data is cached separately from the sessions, in the form of data documents: a JSON object with the field "data" holding all data of the session, or an empty object if no data has been stored.
+ * Sessions which have been created but not yet written to the store are held as pending sessions. They are returned like cached sessions, but are never evicted and are kept if the cache is disabled.
+ * Each change of the cache increments a version of the session. Entries loaded from the store are only added if the version did not change since the load started, so a load cannot overwrite the result of a concurrent write.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionCache implements Shareable {
+	private static final int VERSION_STRIPES = 1024;
+
+	private final int maxSize;
+	private final ConcurrentMap<String, Session> sessions;
+	private final ConcurrentMap<String, SessionOwnership> owners;
+	private final ConcurrentMap<String, JsonObject> data;
+	private final ConcurrentMap<String, Session> pending;
+	private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES); // sessions share a version if their identifiers collide
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Modification of a cached session.
+	 */
+	private interface Modification {
+		void apply(Session session);
+	}
+
+
+	/**
+	 * Creates a session cache.
+	 * @param maxSize Maximum number of sessions to keep. 0 disables the cache.
+	 */
+	public SessionCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.sessions = new ConcurrentHashMap<>(Math.max(16, maxSize), 0.75f, 16);
+		this.owners = new ConcurrentHashMap<>(16, 0.75f, 16);
+		this.data = new ConcurrentHashMap<>(16, 0.75f, 16);
+		this.pending = new ConcurrentHashMap<>(16, 0.75f, 16);
+	}
+
+	/**
+	 * Returns a cached session.
+	 * @param sessionId ID of the session.
+	 * @return Copy of the session or <code>null</code> if the session is neither cached nor pending.
+	 */
+	public Session get(String sessionId) {
+		Session session = sessions.get(sessionId);
+		if (session == null) session = pending.get(sessionId);
+		if (session == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new Session(session);
+	}
+
+	/**
+	 * Adds or replaces a session. A pending session with the same identifier is removed, as the session has been written to the store.
+	 * @param session Session to cache. A copy is stored.
+	 */
+	public void put(Session session) {
+		changed(session.getId());
+		pending.remove(session.getId());
+		if (maxSize <= 0) return;
+		if (sessions.size() >= maxSize && !sessions.containsKey(session.getId())) {
+			evict(sessions);
+		}
+		sessions.put(session.getId(), new Session(session));
+		owners.remove(session.getId());
+	}
+
+	/**
+	 * Adds a session loaded from the store. The session is not added if it is already cached or has been changed since the load started.
+	 * @param session Loaded session. A copy is stored.
+	 * @param version Version of the session when the load started, see {@link #getVersion(String)}.
+	 * @return <code>true</code> if the session has not been changed since the load started, otherwise <code>false</code>.
+	 */
+	public boolean putLoaded(Session session, long version) {
+		String sessionId = session.getId();
+		if (getVersion(sessionId) != version) return false;
+		if (maxSize <= 0) return true;
+		if (sessions.size() >= maxSize && !sessions.containsKey(sessionId)) {
+			evict(sessions);
+		}
+		if (sessions.putIfAbsent(sessionId, new Session(session)) != null) return false;
+		owners.remove(sessionId);
+		return revokeIfChanged(sessions, sessionId, version);
+	}
+
+	/**
+	 * Returns the version of a session. The version is incremented with each change of the session in the cache, even if the session is not cached.
+	 * @param sessionId ID of the session.
+	 * @return Current version.
+	 */
+	public long getVersion(String sessionId) {
+		return versions.get(stripe(sessionId));
+	}
+
+	private void changed(String sessionId) {
+		versions.incrementAndGet(stripe(sessionId));
+	}
+
+	private static int stripe(String sessionId) {
+		return (sessionId.hashCode() & 0x7fffffff) % VERSION_STRIPES;
+	}
+
+	/**
+	 * Removes a loaded entry again if the session has been changed while it was added. Changes check for cached entries after incrementing the version, so the entry is either removed here or changed with the session.
+	 * @return <code>true</code> if the entry has been kept, otherwise <code>false</code>.
+	 */
+	private boolean revokeIfChanged(ConcurrentMap<String, ?> entries, String sessionId, long version) {
+		if (getVersion(sessionId) == version) return true;
+		entries.remove(sessionId);
+		return false;
+	}
+
+	/**
+	 * Adds a session which has not been written to the store yet.
+	 * @param session Session to add. A copy is stored.
+	 */
+	public void putPending(Session session) {
+		pending.put(session.getId(), new Session(session));
+	}
+
+	/**
+	 * Returns a pending session.
+	 * @param sessionId ID of the session.
+	 * @return Copy of the session or <code>null</code> if the session is not pending.
+	 */
+	public Session getPending(String sessionId) {
+		Session session = pending.get(sessionId);
+		return session != null ? new Session(session) : null;
+	}
+
+	/**
+	 * Checks if a session has not been written to the store yet.
+	 * @param sessionId ID of the session.
+	 * @return <code>true</code> if the session is pending, otherwise <code>false</code>.
+	 */
+	public boolean isPending(String sessionId) {
+		return pending.containsKey(sessionId);
+	}
+
+	/**
+	 * Removes a pending session.
+	 * @param sessionId ID of the session.
+	 */
+	public void removePending(String sessionId) {
+		pending.remove(sessionId);
+	}
+
+	/**
+	 * Returns the identifiers of all pending sessions.
+	 * @return List of session identifiers.
+	 */
+	public List<String> getPendingIds() {
+		return new ArrayList<>(pending.keySet());
+	}
+
+	/**
+	 * Returns the ownership of a cached session.
+	 * @param sessionId ID of the session.
+	 * @return Ownership of the session or <code>null</code> if neither the session nor its ownership is cached.
+	 */
+	public SessionOwnership getOwnership(String sessionId) {
+		Session session = sessions.get(sessionId);
+		if (session == null) session = pending.get(sessionId);
+		if (session != null) {
+			hits.incrementAndGet();
+			return new SessionOwnership(session);
+		}
+		SessionOwnership ownership = owners.get(sessionId);
+		if (ownership != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return ownership;
+	}
+
+	/**
+	 * Adds the ownership of a session loaded from the store. The ownership is not added if the session has been changed since the load started.
+	 * @param ownership Ownership to cache.
+	 * @param version Version of the session when the load started, see {@link #getVersion(String)}.
+	 */
+	public void putLoadedOwnership(SessionOwnership ownership, long version) {
+		String sessionId = ownership.getSessionId();
+		if (maxSize <= 0 || getVersion(sessionId) != version) return;
+		if (owners.size() >= maxSize && !owners.containsKey(sessionId)) {
+			evict(owners);
+		}
+		if (owners.putIfAbsent(sessionId, ownership) == null) {
+			revokeIfChanged(owners, sessionId, version);
+		}
+	}
+
+	/**
+	 * Removes a session, its ownership and its data. A pending session is kept, as it would be lost otherwise.
+	 * @param sessionId ID of the session.
+	 */
+	public void remove(String sessionId) {
+		changed(sessionId);
+		sessions.remove(sessionId);
+		owners.remove(sessionId);
+		data.remove(sessionId);
+	}
+
+	/**
+	 * Removes all sessions, pending sessions, ownerships and data.
+	 */
+	public void clear() {
+		pending.clear();
+		sessions.clear();
+		owners.clear();
+		data.clear();
+	}
+
+	/**
+	 * Returns fields of the cached data of a session.
+	 * @param sessionId ID of the session.
+	 * @param fieldNames Names of the fields to return, <code>null</code> to return all fields.
+	 * @return Data document with the fields available in its "data" field, an empty object if no data has been stored or <code>null</code> if the data is not cached.
+	 */
+	public JsonObject getData(String sessionId, Collection<String> fieldNames) {
+		JsonObject document = data.get(sessionId);
+		if (document == null) return null;
+		JsonObject sessionData = document.getObject("data");
+		if (sessionData == null) return new JsonObject();
+		if (fieldNames == null) return new JsonObject().putObject("data", sessionData.copy());
+		JsonObject fields = new JsonObject();
+		for (String fieldName : fieldNames) {
+			if (sessionData.containsField(fieldName)) {
+				fields.putValue(fieldName, copyOf(sessionData.getValue(fieldName)));
+			}
+		}
+		return new JsonObject().putObject("data", fields);
+	}
+
+	/**
+	 * Adds the data of a session loaded from the store. The data is not added if it is already cached or the session has been changed since the load started.
+	 * @param sessionId ID of the session.
+	 * @param sessionData All data of the session, <code>null</code> if no data has been stored. A copy is stored.
+	 * @param version Version of the session when the load started, see {@link #getVersion(String)}.
+	 */
+	public void putLoadedData(String sessionId, JsonObject sessionData, long version) {
+		if (maxSize <= 0 || getVersion(sessionId) != version) return;
+		if (data.size() >= maxSize && !data.containsKey(sessionId)) {
+			evict(data);
+		}
+		if (data.putIfAbsent(sessionId, sessionData != null ? new JsonObject().putObject("data", sessionData.copy()) : new JsonObject()) == null) {
+			revokeIfChanged(data, sessionId, version);
+		}
+	}
+
+	/**
+	 * Returns all cached sessions.
+	 * @return Unmodifiable view of the cached sessions. The sessions must not be modified.
+	 */
+	public Collection<Session> values() {
+		return Collections.unmodifiableCollection(sessions.values());
+	}
+
+	/**
+	 * Sets and removes fields of cached session data. Data not cached is not affected.
+	 * @param sessionId ID of the session.
+	 * @param storedFields Fields to add to or replace in the session data.
+	 * @param deletedFields Names of the data fields to delete.
+	 */
+	public void updateData(String sessionId, JsonObject storedFields, Collection<String> deletedFields) {
+		changed(sessionId);
+		JsonObject current, modified;
+		do {
+			current = data.get(sessionId);
+			if (current == null) return;
+			JsonObject sessionData = current.getObject("data");
+			sessionData = sessionData != null ? sessionData.copy() : new JsonObject();
+			for (String fieldName : storedFields.getFieldNames()) {
+				sessionData.putValue(fieldName, copyOf(storedFields.getValue(fieldName)));
+			}
+			for (String fieldName : deletedFields) {
+				sessionData.removeField(fieldName);
+			}
+			modified = new JsonObject().putObject("data", sessionData);
+		} while (!data.replace(sessionId, current, modified));
+	}
+
+	private static Object copyOf(Object value) {
+		if (value instanceof JsonObject) return ((JsonObject) value).copy();
+		if (value instanceof JsonArray) return ((JsonArray) value).copy();
+		return value;
+	}
+
+	/**
+	 * Sets the last activity of a cached session. Sessions not cached are not affected.
+	 * @param sessionId ID of the session.
+	 * @param lastActivity Time in milliseconds since epoch.
+	 */
+	public void setLastActivity(String sessionId, final long lastActivity) {
+		changed(sessionId);
+		modify(sessionId, new Modification() {
+
+			@Override
+			public void apply(Session session) {
+				session.setLastActivity(lastActivity);
+			}
+		});
+	}
+
+	/**
+	 * Adds a view to a cached session. Sessions not cached are not affected. A cached ownership of the session is removed.
+	 * @param sessionId ID of the session.
+	 * @param view View to add.
+	 */
+	public void registerView(String sessionId, final View view) {
+		changed(sessionId);
+		owners.remove(sessionId);
+		modify(sessionId, new Modification() {
+
+			@Override
+			public void apply(Session session) {
+				session.registerView(view);
+			}
+		});
+	}
+
+	/**
+	 * Removes a view from a cached session. Sessions not cached are not affected. A cached ownership of the session is removed.
+	 * @param sessionId ID of the session.
+	 * @param viewId ID of the view to remove.
+	 */
+	public void removeView(String sessionId, final String viewId) {
+		changed(sessionId);
+		owners.remove(sessionId);
+		modify(sessionId, new Modification() {
+
+			@Override
+			public void apply(Session session) {
+				session.removeView(viewId);
+			}
+		});
+	}
+
+	private void modify(String sessionId, Modification modification) {
+		Session current, modified;
+		do {
+			current = sessions.get(sessionId);
+			if (current == null) return;
+			modified = new Session(current);
+			modification.apply(modified);
+		} while (!sessions.replace(sessionId, current, modified));
+	}
+
+	/**
+	 * Removes entries until 90 percent of the capacity is reached.
+	 */
+	private void evict(ConcurrentMap<String, ?> entries) {
+		int target = maxSize - Math.max(1, maxSize / 10);
+		Iterator<String> iterator = entries.keySet().iterator();
+		while (entries.size() > target && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the statistics of the cache.
+	 * @return JSON object with the fields size, ownershipSize, dataSize, pendingSize, maxSize, hits, misses, hitRatio and evictions.
+	 */
+	public JsonObject getStatistics() {
+		long hitCount = hits.get();
+		long requests = hitCount + misses.get();
+		return new JsonObject()
+			.putNumber("size", sessions.size())
+			.putNumber("ownershipSize", owners.size())
+			.putNumber("dataSize", data.size())
+			.putNumber("pendingSize", pending.size())
+			.putNumber("maxSize", maxSize)
+			.putNumber("hits", hitCount)
+			.putNumber("misses", misses.get())
+			.putNumber("hitRatio", requests > 0 ? (double) hitCount / requests : 0.0)
+			.putNumber("evictions", evictions.get());
+	}
+}
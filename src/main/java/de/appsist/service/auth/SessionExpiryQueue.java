@@ -0,0 +1,157 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.vertx.java.core.shareddata.Shareable;
+
+/**
+ * Deadline ordered queue for the expiry of online sessions.
+ * A session expires if it has not been active for the configured timeout. The queue is also used for views sending heartbeats, keyed by session and view identifier. Activities only update the last activity of a session, the deadline in the queue is adjusted lazily when it is reached.
+ * Polling the queue therefore only touches sessions which are due, independent of the number of sessions tracked.
+ * The queue is shared between all service instances of a JVM.
+ * @param <K> Type of the keys of tracked entries, which must implement equals and hashCode.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionExpiryQueue<K> implements Shareable {
+	private final long timeout;
+	private final ConcurrentMap<K, Tracking> trackedSessions = new ConcurrentHashMap<>();
+	private final PriorityQueue<Deadline<K>> deadlines = new PriorityQueue<>(); // guarded by this
+
+	/**
+	 * Activity of a tracked session.
+	 */
+	private static class Tracking {
+		private volatile long lastActivity;
+
+		private Tracking(long lastActivity) {
+			this.lastActivity = lastActivity;
+		}
+	}
+
+	/**
+	 * Queue entry. Entries are discarded when they refer to a tracking which is no longer current.
+	 */
+	private static class Deadline<K> implements Comparable<Deadline<K>> {
+		private final long time;
+		private final K sessionId;
+		private final Tracking tracking;
+
+		private Deadline(long time, K sessionId, Tracking tracking) {
+			this.time = time;
+			this.sessionId = sessionId;
+			this.tracking = tracking;
+		}
+
+		@Override
+		public int compareTo(Deadline<K> other) {
+			return Long.compare(time, other.time);
+		}
+	}
+
+	/**
+	 * Creates an expiry queue.
+	 * @param timeout Duration in milliseconds after which an inactive session expires.
+	 */
+	public SessionExpiryQueue(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Starts tracking a session. If the session is already tracked, its last activity is updated.
+	 * @param sessionId ID of the session.
+	 * @param lastActivity Last activity of the session in milliseconds since epoch.
+	 */
+	public void track(K sessionId, long lastActivity) {
+		Tracking tracking = new Tracking(lastActivity);
+		Tracking existing = trackedSessions.putIfAbsent(sessionId, tracking);
+		if (existing != null) {
+			touch(sessionId, lastActivity);
+			return;
+		}
+		synchronized (this) {
+			deadlines.add(new Deadline<>(lastActivity + timeout, sessionId, tracking));
+			if (deadlines.size() > 2 * trackedSessions.size() + 1024) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Removes entries of sessions no longer tracked before their deadline is reached.
+	 */
+	private void compact() {
+		List<Deadline<K>> current = new ArrayList<>(deadlines.size());
+		for (Deadline<K> deadline : deadlines) {
+			if (trackedSessions.get(deadline.sessionId) == deadline.tracking) current.add(deadline);
+		}
+		deadlines.clear();
+		deadlines.addAll(current);
+	}
+
+	/**
+	 * Records an activity of a session. Sessions not tracked are not affected.
+	 * @param sessionId ID of the session.
+	 * @param time Time of the activity in milliseconds since epoch.
+	 * @return <code>true</code> if the session is tracked, otherwise <code>false</code>.
+	 */
+	public boolean touch(K sessionId, long time) {
+		Tracking tracking = trackedSessions.get(sessionId);
+		if (tracking == null) return false;
+		if (time > tracking.lastActivity) {
+			tracking.lastActivity = time;
+		}
+		return true;
+	}
+
+	/**
+	 * Stops tracking a session.
+	 * @param sessionId ID of the session.
+	 */
+	public void untrack(K sessionId) {
+		trackedSessions.remove(sessionId);
+	}
+
+	/**
+	 * Removes all sessions whose deadline has been reached.
+	 * Sessions active in the meantime are rescheduled.
+	 * @param now Current time in milliseconds since epoch.
+	 * @return IDs of the expired sessions. The sessions are no longer tracked.
+	 */
+	public synchronized List<K> poll(long now) {
+		List<K> expiredSessions = new ArrayList<>();
+		while (!deadlines.isEmpty() && deadlines.peek().time <= now) {
+			Deadline<K> deadline = deadlines.poll();
+			if (trackedSessions.get(deadline.sessionId) != deadline.tracking) {
+				// Session is no longer tracked or has been tracked again.
+				continue;
+			}
+			long time = deadline.tracking.lastActivity + timeout;
+			if (time > now) {
+				deadlines.add(new Deadline<>(time, deadline.sessionId, deadline.tracking));
+			} else if (trackedSessions.remove(deadline.sessionId, deadline.tracking)) {
+				expiredSessions.add(deadline.sessionId);
+			}
+		}
+		return expiredSessions;
+	}
+
+	/**
+	 * Returns the timeout for inactive sessions.
+	 * @return Duration in milliseconds.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of tracked sessions.
+	 * @return Number of sessions.
+	 */
+	public int size() {
+		return trackedSessions.size();
+	}
+}
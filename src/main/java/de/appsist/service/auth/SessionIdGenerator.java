@@ -0,0 +1,46 @@
+package de.appsist.service.auth;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generator for session identifiers.
+ * Identifiers are random (version 4) UUIDs like the ones of {@link UUID#randomUUID()}, which shares a single random number generator between all threads.
+ * Each thread uses its own SHA1PRNG generator instead, seeded once from the system, so generating identifiers neither blocks nor contends on the event loop.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public final class SessionIdGenerator {
+	private static final ThreadLocal<SecureRandom> randoms = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			SecureRandom random;
+			try {
+				random = SecureRandom.getInstance("SHA1PRNG");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA1PRNG is not supported.", e);
+			}
+			byte[] seed = new byte[32];
+			new SecureRandom().nextBytes(seed);
+			random.setSeed(seed);
+			return random;
+		}
+	};
+
+	private SessionIdGenerator() {
+	}
+
+	/**
+	 * Generates a new session identifier.
+	 * @return Random UUID string.
+	 */
+	public static String nextId() {
+		byte[] bytes = new byte[16];
+		randoms.get().nextBytes(bytes);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long mostSigBits = (buffer.getLong() & ~0xf000L) | 0x4000L; // version 4
+		long leastSigBits = (buffer.getLong() & ~0xc000000000000000L) | 0x8000000000000000L; // IETF variant
+		return new UUID(mostSigBits, leastSigBits).toString();
+	}
+}
@@ -0,0 +1,179 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.shareddata.Shareable;
+
+/**
+ * Filter to reject requests for unknown sessions without accessing the session store.
+ * A bloom filter holds the identifiers of all sessions which have been stored. It is built from the session store at startup and rebuilt whenever more sessions have been added than it has been sized for. Until the first build is completed, the bloom filter rejects no session.
+ * Deleted sessions stay in the bloom filter until the next rebuild. They are kept in a negative cache for a short time, as are identifiers which have not been found in the store.
+ * The filter is shared between all service instances of a JVM using the Vert.x shared data. It requires that all sessions are created by this JVM.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionLookupFilter implements Shareable {
+	private static final int MIN_CAPACITY = 1024;
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+	private static final int MAX_UNKNOWN = 10000;
+
+	private final boolean enabled;
+	private final long unknownTtl;
+	private final ConcurrentMap<String, Long> unknown = new ConcurrentHashMap<>(); // session id -> expiry
+	private volatile BloomFilter filter; // null until the first build is completed
+	private int added; // number of sessions added to the filter, guarded by this
+	private List<String> addedDuringRebuild; // null if no rebuild is running, guarded by this
+	private final AtomicLong filterRejections = new AtomicLong();
+	private final AtomicLong unknownRejections = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+
+	/**
+	 * Creates a lookup filter.
+	 * @param enabled If <code>false</code>, the bloom filter is never built. Has to be disabled if sessions are created outside of this JVM.
+	 * @param unknownTtl Time in milliseconds unknown sessions are rejected without accessing the store. 0 disables the negative cache.
+	 */
+	public SessionLookupFilter(boolean enabled, long unknownTtl) {
+		this.enabled = enabled;
+		this.unknownTtl = unknownTtl;
+	}
+
+	/**
+	 * Checks if a session is known not to exist.
+	 * @param sessionId ID of the session.
+	 * @return <code>true</code> if the session does definitely not exist, <code>false</code> if it may exist.
+	 */
+	public boolean isUnknown(String sessionId) {
+		BloomFilter current = filter;
+		if (current != null && !current.mightContain(sessionId)) {
+			filterRejections.incrementAndGet();
+			return true;
+		}
+		if (unknownTtl > 0) {
+			Long expires = unknown.get(sessionId);
+			if (expires != null) {
+				if (expires > System.currentTimeMillis()) {
+					unknownRejections.incrementAndGet();
+					return true;
+				}
+				unknown.remove(sessionId, expires);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a session which has been created or stored.
+	 * @param sessionId ID of the session.
+	 * @return <code>true</code> if the filter exceeds its capacity and should be rebuilt, otherwise <code>false</code>.
+	 */
+	public synchronized boolean add(String sessionId) {
+		unknown.remove(sessionId);
+		if (addedDuringRebuild != null) {
+			addedDuringRebuild.add(sessionId);
+		}
+		if (filter == null) {
+			return false;
+		}
+		filter.put(sessionId);
+		added++;
+		return added > filter.getCapacity() && addedDuringRebuild == null;
+	}
+
+	/**
+	 * Adds a session which is known not to exist, e.g., because it has been deleted or has not been found in the store.
+	 * @param sessionId ID of the session.
+	 */
+	public void addUnknown(String sessionId) {
+		if (unknownTtl <= 0) {
+			return;
+		}
+		if (unknown.size() >= MAX_UNKNOWN) {
+			purgeUnknown();
+		}
+		unknown.put(sessionId, System.currentTimeMillis() + unknownTtl);
+	}
+
+	/**
+	 * Removes expired entries of the negative cache and further entries until 90 percent of the capacity is reached.
+	 */
+	private void purgeUnknown() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> iterator = unknown.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue() <= now) iterator.remove();
+		}
+		int target = MAX_UNKNOWN - MAX_UNKNOWN / 10;
+		Iterator<String> keys = unknown.keySet().iterator();
+		while (unknown.size() > target && keys.hasNext()) {
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	/**
+	 * Starts a rebuild of the bloom filter. Sessions added until the rebuild is completed are included in the new filter.
+	 * @return <code>true</code> if the caller has to scan the session identifiers and complete the rebuild, <code>false</code> if the filter is disabled or another rebuild is running.
+	 */
+	public synchronized boolean startRebuild() {
+		if (!enabled || addedDuringRebuild != null) {
+			return false;
+		}
+		addedDuringRebuild = new ArrayList<>();
+		return true;
+	}
+
+	/**
+	 * Completes a rebuild of the bloom filter.
+	 * @param sessionIds Identifiers of all sessions in the store.
+	 */
+	public synchronized void completeRebuild(Collection<String> sessionIds) {
+		if (addedDuringRebuild == null) {
+			return;
+		}
+		int count = sessionIds.size() + addedDuringRebuild.size();
+		BloomFilter rebuilt = new BloomFilter(Math.max(MIN_CAPACITY, 2 * count), FALSE_POSITIVE_PROBABILITY);
+		for (String sessionId : sessionIds) {
+			rebuilt.put(sessionId);
+		}
+		for (String sessionId : addedDuringRebuild) {
+			rebuilt.put(sessionId);
+		}
+		filter = rebuilt;
+		added = count;
+		addedDuringRebuild = null;
+		rebuilds.incrementAndGet();
+	}
+
+	/**
+	 * Aborts a rebuild of the bloom filter, e.g., because the session identifiers could not be scanned. The current filter is kept.
+	 */
+	public synchronized void abortRebuild() {
+		addedDuringRebuild = null;
+	}
+
+	/**
+	 * Returns the statistics of the filter.
+	 * @return JSON object with the fields enabled, ready, capacity, sessions, unknownSize, filterRejections, unknownRejections, rejections and rebuilds.
+	 */
+	public synchronized JsonObject getStatistics() {
+		long rejectedByFilter = filterRejections.get();
+		long rejectedAsUnknown = unknownRejections.get();
+		return new JsonObject()
+			.putBoolean("enabled", enabled)
+			.putBoolean("ready", filter != null)
+			.putNumber("capacity", filter != null ? filter.getCapacity() : 0)
+			.putNumber("sessions", added)
+			.putNumber("unknownSize", unknown.size())
+			.putNumber("filterRejections", rejectedByFilter)
+			.putNumber("unknownRejections", rejectedAsUnknown)
+			.putNumber("rejections", rejectedByFilter + rejectedAsUnknown)
+			.putNumber("rebuilds", rebuilds.get());
+	}
+}
@@ -1,69 +1,297 @@
 package de.appsist.service.auth;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.EventBus;
-import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.core.logging.impl.LoggerFactory;
 
 import de.appsist.commons.event.AppsistEvent;
 import de.appsist.commons.event.UserOfflineEvent;
-import de.appsist.service.auth.connector.MongoDBConnector;
 import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.SessionOwnership;
 import de.appsist.service.auth.model.View;
+import de.appsist.service.auth.store.SessionStore;
 
 /**
  * Manager for sessions.
- * The manager stores the session in a MongoDB instance. All operations are asynchronous.
+ * The manager stores the sessions in a {@link SessionStore}. All operations are asynchronous.
+ * Sessions are cached in memory. Reads are served from the cache if possible, writes update both the database and the cache.
+ * Reads do not write to the database. The last activity of sessions is recorded by an {@link ActivityTracker} and written in batches.
+ * On startup, sessions are either purged or restored from the database or a local {@link SessionSnapshot}, see {@link StartupMode}.
+ * Users are mapped to their sessions by a {@link UserSessionIndex} if enabled, user status requests are then answered without database access.
+ * Online sessions expire if they are inactive for a given period, see {@link SessionExpiryQueue}. Views sending heartbeats are removed if they miss them.
+ * Mutations of a session are executed in the order they have been requested using a {@link SessionMutationQueue}. Consecutive data changes of a session are written with a single update.
  * @author simon.schwantzer(at)im-c.de
  */
 public class SessionManager {
 	private static final Logger logger = LoggerFactory.getLogger(SessionManager.class);
+	private static final String SESSION_NOT_FOUND = "Session not found.";
+	private static final int MAX_PENDING_WRITES = 32;
 	
-	private final MongoDBConnector mongo;
+	private final SessionStore store;
 	private final EventBus eventBus;
+	private final SessionCache cache;
+	private final ActivityTracker activityTracker;
+	private final SessionMutationQueue mutations;
+	private final UserSessionIndex userIndex;
+	private final SessionExpiryQueue<String> expiryQueue;
+	private final SessionExpiryQueue<ViewKey> heartbeatQueue;
+	private final SessionLookupFilter lookupFilter;
+	private final boolean lazyCreate;
+	private final Queue<String> pendingWrites = new ConcurrentLinkedQueue<>(); // pending sessions to write with the flush
+	private final Set<String> queuedPendingWrites = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicInteger pendingWritesInFlight = new AtomicInteger();
+	private final AtomicBoolean startingPendingWrites = new AtomicBoolean();
+	private final Queue<Handler<Void>> drainHandlers = new ConcurrentLinkedQueue<>(); // notified when no pending writes are queued or in flight
+	private final Handler<Void> pendingWriteCompleted = new Handler<Void>() {
+		
+		@Override
+		public void handle(Void event) {
+			pendingWritesInFlight.decrementAndGet();
+			startPendingWrites();
+			notifyDrained();
+		}
+	};
 	
-	public SessionManager(MongoDBConnector mongoConnector, EventBus eventBus) {
-		this.mongo = mongoConnector;
+	/**
+	 * Creates a session manager.
+	 * @param store Store for the sessions.
+	 * @param eventBus Event bus to publish online and offline events.
+	 * @param cache Session cache, shared by all service instances of the JVM.
+	 * @param mutations Queue to order session mutations, shared by all service instances of the JVM.
+	 * @param userIndex Index of user sessions, shared by all service instances of the JVM.
+	 * @param expiryQueue Queue for the expiry of online sessions, shared by all service instances of the JVM.
+	 * @param heartbeatQueue Queue for the expiry of views sending heartbeats, shared by all service instances of the JVM.
+	 * @param lookupFilter Filter to reject unknown sessions without database access, shared by all service instances of the JVM.
+	 * @param activityLagSeconds Maximum age of the last activity stored in the database for active sessions, see {@link ActivityTracker}.
+	 * @param lazyCreate If <code>true</code>, new sessions are written to the store before their first change or with the next activity flush instead of on creation.
+	 */
+	public SessionManager(SessionStore store, EventBus eventBus, SessionCache cache, SessionMutationQueue mutations, UserSessionIndex userIndex, SessionExpiryQueue<String> expiryQueue, SessionExpiryQueue<ViewKey> heartbeatQueue, SessionLookupFilter lookupFilter, int activityLagSeconds, boolean lazyCreate) {
+		this.store = store;
 		this.eventBus = eventBus;
-		removeOldSessions();
+		this.cache = cache;
+		this.mutations = mutations;
+		this.userIndex = userIndex;
+		this.expiryQueue = expiryQueue;
+		this.heartbeatQueue = heartbeatQueue;
+		this.lookupFilter = lookupFilter;
+		this.lazyCreate = lazyCreate;
+		this.activityTracker = new ActivityTracker(store, cache, userIndex, activityLagSeconds);
+	}
+	
+	/**
+	 * Modes to initialize the sessions on startup.
+	 */
+	public enum StartupMode {
+		/** Delete all sessions. */
+		PURGE,
+		/** Delete stale sessions and load all others from the database. */
+		RELOAD,
+		/** Delete stale sessions and load all others from the local snapshot. Falls back to {@link #RELOAD} if no snapshot is available. */
+		SNAPSHOT
 	}
 	
-	private void removeOldSessions() {
-		mongo.delete("sessions", new JsonObject(), new AsyncResultHandler<Integer>() {
+	/**
+	 * Initializes the sessions. Should only be called once per JVM, by the first service instance.
+	 * @param mode Startup mode.
+	 * @param snapshot Local session snapshot. Required for {@link StartupMode#SNAPSHOT}, otherwise ignored.
+	 * @param maxInactivity Duration in milliseconds after which an inactive session is stale. 0 means sessions are never stale.
+	 * @param resultHandler Handler to return the number of sessions loaded.
+	 */
+	public void initialize(final StartupMode mode, final SessionSnapshot snapshot, long maxInactivity, final AsyncResultHandler<Integer> resultHandler) {
+		if (mode == StartupMode.PURGE) {
+			store.deleteAll(new AsyncResultHandler<Integer>() {
+				
+				@Override
+				public void handle(AsyncResult<Integer> deleteRequest) {
+					if (deleteRequest.succeeded()) {
+						cache.clear();
+						userIndex.clear();
+						int deletedSessions = deleteRequest.result();
+						if (deletedSessions > 0) logger.debug("Purged " + deletedSessions + " old sessions.");
+					}
+					resultHandler.handle(createCount(deleteRequest.succeeded() ? 0 : null, deleteRequest.cause()));
+				}
+			});
+			return;
+		}
+		// Timestamps are compared as ISO 8601 strings, the same way the database does.
+		final String staleBefore = maxInactivity > 0 ? ISODateTimeFormat.dateTime().print(System.currentTimeMillis() - maxInactivity) : null;
+		store.migrateData(new AsyncResultHandler<Integer>() {
 			
 			@Override
-			public void handle(AsyncResult<Integer> event) {
-				if (event.succeeded()) {
-					int deletedSessions = event.result();
-					if (deletedSessions > 0) logger.debug("Purged " + deletedSessions + " old sessions.");
-				} else {
-					logger.warn("Failed to purge old sessions: " + event.cause().getMessage());
+			public void handle(AsyncResult<Integer> migrateRequest) {
+				if (migrateRequest.failed()) {
+					resultHandler.handle(createCount(null, migrateRequest.cause()));
+					return;
+				}
+				if (migrateRequest.result() > 0) {
+					logger.info("Moved the data of " + migrateRequest.result() + " sessions stored by a former version.");
+				}
+				loadSessions(mode, snapshot, staleBefore, resultHandler);
+			}
+		});
+	}
+	
+	private void loadSessions(final StartupMode mode, final SessionSnapshot snapshot, final String staleBefore, final AsyncResultHandler<Integer> resultHandler) {
+		deleteStaleSessions(staleBefore, new AsyncResultHandler<Integer>() {
+			
+			@Override
+			public void handle(AsyncResult<Integer> deleteRequest) {
+				if (deleteRequest.failed()) {
+					logger.warn("Failed to delete stale sessions: " + deleteRequest.cause().getMessage());
+				} else if (deleteRequest.result() > 0) {
+					logger.debug("Deleted " + deleteRequest.result() + " stale sessions.");
+				}
+				if (mode == StartupMode.SNAPSHOT && snapshot.exists()) {
+					try {
+						long started = System.nanoTime();
+						int count = restoreSessions(snapshot.consume(), staleBefore);
+						logger.info("Restored " + count + " sessions from snapshot " + snapshot + " in " + (System.nanoTime() - started) / 1000000 + " ms.");
+						resultHandler.handle(createCount(count, null));
+						return;
+					} catch (IOException e) {
+						logger.warn("Failed to read session snapshot, reloading sessions from database.", e);
+					}
+				}
+				reloadSessions(staleBefore, resultHandler);
+			}
+		});
+	}
+	
+	private void deleteStaleSessions(String staleBefore, AsyncResultHandler<Integer> resultHandler) {
+		if (staleBefore == null) {
+			resultHandler.handle(createCount(0, null));
+			return;
+		}
+		store.deleteInactive(staleBefore, resultHandler);
+	}
+	
+	/**
+	 * Loads all user sessions and online sessions from the store into the user index and the expiry queue.
+	 */
+	private void reloadSessions(final String staleBefore, final AsyncResultHandler<Integer> resultHandler) {
+		final long started = System.nanoTime();
+		store.scan(new AsyncResultHandler<List<JsonObject>>() {
+			
+			@Override
+			public void handle(AsyncResult<List<JsonObject>> loadRequest) {
+				if (loadRequest.failed()) {
+					resultHandler.handle(createCount(null, loadRequest.cause()));
+					return;
 				}
+				int count = restoreSessions(loadRequest.result(), staleBefore);
+				logger.info("Reloaded " + count + " sessions in " + (System.nanoTime() - started) / 1000000 + " ms.");
+				resultHandler.handle(createCount(count, null));
 			}
 		});
 	}
 	
+	/**
+	 * Adds sessions to the user index and the expiry queue. Stale sessions are skipped.
+	 * The session cache is not filled, sessions are cached when they are accessed.
+	 * @return Number of sessions restored.
+	 */
+	private int restoreSessions(List<JsonObject> sessions, String staleBefore) {
+		long staleBeforeMillis = staleBefore != null ? ISODateTimeFormat.dateTime().parseMillis(staleBefore) : 0;
+		int count = 0;
+		for (JsonObject sessionObject : sessions) {
+			Session session = new Session(sessionObject);
+			long lastActivity = session.getLastActivityMillis();
+			if (lastActivity > 0 && lastActivity < staleBeforeMillis) continue;
+			userIndex.update(session);
+			trackExpiry(session);
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes the state of the sessions held in memory to a local snapshot.
+	 * The snapshot contains all user sessions and all cached online sessions. Session data is not included.
+	 * @param snapshot Snapshot to write.
+	 * @return Number of sessions written.
+	 * @throws IOException Failed to write the snapshot.
+	 */
+	public int writeSnapshot(SessionSnapshot snapshot) throws IOException {
+		Map<String, JsonObject> sessions = new LinkedHashMap<>();
+		for (Session session : cache.values()) {
+			if (session.hasView()) sessions.put(session.getId(), session.asJson());
+		}
+		for (JsonObject session : userIndex.getSessions()) {
+			sessions.put(session.getString("id"), session);
+		}
+		snapshot.write(sessions.values());
+		return sessions.size();
+	}
+	
 	/**
 	 * Creates a new session.
+	 * If sessions are created lazily, the session is returned immediately and kept as pending session in the cache until it is written to the store.
 	 * @param resultHandler Handler for retrieving the newly created session.
 	 */
 	public void createSession(final AsyncResultHandler<Session> resultHandler) {
-		String sessionId = UUID.randomUUID().toString();
+		String sessionId = SessionIdGenerator.nextId();
 		final Session session = new Session(sessionId);
 		session.update();
-		mongo.save("sessions", session.asJson(), new AsyncResultHandler<Void>() {
+		activityTracker.persisted(sessionId, System.currentTimeMillis());
+		addToLookupFilter(sessionId);
+		if (lazyCreate) {
+			cache.putPending(session);
+			resultHandler.handle(new AsyncResult<Session>() {
+				
+				@Override
+				public boolean succeeded() {
+					return true;
+				}
+				
+				@Override
+				public Session result() {
+					return session;
+				}
+				
+				@Override
+				public boolean failed() {
+					return false;
+				}
+				
+				@Override
+				public Throwable cause() {
+					return null;
+				}
+			});
+			return;
+		}
+		store.put(session.asJson(), new AsyncResultHandler<Void>() {
 			
 			@Override
 			public void handle(final AsyncResult<Void> result) {
+				if (result.succeeded()) {
+					cache.put(session);
+				}
 				resultHandler.handle(new AsyncResult<Session>() {
 					
 					@Override
@@ -92,23 +320,284 @@ public class SessionManager {
 	
 	/**
 	 * Stores a session.
+	 * Data given with the session is written within the same mutation, like with {@link #storeData(String, JsonObject, AsyncResultHandler)}: The given fields are set, other stored fields are kept.
 	 * @param session Session to store.
+	 * @param data Data to store in the session. May be <code>null</code>.
 	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
 	 */
-	public void storeSession(Session session, final AsyncResultHandler<Void> resultHandler) {
+	public void storeSession(final Session session, final JsonObject data, final AsyncResultHandler<Void> resultHandler) {
 		session.update();
-		mongo.update("sessions", new JsonObject().putString("id", session.getId()), session.asJson(), true, false, resultHandler);
+		final JsonObject sessionObject = session.asJson();
+		mutations.submit(session.getId(), new SessionMutationQueue.Mutation() {
+			
+			@Override
+			protected void execute(final Handler<Void> completionHandler) {
+				final String sessionId = session.getId();
+				activityTracker.persisted(sessionId, System.currentTimeMillis());
+				addToLookupFilter(sessionId);
+				store.put(sessionObject, writeThrough(sessionId, new Runnable() {
+					
+					@Override
+					public void run() {
+						cache.put(session);
+						userIndex.update(session);
+						trackExpiry(session);
+					}
+				}, new AsyncResultHandler<Void>() {
+					
+					@Override
+					public void handle(AsyncResult<Void> writeRequest) {
+						if (writeRequest.failed() || data == null) {
+							completing(resultHandler, completionHandler).handle(writeRequest);
+							return;
+						}
+						final List<String> deletedFields = Collections.emptyList();
+						store.updateData(sessionId, data, deletedFields, writeThrough(sessionId, new Runnable() {
+							
+							@Override
+							public void run() {
+								cache.updateData(sessionId, data, deletedFields);
+							}
+						}, completing(resultHandler, completionHandler)));
+					}
+				}));
+			}
+		});
 	}
 	
 	/**
 	 * Updates the last activity information of a session.
+	 * The activity is recorded in memory and written to the database with the next flush of the activity tracker.
 	 * @param sessionId ID of the session to indicate activity.
 	 */
 	public void updateSession(String sessionId) {
-		JsonObject newObj = new JsonObject();
-		String now = ISODateTimeFormat.dateTime().print(new DateTime());
-		newObj.putObject("$set", new JsonObject().putString("lastActivity", now));
-		mongo.update("sessions", new JsonObject().putString("id", sessionId), newObj, false, false, null);
+		activityTracker.touch(sessionId);
+		expiryQueue.touch(sessionId, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Tracks the expiry of a session if it has views registered.
+	 */
+	private void trackExpiry(Session session) {
+		if (session.hasView()) {
+			long lastActivity = session.getLastActivityMillis();
+			expiryQueue.track(session.getId(), lastActivity > 0 ? lastActivity : System.currentTimeMillis());
+		} else {
+			expiryQueue.untrack(session.getId());
+		}
+	}
+	
+	/**
+	 * Writes the recorded session activities and the pending sessions to the database.
+	 * Pending sessions are written through the mutation queue like any other change, with at most {@value #MAX_PENDING_WRITES} writes in flight. Sessions not written until the next flush stay queued.
+	 */
+	public void flushActivity() {
+		flushActivity(null);
+	}
+	
+	/**
+	 * Writes the recorded session activities and the pending sessions to the database, see {@link #flushActivity()}.
+	 * @param resultHandler Handler to be notified when the activities have been written and no more pending writes are queued or in flight. Fails if an activity or a pending session could not be written. May be <code>null</code>.
+	 */
+	public void flushActivity(final AsyncResultHandler<Void> resultHandler) {
+		final List<String> pendingIds = cache.getPendingIds();
+		final AtomicInteger pending = new AtomicInteger(2);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		activityTracker.flush(new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> flushRequest) {
+				if (flushRequest.failed()) failure.compareAndSet(null, flushRequest.cause());
+				if (pending.decrementAndGet() == 0 && resultHandler != null) {
+					resultHandler.handle(createVoid(failure.get()));
+				}
+			}
+		});
+		for (String sessionId : pendingIds) {
+			if (queuedPendingWrites.add(sessionId)) {
+				pendingWrites.add(sessionId);
+			}
+		}
+		if (resultHandler != null) {
+			drainHandlers.add(new Handler<Void>() {
+				
+				@Override
+				public void handle(Void event) {
+					int unwritten = 0;
+					for (String sessionId : pendingIds) {
+						if (cache.isPending(sessionId)) unwritten++;
+					}
+					if (unwritten > 0) failure.compareAndSet(null, new Throwable("Failed to write " + unwritten + " pending session(s)."));
+					if (pending.decrementAndGet() == 0) {
+						resultHandler.handle(createVoid(failure.get()));
+					}
+				}
+			});
+		}
+		startPendingWrites();
+		notifyDrained();
+	}
+	
+	/**
+	 * Notifies the drain handlers if no pending writes are queued or in flight.
+	 */
+	private void notifyDrained() {
+		if (!pendingWrites.isEmpty() || pendingWritesInFlight.get() > 0) return;
+		Handler<Void> handler;
+		while ((handler = drainHandlers.poll()) != null) {
+			handler.handle(null);
+		}
+	}
+	
+	/**
+	 * Starts queued writes of pending sessions until the maximum number of writes is in flight.
+	 * Writes completed synchronously do not start further writes recursively, the loop of the caller continues instead.
+	 */
+	private void startPendingWrites() {
+		while (startingPendingWrites.compareAndSet(false, true)) {
+			try {
+				while (pendingWritesInFlight.get() < MAX_PENDING_WRITES) {
+					String sessionId = pendingWrites.poll();
+					if (sessionId == null) break;
+					queuedPendingWrites.remove(sessionId);
+					pendingWritesInFlight.incrementAndGet();
+					mutations.submit(sessionId, new PersistMutation(sessionId, pendingWriteCompleted));
+				}
+			} finally {
+				startingPendingWrites.set(false);
+			}
+			// A write completed while the loop was finishing may not have been able to start the next one.
+			if (pendingWrites.isEmpty() || pendingWritesInFlight.get() >= MAX_PENDING_WRITES) return;
+		}
+	}
+	
+	/**
+	 * Submits a mutation of a session. A pending session is written to the store before the mutation is executed.
+	 */
+	private void submit(String sessionId, SessionMutationQueue.Mutation mutation) {
+		if (cache.isPending(sessionId)) {
+			mutations.submit(sessionId, new PersistMutation(sessionId, null));
+		}
+		mutations.submit(sessionId, mutation);
+	}
+	
+	/**
+	 * Write of a pending session. Does nothing if the session has been written or deleted meanwhile.
+	 * If the write fails, the session is kept pending and written with the next flush.
+	 */
+	private class PersistMutation extends SessionMutationQueue.Mutation {
+		private final String sessionId;
+		private final Handler<Void> writeHandler;
+		
+		/**
+		 * @param writeHandler Handler to call after the mutation is completed. May be <code>null</code>.
+		 */
+		private PersistMutation(String sessionId, Handler<Void> writeHandler) {
+			this.sessionId = sessionId;
+			this.writeHandler = writeHandler;
+		}
+		
+		@Override
+		protected void execute(final Handler<Void> completionHandler) {
+			final Session session = cache.getPending(sessionId);
+			if (session == null) {
+				complete(completionHandler);
+				return;
+			}
+			store.put(session.asJson(), new AsyncResultHandler<Void>() {
+				
+				@Override
+				public void handle(AsyncResult<Void> writeRequest) {
+					try {
+						if (writeRequest.succeeded()) {
+							cache.put(session);
+						} else {
+							logger.warn("Failed to write pending session " + sessionId + ": " + writeRequest.cause().getMessage());
+						}
+					} finally {
+						complete(completionHandler);
+					}
+				}
+			});
+		}
+		
+		private void complete(Handler<Void> completionHandler) {
+			completionHandler.handle(null);
+			if (writeHandler != null) writeHandler.handle(null);
+		}
+	}
+	
+	/**
+	 * Adds a session to the lookup filter and rebuilds the filter if it exceeds its capacity.
+	 */
+	private void addToLookupFilter(String sessionId) {
+		if (lookupFilter.add(sessionId)) {
+			rebuildLookupFilter();
+		}
+	}
+	
+	/**
+	 * Rebuilds the filter to reject unknown sessions from the identifiers of all stored sessions.
+	 * Should be called once the sessions have been initialized. Does nothing if the filter is disabled or already being rebuilt.
+	 */
+	public void rebuildLookupFilter() {
+		if (!lookupFilter.startRebuild()) {
+			return;
+		}
+		final long started = System.nanoTime();
+		store.scanIds(new AsyncResultHandler<List<String>>() {
+			
+			@Override
+			public void handle(AsyncResult<List<String>> scanRequest) {
+				if (scanRequest.failed()) {
+					lookupFilter.abortRebuild();
+					logger.warn("Failed to rebuild session lookup filter: " + scanRequest.cause().getMessage());
+					return;
+				}
+				lookupFilter.completeRebuild(scanRequest.result());
+				logger.debug("Rebuilt session lookup filter with " + scanRequest.result().size() + " sessions in " + (System.nanoTime() - started) / 1000000 + " ms.");
+			}
+		});
+	}
+	
+	/**
+	 * Creates a handler updating the cache after a database write.
+	 * If the write fails, the session is removed from the cache as its state is unknown.
+	 * @param sessionId ID of the session written.
+	 * @param cacheUpdate Update to apply to the cache if the write succeeded.
+	 * @param resultHandler Handler to forward the result to. May be <code>null</code>.
+	 * @return Handler for the database write.
+	 */
+	private AsyncResultHandler<Void> writeThrough(final String sessionId, final Runnable cacheUpdate, final AsyncResultHandler<Void> resultHandler) {
+		return new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> writeRequest) {
+				if (writeRequest.succeeded()) {
+					cacheUpdate.run();
+				} else {
+					cache.remove(sessionId);
+				}
+				if (resultHandler != null) resultHandler.handle(writeRequest);
+			}
+		};
+	}
+	
+	/**
+	 * Wraps a result handler to complete a session mutation after the result has been handled.
+	 */
+	private static <T> AsyncResultHandler<T> completing(final AsyncResultHandler<T> resultHandler, final Handler<Void> completionHandler) {
+		return new AsyncResultHandler<T>() {
+			
+			@Override
+			public void handle(AsyncResult<T> result) {
+				try {
+					if (resultHandler != null) resultHandler.handle(result);
+				} finally {
+					completionHandler.handle(null);
+				}
+			}
+		};
 	}
 	
 	/**
@@ -116,37 +605,72 @@ public class SessionManager {
 	 * @param sessionId ID of the session to return.
 	 * @param resultHandler Handler for the asynchronous request.
 	 */
-	public void getSession(String sessionId, final AsyncResultHandler<Session> resultHandler) {
-		JsonObject keys = new JsonObject().putNumber("_id", 0);
-		mongo.findOne("sessions", new JsonObject().putString("id", sessionId), keys, new AsyncResultHandler<JsonObject>() {
+	public void getSession(final String sessionId, final AsyncResultHandler<Session> resultHandler) {
+		final Session cachedSession = cache.get(sessionId);
+		if (cachedSession != null) {
+			updateSession(sessionId);
+			resultHandler.handle(new AsyncResult<Session>() {
+				
+				@Override
+				public boolean succeeded() {
+					return true;
+				}
+				
+				@Override
+				public Session result() {
+					return cachedSession;
+				}
+				
+				@Override
+				public boolean failed() {
+					return false;
+				}
+				
+				@Override
+				public Throwable cause() {
+					return null;
+				}
+			});
+			return;
+		}
+		if (lookupFilter.isUnknown(sessionId)) {
+			resultHandler.handle(SessionManager.<Session>createNotFound());
+			return;
+		}
+		final long version = cache.getVersion(sessionId);
+		store.get(sessionId, new AsyncResultHandler<JsonObject>() {
 			@Override
 			public void handle(final AsyncResult<JsonObject> result) {
+				final Session session = result.succeeded() && result.result() != null ? new Session(result.result()) : null;
+				if (result.succeeded() && session == null) {
+					lookupFilter.addUnknown(sessionId);
+				}
+				if (session != null) {
+					if (cache.putLoaded(session, version)) {
+						userIndex.update(session);
+					}
+					updateSession(session.getId());
+				}
 				resultHandler.handle(new AsyncResult<Session>() {
 					
 					@Override
 					public boolean succeeded() {
-						return result.succeeded();
+						return session != null;
 					}
 					
 					@Override
 					public Session result() {
-						if (succeeded()) {
-							Session session = new Session(result.result());
-							updateSession(session.getId());
-							return session;
-						} else {
-							return null;
-						}
+						return session;
 					}
 					
 					@Override
 					public boolean failed() {
-						return result.failed();
+						return !succeeded();
 					}
 					
 					@Override
 					public Throwable cause() {
-						return result.cause();
+						return result.failed() ? result.cause() : (failed() ? new Throwable(SESSION_NOT_FOUND) : null);
 					}
 				});
 			}
@@ -154,43 +678,76 @@ public class SessionManager {
 	}
 	
 	/**
-	 * Return the session for a specific user.
-	 * @param userId User identifier.
-	 * @param resultHandler Handler for the asynchronous result. 
+	 * Returns the ownership of a session, which is sufficient to authorize requests for the session.
+	 * The ownership is retrieved from the cache or with a projection of the session, the views and data of the session are not loaded.
+	 * @param sessionId ID of the session.
+	 * @param resultHandler Handler for the asynchronous request.
 	 */
-	public void getSessionForUser(String userId, final AsyncResultHandler<Session> resultHandler) {
-		JsonObject keys = new JsonObject().putNumber("_id", 0);
-
-		mongo.findOne("sessions", new JsonObject().putString("userId", userId), keys, new AsyncResultHandler<JsonObject>() {
+	public void getOwnership(final String sessionId, final AsyncResultHandler<SessionOwnership> resultHandler) {
+		final SessionOwnership cachedOwnership = cache.getOwnership(sessionId);
+		if (cachedOwnership != null) {
+			updateSession(sessionId);
+			resultHandler.handle(new AsyncResult<SessionOwnership>() {
+				
+				@Override
+				public boolean succeeded() {
+					return true;
+				}
+				
+				@Override
+				public SessionOwnership result() {
+					return cachedOwnership;
+				}
+				
+				@Override
+				public boolean failed() {
+					return false;
+				}
+				
+				@Override
+				public Throwable cause() {
+					return null;
+				}
+			});
+			return;
+		}
+		if (lookupFilter.isUnknown(sessionId)) {
+			resultHandler.handle(SessionManager.<SessionOwnership>createNotFound());
+			return;
+		}
+		final long version = cache.getVersion(sessionId);
+		store.getOwnership(sessionId, new AsyncResultHandler<JsonObject>() {
 			
 			@Override
 			public void handle(final AsyncResult<JsonObject> result) {
-				resultHandler.handle(new AsyncResult<Session>() {
+				final SessionOwnership ownership = result.succeeded() && result.result() != null ? new SessionOwnership(result.result()) : null;
+				if (result.succeeded() && ownership == null) {
+					lookupFilter.addUnknown(sessionId);
+				}
+				if (ownership != null) {
+					cache.putLoadedOwnership(ownership, version);
+					updateSession(ownership.getSessionId());
+				}
+				resultHandler.handle(new AsyncResult<SessionOwnership>() {
 					
 					@Override
 					public boolean succeeded() {
-						return result.succeeded();
+						return ownership != null;
 					}
 					
 					@Override
-					public Session result() {
-						if (succeeded() && result.result() != null) {
-							Session session = new Session(result.result());
-							updateSession(session.getId());
-							return session;
-						} else {
-							return null;
-						}
+					public SessionOwnership result() {
+						return ownership;
 					}
 					
 					@Override
 					public boolean failed() {
-						return result.failed();
+						return !succeeded();
 					}
 					
 					@Override
 					public Throwable cause() {
-						return result.cause();
+						return result.failed() ? result.cause() : (failed() ? new Throwable(SESSION_NOT_FOUND) : null);
 					}
 				});
 			}
@@ -198,254 +755,322 @@ public class SessionManager {
 	}
 	
 	/**
-	 * Deletes a session.
-	 * @param sessionId ID of the session to delete.
-	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
-	 */
-	public void deleteSession(String sessionId, final AsyncResultHandler<Integer> resultHandler) {
-		mongo.delete("sessions", new JsonObject().putString("id", sessionId), resultHandler);
-	}
-	
-	/**
-	 * Registers a view in a session. 
-	 * @param sessionId ID of the session the view should be registered in.
-	 * @param view View to register.
-	 * @param resultHandler Handler to return the updated session object.
+	 * Return the session for a specific user.
+	 * The session is looked up in the user index, users without session are answered without database access. If the index is disabled, the session is looked up in the store.
+	 * @param userId User identifier.
+	 * @param resultHandler Handler for the asynchronous result. 
 	 */
-	public void registerView(String sessionId, final View view, final AsyncResultHandler<Session> resultHandler) {
-		final JsonObject matcher = new JsonObject().putString("id", sessionId);
-		final JsonObject keys = new JsonObject().putNumber("_id", 0);
-		mongo.findOne("sessions", matcher, keys, new AsyncResultHandler<JsonObject>() {
-			
-			@Override
-			public void handle(final AsyncResult<JsonObject> loadRequest) {
-				if (loadRequest.succeeded()) {
-					final Session session = new Session(loadRequest.result());
-					for (View viewInSession : session.getViews()) {
-						if (viewInSession.getDeviceClass().equals(view.getDeviceClass())) {
-							resultHandler.handle(new AsyncResult<Session>() {
-								
-								@Override
-								public boolean succeeded() {
-									return false;
-								}
-								
-								@Override
-								public Session result() {
-									return null;
-								}
-								
-								@Override
-								public boolean failed() {
-									return true;
-								}
-								
-								@Override
-								public Throwable cause() {
-									return new Throwable("The user is already logged in with a similar device.");
-								}
-							});
-							return;
-						}
+	public void getSessionForUser(final String userId, final AsyncResultHandler<Session> resultHandler) {
+		if (!userIndex.isEnabled()) {
+			store.getByUser(userId, new AsyncResultHandler<JsonObject>() {
+				
+				@Override
+				public void handle(final AsyncResult<JsonObject> result) {
+					final Session session = result.succeeded() && result.result() != null ? new Session(result.result()) : null;
+					if (session != null) {
+						updateSession(session.getId());
 					}
-					session.registerView(view);
-					mongo.update("sessions", matcher, session.asJson(), false, false, new AsyncResultHandler<Void>() {
-						
-						@Override
-						public void handle(final AsyncResult<Void> updateRequest) {
-							resultHandler.handle(new AsyncResult<Session>() {
-								
-								@Override
-								public boolean succeeded() {
-									return updateRequest.succeeded();
-								}
-								
-								@Override
-								public Session result() {
-									return succeeded() ? session : null;
-								}
-								
-								@Override
-								public boolean failed() {
-									return !succeeded();
-								}
-								
-								@Override
-								public Throwable cause() {
-									return failed() ? updateRequest.cause() : null;
-								}
-							});
-						}
-					});
-				} else {
 					resultHandler.handle(new AsyncResult<Session>() {
 						
 						@Override
 						public boolean succeeded() {
-							return false;
+							return result.succeeded();
 						}
 						
 						@Override
 						public Session result() {
-							return null;
+							return session;
 						}
 						
 						@Override
 						public boolean failed() {
-							return true;
+							return result.failed();
 						}
 						
 						@Override
 						public Throwable cause() {
-							return loadRequest.cause();
+							return result.cause();
 						}
 					});
 				}
-			}
-		});
-		/* Won't work because a bug in mongo-persistor < 2.1.2 prevents using find_and_modify.
-		JsonObject update = new JsonObject();
-		update.putObject("$addToSet", new JsonObject().putArray("views", new JsonArray().addObject(view.asJson())));
-		String now = ISODateTimeFormat.dateTime().print(new DateTime());
-		update.putObject("$set", new JsonObject().putString("lastActivity", now));
-		mongo.findAndModify("sessions", new JsonObject().putString("id", sessionId), update, false, false, new AsyncResultHandler<JsonObject>() {
+			});
+			return;
+		}
+		final String sessionId = userIndex.getSessionId(userId);
+		if (sessionId == null) {
+			resultHandler.handle(new AsyncResult<Session>() {
+				
+				@Override
+				public boolean succeeded() {
+					return true;
+				}
+				
+				@Override
+				public Session result() {
+					return null;
+				}
+				
+				@Override
+				public boolean failed() {
+					return false;
+				}
+				
+				@Override
+				public Throwable cause() {
+					return null;
+				}
+			});
+			return;
+		}
+		getSession(sessionId, new AsyncResultHandler<Session>() {
 			
 			@Override
-			public void handle(final AsyncResult<JsonObject> result) {
-				resultHandler.handle(new AsyncResult<Session>() {
-					
-					@Override
-					public boolean succeeded() {
-						return result.succeeded();
-					}
-					
-					@Override
-					public Session result() {
-						return succeeded() ? new Session(result.result()) : null;
-					}
-					
-					@Override
-					public boolean failed() {
-						return result.failed();
-					}
-					
-					@Override
-					public Throwable cause() {
-						return result.cause();
-					}
-				});
+			public void handle(final AsyncResult<Session> result) {
+				if (result.failed() && SESSION_NOT_FOUND.equals(result.cause().getMessage())) {
+					// Session has been removed meanwhile, try again with the index updated.
+					userIndex.remove(sessionId);
+					getSessionForUser(userId, resultHandler);
+				} else {
+					resultHandler.handle(result);
+				}
 			}
 		});
-		*/
 	}
 	
 	/**
-	 * Removes a view from a session.
-	 * @param sessionId ID of the session to remove view from.
-	 * @param viewId ID of the view to remove.
-	 * @param resultHandler Handler to return the updated session object. May be <code>null</code>.
+	 * Returns the online status of a user.
+	 * The status is read from the user index without accessing the database. If the index is disabled, it is derived from the session of the user, see {@link #getSessionForUser(String, AsyncResultHandler)}.
+	 * @param userId ID of the user.
+	 * @param resultHandler Handler for a JSON object with the fields isOnline and lastActivity. For online users, sessionId and views are set.
 	 */
-	public void removeView( String sessionId, final String viewId, final AsyncResultHandler<Session> resultHandler) {
-		final JsonObject matcher = new JsonObject().putString("id", sessionId);
-		final JsonObject keys = new JsonObject().putNumber("_id", 0);
-		mongo.findOne("sessions", matcher, keys, new AsyncResultHandler<JsonObject>() {
+	public void getUserStatus(String userId, final AsyncResultHandler<JsonObject> resultHandler) {
+		if (userIndex.isEnabled()) {
+			resultHandler.handle(createStatus(userIndex.getStatus(userId), null));
+			return;
+		}
+		getSessionForUser(userId, new AsyncResultHandler<Session>() {
 			
 			@Override
-			public void handle(final AsyncResult<JsonObject> loadRequest) {
-				if (loadRequest.succeeded()) {
-					final Session session = new Session(loadRequest.result());
-					session.removeView(viewId);
-					mongo.update("sessions", matcher, session.asJson(), false, false, new AsyncResultHandler<Void>() {
-						
-						@Override
-						public void handle(final AsyncResult<Void> updateRequest) {
-							if (updateRequest.succeeded()) {
-								sendOfflineEvent(session.getId(), session.getUserId(), viewId);
-							}
-							if (resultHandler != null) resultHandler.handle(new AsyncResult<Session>() {
-								
-								@Override
-								public boolean succeeded() {
-									return updateRequest.succeeded();
-								}
-								
-								@Override
-								public Session result() {
-									return succeeded() ? session : null;
-								}
-								
-								@Override
-								public boolean failed() {
-									return !succeeded();
-								}
-								
-								@Override
-								public Throwable cause() {
-									return failed() ? updateRequest.cause() : null;
-								}
-							});
-						}
-					});
+			public void handle(AsyncResult<Session> sessionRequest) {
+				if (sessionRequest.failed()) {
+					resultHandler.handle(createStatus(null, sessionRequest.cause()));
 				} else {
-					if (resultHandler != null) resultHandler.handle(new AsyncResult<Session>() {
-						
-						@Override
-						public boolean succeeded() {
-							return false;
-						}
-						
-						@Override
-						public Session result() {
-							return null;
-						}
-						
-						@Override
-						public boolean failed() {
-							return true;
-						}
+					resultHandler.handle(createStatus(UserSessionIndex.getStatus(sessionRequest.result()), null));
+				}
+			}
+		});
+	}
+	
+	private static AsyncResult<JsonObject> createStatus(final JsonObject status, final Throwable cause) {
+		return new AsyncResult<JsonObject>() {
+			
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+			
+			@Override
+			public JsonObject result() {
+				return status;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+	
+	/**
+	 * Deletes a session.
+	 * @param sessionId ID of the session to delete.
+	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
+	 */
+	public void deleteSession(final String sessionId, final AsyncResultHandler<Integer> resultHandler) {
+		mutations.submit(sessionId, new SessionMutationQueue.Mutation() {
+			
+			@Override
+			protected void execute(Handler<Void> completionHandler) {
+				cache.remove(sessionId);
+				cache.removePending(sessionId);
+				userIndex.remove(sessionId);
+				lookupFilter.addUnknown(sessionId);
+				activityTracker.forget(sessionId);
+				expiryQueue.untrack(sessionId);
+				store.delete(sessionId, completing(resultHandler, completionHandler));
+			}
+		});
+	}
+	
+	/**
+	 * Registers a view in a session.
+	 * The view is added with a single conditional update which fails if the session already contains a view of the same device class. Concurrent registrations of similar devices cannot overwrite each other.
+	 * The update returns the updated session, the session is only loaded again to report why a registration failed.
+	 * @param sessionId ID of the session the view should be registered in.
+	 * @param view View to register.
+	 * @param resultHandler Handler to return the updated session object.
+	 */
+	public void registerView(final String sessionId, final View view, final AsyncResultHandler<Session> resultHandler) {
+		submit(sessionId, new SessionMutationQueue.Mutation() {
+			
+			@Override
+			protected void execute(Handler<Void> completionHandler) {
+				executeRegisterView(sessionId, view, completing(resultHandler, completionHandler));
+			}
+		});
+	}
+	
+	private void executeRegisterView(final String sessionId, final View view, final AsyncResultHandler<Session> resultHandler) {
+		store.addView(sessionId, view.asJson(), new AsyncResultHandler<JsonObject>() {
+			
+			@Override
+			public void handle(final AsyncResult<JsonObject> updateRequest) {
+				if (updateRequest.failed()) {
+					cache.remove(sessionId);
+					resultHandler.handle(createFailure(updateRequest.cause()));
+				} else if (updateRequest.result() != null) {
+					cache.registerView(sessionId, view);
+					userIndex.addView(sessionId, view);
+					expiryQueue.track(sessionId, System.currentTimeMillis());
+					updateSession(sessionId);
+					resultHandler.handle(createSuccess(new Session(updateRequest.result())));
+				} else {
+					// Nothing matched: Either the session does not exist or a similar device is already registered.
+					getSession(sessionId, new AsyncResultHandler<Session>() {
 						
 						@Override
-						public Throwable cause() {
-							return loadRequest.cause();
+						public void handle(AsyncResult<Session> loadRequest) {
+							if (loadRequest.succeeded()) {
+								resultHandler.handle(createFailure(new Throwable("The user is already logged in with a similar device.")));
+							} else {
+								resultHandler.handle(loadRequest);
+							}
 						}
 					});
 				}
 			}
 		});
-		/*
-		JsonObject update = new JsonObject();
-		update.putObject("$pull", new JsonObject().putObject("views", new JsonObject().putString("id", viewId)));
-		String now = ISODateTimeFormat.dateTime().print(new DateTime());
-		update.putObject("$set", new JsonObject().putString("lastActivity", now));
-		mongo.findAndModify("sessions", new JsonObject().putString("id", sessionId), update, true, false, new AsyncResultHandler<JsonObject>() {
+	}
+	
+	/**
+	 * Removes a view from a session.
+	 * The view is removed with a single update of the session, which returns the updated session.
+	 * @param sessionId ID of the session to remove view from.
+	 * @param viewId ID of the view to remove.
+	 * @param resultHandler Handler to return the updated session object. May be <code>null</code>.
+	 */
+	public void removeView(final String sessionId, final String viewId, final AsyncResultHandler<Session> resultHandler) {
+		submit(sessionId, new SessionMutationQueue.Mutation() {
 			
 			@Override
-			public void handle(final AsyncResult<JsonObject> result) {
-				resultHandler.handle(new AsyncResult<Session>() {
-					
-					@Override
-					public boolean succeeded() {
-						return result.succeeded();
-					}
-					
-					@Override
-					public Session result() {
-						return succeeded() ? new Session(result.result()) : null;
-					}
-					
-					@Override
-					public boolean failed() {
-						return result.failed();
-					}
-					
-					@Override
-					public Throwable cause() {
-						return result.cause();
-					}
-				});
+			protected void execute(Handler<Void> completionHandler) {
+				executeRemoveView(sessionId, viewId, completing(resultHandler, completionHandler));
+			}
+		});
+	}
+	
+	private void executeRemoveView(final String sessionId, final String viewId, final AsyncResultHandler<Session> resultHandler) {
+		store.removeView(sessionId, viewId, new AsyncResultHandler<JsonObject>() {
+			
+			@Override
+			public void handle(final AsyncResult<JsonObject> updateRequest) {
+				if (updateRequest.failed()) {
+					cache.remove(sessionId);
+					resultHandler.handle(createFailure(updateRequest.cause()));
+				} else if (updateRequest.result() != null) {
+					Session session = new Session(updateRequest.result());
+					cache.removeView(sessionId, viewId);
+					userIndex.removeView(sessionId, viewId);
+					heartbeatQueue.untrack(new ViewKey(sessionId, viewId));
+					updateSession(sessionId);
+					sendOfflineEvent(sessionId, session.getUserId(), viewId);
+					trackExpiry(session);
+					resultHandler.handle(createSuccess(session));
+				} else {
+					resultHandler.handle(createFailure(new Throwable(SESSION_NOT_FOUND)));
+				}
 			}
 		});
-		*/
+	}
+	
+	private static <T> AsyncResult<T> createNotFound() {
+		return new AsyncResult<T>() {
+			
+			@Override
+			public boolean succeeded() {
+				return false;
+			}
+			
+			@Override
+			public T result() {
+				return null;
+			}
+			
+			@Override
+			public boolean failed() {
+				return true;
+			}
+			
+			@Override
+			public Throwable cause() {
+				return new Throwable(SESSION_NOT_FOUND);
+			}
+		};
+	}
+	
+	private static AsyncResult<Session> createSuccess(final Session session) {
+		return new AsyncResult<Session>() {
+			
+			@Override
+			public boolean succeeded() {
+				return true;
+			}
+			
+			@Override
+			public Session result() {
+				return session;
+			}
+			
+			@Override
+			public boolean failed() {
+				return false;
+			}
+			
+			@Override
+			public Throwable cause() {
+				return null;
+			}
+		};
+	}
+	
+	private static AsyncResult<Session> createFailure(final Throwable cause) {
+		return new AsyncResult<Session>() {
+			
+			@Override
+			public boolean succeeded() {
+				return false;
+			}
+			
+			@Override
+			public Session result() {
+				return null;
+			}
+			
+			@Override
+			public boolean failed() {
+				return true;
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
 	}
 	
 	/**
@@ -454,44 +1079,71 @@ public class SessionManager {
 	 * @param data Data to store. All fields of the object will be stored, existing fields will be updated.
 	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
 	 */
-	public void storeData(String sessionId, JsonObject data, final AsyncResultHandler<Void> resultHandler) {
-		JsonObject update = new JsonObject();
-		JsonObject dataUpdates = new JsonObject(); 
-		for (String fieldName : data.getFieldNames()) {
-			dataUpdates.putValue("data." + fieldName, data.getValue(fieldName));
-		}
-		update.putObject("$set", dataUpdates);
-		mongo.update("sessions", new JsonObject().putString("id", sessionId), update, false, false, resultHandler);
+	public void storeData(final String sessionId, final JsonObject data, final AsyncResultHandler<Void> resultHandler) {
+		submit(sessionId, new DataMutation(sessionId, data, null, resultHandler));
 	}
 	
 	/**
 	 * Retrieves data from a session.
 	 * @param sessionId ID of the session to retrieve data from.
-	 * @param fieldNames Name of the fields to retrieve.
+	 * @param fieldNames Name of the fields to retrieve, <code>null</code> to retrieve all data.
 	 * @param resultHandler Handler for the result, a JSON object with a field "data" containing the requested fields.
 	 */
-	public void getData(String sessionId, List<String> fieldNames, final AsyncResultHandler<JsonObject> resultHandler) {
-		JsonObject matcher = new JsonObject();
-		matcher.putString("id", sessionId);
-		JsonObject keys = new JsonObject();
-		keys.putNumber("_id", 0);
-		for (String fieldName : fieldNames) {
-			keys.putNumber("data." + fieldName, 1);
+	public void getData(final String sessionId, final List<String> fieldNames, final AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject cachedData = cache.getData(sessionId, fieldNames);
+		if (cachedData != null) {
+			// Same result as the projection in the database query: null if no data has been stored at all.
+			final JsonObject data = cachedData.getObject("data");
+			resultHandler.handle(new AsyncResult<JsonObject>() {
+				
+				@Override
+				public boolean succeeded() {
+					return true;
+				}
+				
+				@Override
+				public JsonObject result() {
+					return data;
+				}
+				
+				@Override
+				public boolean failed() {
+					return false;
+				}
+				
+				@Override
+				public Throwable cause() {
+					return null;
+				}
+			});
+			return;
 		}
-		mongo.findOne("sessions", matcher, keys, new AsyncResultHandler<JsonObject>() {
+		// All data is loaded, so further requests for other fields are served from the cache.
+		final long version = cache.getVersion(sessionId);
+		store.getData(sessionId, null, new AsyncResultHandler<JsonObject>() {
 			
 			@Override
-			public void handle(final AsyncResult<JsonObject> event) {
+			public void handle(final AsyncResult<JsonObject> loadRequest) {
+				JsonObject sessionData = loadRequest.succeeded() ? loadRequest.result() : null;
+				if (loadRequest.succeeded()) {
+					cache.putLoadedData(sessionId, sessionData, version);
+				}
+				final JsonObject data = sessionData != null && fieldNames != null ? new JsonObject() : sessionData;
+				if (sessionData != null && fieldNames != null) for (String fieldName : fieldNames) {
+					if (sessionData.containsField(fieldName)) {
+						data.putValue(fieldName, sessionData.getValue(fieldName));
+					}
+				}
 				resultHandler.handle(new AsyncResult<JsonObject>() {
 					
 					@Override
 					public boolean succeeded() {
-						return event.succeeded();
+						return loadRequest.succeeded();
 					}
 					
 					@Override
 					public JsonObject result() {
-						return event.result().getObject("data");
+						return data;
 					}
 					
 					@Override
@@ -501,7 +1153,7 @@ public class SessionManager {
 					
 					@Override
 					public Throwable cause() {
-						return event.cause();
+						return loadRequest.cause();
 					}
 				});
 			}
@@ -514,98 +1166,410 @@ public class SessionManager {
 	 * @param fieldNames Name of the fields to delete.
 	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
 	 */
-	public void deleteData(String sessionId, List<String> fieldNames, final AsyncResultHandler<Void> resultHandler) {
-		JsonObject update = new JsonObject();
-		JsonObject dataUpdates = new JsonObject(); 
-		for (String fieldName : fieldNames) {
-			dataUpdates.putString("data." + fieldName, "");
+	public void deleteData(final String sessionId, final List<String> fieldNames, final AsyncResultHandler<Void> resultHandler) {
+		submit(sessionId, new DataMutation(sessionId, null, fieldNames, resultHandler));
+	}
+	
+	/**
+	 * Change of session data. Consecutive data changes of a session are merged and written with a single update.
+	 */
+	private class DataMutation extends SessionMutationQueue.Mutation {
+		private final String sessionId;
+		private final JsonObject storedFields = new JsonObject();
+		private final Set<String> deletedFields = new LinkedHashSet<>();
+		private final List<AsyncResultHandler<Void>> resultHandlers = new ArrayList<>();
+		
+		private DataMutation(String sessionId, JsonObject data, Collection<String> fieldNames, AsyncResultHandler<Void> resultHandler) {
+			this.sessionId = sessionId;
+			apply(data, fieldNames);
+			if (resultHandler != null) resultHandlers.add(resultHandler);
+		}
+		
+		private void apply(JsonObject data, Collection<String> fieldNames) {
+			if (data != null) for (String fieldName : data.getFieldNames()) {
+				storedFields.putValue(fieldName, data.getValue(fieldName));
+				deletedFields.remove(fieldName);
+			}
+			if (fieldNames != null) for (String fieldName : fieldNames) {
+				storedFields.removeField(fieldName);
+				deletedFields.add(fieldName);
+			}
+		}
+		
+		/**
+		 * Checks if all fields are top level fields. Nested field paths may conflict with each other in a single update.
+		 */
+		private boolean isFlat() {
+			for (String fieldName : storedFields.getFieldNames()) {
+				if (fieldName.contains(".")) return false;
+			}
+			for (String fieldName : deletedFields) {
+				if (fieldName.contains(".")) return false;
+			}
+			return true;
+		}
+		
+		@Override
+		protected boolean merge(SessionMutationQueue.Mutation next) {
+			if (!(next instanceof DataMutation)) return false;
+			DataMutation other = (DataMutation) next;
+			if (!isFlat() || !other.isFlat()) return false;
+			apply(other.storedFields, other.deletedFields);
+			resultHandlers.addAll(other.resultHandlers);
+			return true;
+		}
+		
+		@Override
+		protected void execute(final Handler<Void> completionHandler) {
+			store.updateData(sessionId, storedFields, deletedFields, writeThrough(sessionId, new Runnable() {
+				
+				@Override
+				public void run() {
+					cache.updateData(sessionId, storedFields, deletedFields);
+				}
+			}, completing(new AsyncResultHandler<Void>() {
+				
+				@Override
+				public void handle(AsyncResult<Void> writeRequest) {
+					for (AsyncResultHandler<Void> resultHandler : resultHandlers) {
+						resultHandler.handle(writeRequest);
+					}
+				}
+			}, completionHandler)));
+		}
+	}
+	
+	/**
+	 * Removes all views of online sessions which have been inactive for the configured timeout.
+	 * The views of all expired sessions are removed, one update per session, and an offline event is published for each of them.
+	 * @param resultHandler Handler to return the number of removed views. May be <code>null</code>.
+	 */
+	public void expireSessions(final AsyncResultHandler<Integer> resultHandler) {
+		final List<String> expiredSessions = expiryQueue.poll(System.currentTimeMillis());
+		if (expiredSessions.isEmpty()) {
+			if (resultHandler != null) resultHandler.handle(createCount(0, null));
+			return;
+		}
+		Map<String, Set<String>> expiredViews = new HashMap<>();
+		for (String sessionId : expiredSessions) {
+			expiredViews.put(sessionId, null);
+		}
+		removeViews(expiredViews, new AsyncResultHandler<Integer>() {
+			
+			@Override
+			public void handle(AsyncResult<Integer> removeRequest) {
+				if (removeRequest.failed()) {
+					// Retry with the next poll.
+					long expired = System.currentTimeMillis() - expiryQueue.getTimeout();
+					for (String sessionId : expiredSessions) {
+						expiryQueue.track(sessionId, expired);
+					}
+				}
+				if (resultHandler != null) resultHandler.handle(removeRequest);
+			}
+		});
+	}
+	
+	/**
+	 * Records a heartbeat of a view.
+	 * Only memory is updated. Once a view sent a heartbeat, it is removed if it misses the configured number of heartbeats.
+	 * The session is only read for the first heartbeat of a view, to check that the view is registered. Further heartbeats are recorded as long as the view is tracked, removing the view stops the tracking.
+	 * @param sessionId ID of the session the view is registered in.
+	 * @param viewId ID of the view.
+	 * @param resultHandler Handler to be notified when the heartbeat has been recorded. Fails if the view is not registered in the session.
+	 */
+	public void heartbeat(String sessionId, String viewId, AsyncResultHandler<Void> resultHandler) {
+		ViewKey key = new ViewKey(sessionId, viewId);
+		if (heartbeatQueue.touch(key, System.currentTimeMillis())) {
+			resultHandler.handle(createVoid(null));
+			return;
 		}
-		update.putObject("$unset", dataUpdates);
-		mongo.update("sessions", new JsonObject().putString("id", sessionId), update, false, false, resultHandler);
+		submit(sessionId, new HeartbeatMutation(key, resultHandler));
 	}
 	
 	/**
-	 * Deletes all sessions which haven't been updated lately. 
-	 * @param purgeBefore Sessions older than this time will be deleted.
-	 * @param resultHandler Handler to return the number of purged sessions. May be <code>null</code>.
+	 * First heartbeat of a view. Starts the tracking of the view if it is registered in the session.
+	 * Runs as mutation of the session, so the view cannot be removed between the check and the start of the tracking.
 	 */
-	public void purgeOldSessions(final DateTime purgeBefore, final AsyncResultHandler<Integer> resultHandler) {
-		JsonObject matcher = new JsonObject();
-		String isoString = ISODateTimeFormat.dateTime().print(purgeBefore);
-		matcher.putObject("lastActivity", new JsonObject().putString("$lt", isoString));
-		// mongo.delete("sessions", matcher, resultHandler);
+	private class HeartbeatMutation extends SessionMutationQueue.Mutation {
+		private final ViewKey key;
+		private final AsyncResultHandler<Void> resultHandler;
+		
+		private HeartbeatMutation(ViewKey key, AsyncResultHandler<Void> resultHandler) {
+			this.key = key;
+			this.resultHandler = resultHandler;
+		}
 		
-		JsonObject keys = new JsonObject()
-			.putNumber("_id", 0);
-		final List<Session> removedSessions = new ArrayList<Session>();
-		mongo.find("sessions", matcher, keys, new AsyncResultHandler<JsonArray>() {
+		@Override
+		protected void execute(Handler<Void> completionHandler) {
+			final AsyncResultHandler<Void> trackHandler = completing(resultHandler, completionHandler);
+			Session cachedSession = cache.get(key.getSessionId());
+			if (cachedSession != null) {
+				track(cachedSession, trackHandler);
+				return;
+			}
+			store.get(key.getSessionId(), new AsyncResultHandler<JsonObject>() {
+				
+				@Override
+				public void handle(AsyncResult<JsonObject> loadRequest) {
+					if (loadRequest.failed()) {
+						trackHandler.handle(createVoid(loadRequest.cause()));
+					} else if (loadRequest.result() == null) {
+						trackHandler.handle(createVoid(new Throwable(SESSION_NOT_FOUND)));
+					} else {
+						track(new Session(loadRequest.result()), trackHandler);
+					}
+				}
+			});
+		}
+		
+		private void track(Session session, AsyncResultHandler<Void> trackHandler) {
+			if (session.getView(key.getViewId()) == null) {
+				trackHandler.handle(createVoid(new Throwable("View not registered in session.")));
+				return;
+			}
+			heartbeatQueue.track(key, System.currentTimeMillis());
+			trackHandler.handle(createVoid(null));
+		}
+	}
+	
+	/**
+	 * Removes all views which missed their heartbeats.
+	 * Each view is only removed from its own session and an offline event is published for each of them.
+	 * @param resultHandler Handler to return the number of removed views. May be <code>null</code>.
+	 */
+	public void expireViews(final AsyncResultHandler<Integer> resultHandler) {
+		final List<ViewKey> expiredKeys = heartbeatQueue.poll(System.currentTimeMillis());
+		if (expiredKeys.isEmpty()) {
+			if (resultHandler != null) resultHandler.handle(createCount(0, null));
+			return;
+		}
+		Map<String, Set<String>> expiredViews = new HashMap<>();
+		for (ViewKey key : expiredKeys) {
+			Set<String> viewIds = expiredViews.get(key.getSessionId());
+			if (viewIds == null) {
+				viewIds = new HashSet<>();
+				expiredViews.put(key.getSessionId(), viewIds);
+			}
+			viewIds.add(key.getViewId());
+		}
+		removeViews(expiredViews, new AsyncResultHandler<Integer>() {
 			
 			@Override
-			public void handle(final AsyncResult<JsonArray> result) {
-				if (result.succeeded()) {
-					for (Object obj : result.result()) {
-						Session session = new Session((JsonObject) obj);
-						if (session.getLastActivity().isBefore(purgeBefore) && session.hasView()) {
-							removedSessions.add(session);
-							for (View view : session.getViews()) {
-								removeView(session.getId(), view.getId(), null);
-							}
-						}
+			public void handle(AsyncResult<Integer> removeRequest) {
+				if (removeRequest.failed()) {
+					// Retry with the next poll.
+					long expired = System.currentTimeMillis() - heartbeatQueue.getTimeout();
+					for (ViewKey key : expiredKeys) {
+						heartbeatQueue.track(key, expired);
 					}
-					if (resultHandler != null) resultHandler.handle(new AsyncResult<Integer>() {
-						
-						@Override
-						public boolean succeeded() {
-							return true;
-						}
-						
-						@Override
-						public Integer result() {
-							return removedSessions.size();
-						}
-						
-						@Override
-						public boolean failed() {
-							return !succeeded();
-						}
-						
-						@Override
-						public Throwable cause() {
-							return null;
-						}
-					});
-				} else {
-					if (resultHandler != null) resultHandler.handle(new AsyncResult<Integer>() {
-						
-						@Override
-						public boolean succeeded() {
-							return false;
-						}
-						
-						@Override
-						public Integer result() {
-							return null;
-						}
-						
-						@Override
-						public boolean failed() {
-							return !succeeded();
-						}
-						
-						@Override
-						public Throwable cause() {
-							return result.cause();
-						}
-					});
 				}
+				if (resultHandler != null) resultHandler.handle(removeRequest);
 			}
 		});
 	}
 	
+	/**
+	 * Removes views of multiple sessions and publishes an offline event for each of them.
+	 * Each session is changed by its own mutation, which reads the current state of the session and removes the views found with one update. Views registered in the meantime are kept.
+	 * @param expiredViews Map of session identifiers to the identifiers of the views to remove. A <code>null</code> value removes all views of the session.
+	 * @param resultHandler Handler to return the number of removed views. Fails if the views of any session could not be removed.
+	 */
+	private void removeViews(final Map<String, Set<String>> expiredViews, final AsyncResultHandler<Integer> resultHandler) {
+		final AtomicInteger pending = new AtomicInteger(expiredViews.size());
+		final AtomicInteger removed = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		AsyncResultHandler<Integer> removeHandler = new AsyncResultHandler<Integer>() {
+			
+			@Override
+			public void handle(AsyncResult<Integer> removeRequest) {
+				if (removeRequest.failed()) {
+					failure.compareAndSet(null, removeRequest.cause());
+				} else {
+					removed.addAndGet(removeRequest.result());
+				}
+				if (pending.decrementAndGet() == 0) {
+					resultHandler.handle(createCount(failure.get() == null ? removed.get() : null, failure.get()));
+				}
+			}
+		};
+		for (Map.Entry<String, Set<String>> entry : expiredViews.entrySet()) {
+			submit(entry.getKey(), new ExpireViewsMutation(entry.getKey(), entry.getValue(), removeHandler));
+		}
+	}
+	
+	/**
+	 * Removal of expired views from a session.
+	 */
+	private class ExpireViewsMutation extends SessionMutationQueue.Mutation {
+		private final String sessionId;
+		private final Set<String> viewIds;
+		private final AsyncResultHandler<Integer> resultHandler;
+		
+		/**
+		 * @param viewIds Identifiers of the views to remove, <code>null</code> to remove all views.
+		 * @param resultHandler Handler for the number of removed views.
+		 */
+		private ExpireViewsMutation(String sessionId, Set<String> viewIds, AsyncResultHandler<Integer> resultHandler) {
+			this.sessionId = sessionId;
+			this.viewIds = viewIds;
+			this.resultHandler = resultHandler;
+		}
+		
+		@Override
+		protected void execute(Handler<Void> completionHandler) {
+			final AsyncResultHandler<Integer> removeHandler = completing(resultHandler, completionHandler);
+			Session cachedSession = cache.get(sessionId);
+			if (cachedSession != null) {
+				removeViews(cachedSession, removeHandler);
+				return;
+			}
+			store.get(sessionId, new AsyncResultHandler<JsonObject>() {
+				
+				@Override
+				public void handle(AsyncResult<JsonObject> loadRequest) {
+					if (loadRequest.failed()) {
+						removeHandler.handle(createCount(null, loadRequest.cause()));
+					} else if (loadRequest.result() == null) {
+						removeHandler.handle(createCount(0, null));
+					} else {
+						removeViews(new Session(loadRequest.result()), removeHandler);
+					}
+				}
+			});
+		}
+		
+		private void removeViews(final Session session, final AsyncResultHandler<Integer> removeHandler) {
+			final List<String> removedViews = new ArrayList<>();
+			for (View view : session.getViews()) {
+				if (viewIds == null || viewIds.contains(view.getId())) {
+					removedViews.add(view.getId());
+				}
+			}
+			if (removedViews.isEmpty()) {
+				removeHandler.handle(createCount(0, null));
+				return;
+			}
+			store.removeViews(Collections.singletonMap(sessionId, removedViews), new AsyncResultHandler<Void>() {
+				
+				@Override
+				public void handle(AsyncResult<Void> updateRequest) {
+					if (updateRequest.failed()) {
+						cache.remove(sessionId);
+						removeHandler.handle(createCount(null, updateRequest.cause()));
+						return;
+					}
+					for (String viewId : removedViews) {
+						session.removeView(viewId);
+						cache.removeView(sessionId, viewId);
+						userIndex.removeView(sessionId, viewId);
+						heartbeatQueue.untrack(new ViewKey(sessionId, viewId));
+						sendOfflineEvent(sessionId, session.getUserId(), viewId);
+					}
+					if (!session.hasView()) {
+						expiryQueue.untrack(sessionId);
+					}
+					removeHandler.handle(createCount(removedViews.size(), null));
+				}
+			});
+		}
+	}
+	
+	private static AsyncResult<Void> createVoid(final Throwable cause) {
+		return new AsyncResult<Void>() {
+			
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+			
+			@Override
+			public Void result() {
+				return null;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+	
+	private static AsyncResult<Integer> createCount(final Integer count, final Throwable cause) {
+		return new AsyncResult<Integer>() {
+			
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+			
+			@Override
+			public Integer result() {
+				return count;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the statistics of the session cache.
+	 * @return JSON object with the fields size, maxSize, hits, misses, hitRatio and evictions.
+	 */
+	public JsonObject getCacheStatistics() {
+		return cache.getStatistics();
+	}
+	
+	/**
+	 * Returns the statistics of the activity tracker.
+	 * @return JSON object with the fields pending, touches, flushes and writtenSessions.
+	 */
+	public JsonObject getActivityStatistics() {
+		return activityTracker.getStatistics();
+	}
+	
+	/**
+	 * Returns the number of sessions in the user index.
+	 * @return Number of user sessions.
+	 */
+	public int getUserSessionCount() {
+		return userIndex.size();
+	}
+	
+	/**
+	 * Returns the statistics of the mutation queue.
+	 * @return JSON object with the fields sessions, submitted and merged.
+	 */
+	public JsonObject getMutationStatistics() {
+		return mutations.getStatistics();
+	}
+	
+	/**
+	 * Returns the statistics of the filter rejecting unknown sessions.
+	 * @return JSON object with the statistics, with the fields enabled, ready, capacity, sessions, unknownSize, filterRejections, unknownRejections, rejections and rebuilds.
+	 */
+	public JsonObject getLookupStatistics() {
+		return lookupFilter.getStatistics();
+	}
+	
 	private void sendOfflineEvent(String sessionId, String userId, String viewId) {
 		AppsistEvent event = new UserOfflineEvent(UUID.randomUUID().toString(), sessionId, userId, viewId);
 		eventBus.publish("appsist:event:" + event.getModelId(), new JsonObject(event.asMap()));
-		if (MainVerticle.getConfig().isDebugModeEnabled()) {
+		ModuleConfiguration config = MainVerticle.getConfig();
+		if (config != null && config.isDebugModeEnabled()) {
 			logger.debug("User offline event published: " + event);
 		}
 	}
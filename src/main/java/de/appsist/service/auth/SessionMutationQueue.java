@@ -0,0 +1,169 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.shareddata.Shareable;
+
+/**
+ * Keyed queue to order the mutations of sessions.
+ * Mutations of the same session are executed one after another in the order they have been submitted, mutations of different sessions run in parallel.
+ * Each session has its own queue which only exists as long as mutations are pending, there is no lock shared between sessions.
+ * Consecutive pending mutations of a session may be merged into a single one, see {@link Mutation#merge(Mutation)}.
+ * The queue is shared between all service instances of a JVM. Mutations are started on the context of the instance which submitted them.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionMutationQueue implements Shareable {
+	private final Vertx vertx;
+	private final ConcurrentMap<String, SessionQueue> queues = new ConcurrentHashMap<>();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong merged = new AtomicLong();
+
+	/**
+	 * Creates a mutation queue.
+	 * @param vertx Vert.x instance to determine the context of callers. May be <code>null</code> to start mutations on the thread completing the previous one.
+	 */
+	public SessionMutationQueue(Vertx vertx) {
+		this.vertx = vertx;
+	}
+
+	/**
+	 * Mutation of a session.
+	 */
+	public static abstract class Mutation {
+
+		/**
+		 * Performs the mutation.
+		 * @param completionHandler Handler to call exactly once when the mutation is completed, whether it succeeded or not.
+		 */
+		protected abstract void execute(Handler<Void> completionHandler);
+
+		/**
+		 * Merges a mutation submitted directly after this one.
+		 * Called before this mutation is executed. If the other mutation is merged, it is not executed on its own.
+		 * @param next Mutation following this one.
+		 * @return <code>true</code> if the mutation has been merged, otherwise <code>false</code>.
+		 */
+		protected boolean merge(Mutation next) {
+			return false;
+		}
+	}
+
+	private static class Entry {
+		private final Mutation mutation;
+		private final Context context;
+
+		private Entry(Mutation mutation, Context context) {
+			this.mutation = mutation;
+			this.context = context;
+		}
+	}
+
+	/**
+	 * Pending mutations of a single session. Guarded by its own monitor.
+	 */
+	private static class SessionQueue {
+		private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+		private boolean running = false;
+		private boolean closed = false;
+	}
+
+	/**
+	 * Submits a mutation. If no other mutation of the session is pending, it is executed immediately.
+	 * @param sessionId ID of the session to mutate.
+	 * @param mutation Mutation to execute.
+	 */
+	public void submit(String sessionId, Mutation mutation) {
+		submitted.incrementAndGet();
+		Entry entry = new Entry(mutation, vertx != null ? vertx.currentContext() : null);
+		while (true) {
+			SessionQueue queue = queues.get(sessionId);
+			if (queue == null) {
+				SessionQueue newQueue = new SessionQueue();
+				queue = queues.putIfAbsent(sessionId, newQueue);
+				if (queue == null) queue = newQueue;
+			}
+			synchronized (queue) {
+				if (queue.closed) {
+					// Queue has been removed concurrently.
+					continue;
+				}
+				if (queue.running) {
+					queue.entries.add(entry);
+					return;
+				}
+				queue.running = true;
+			}
+			execute(sessionId, queue, entry);
+			return;
+		}
+	}
+
+	private void execute(final String sessionId, final SessionQueue queue, final Entry entry) {
+		synchronized (queue) {
+			// Only merge mutations of the same context, results are delivered on the context of the merged mutation.
+			while (!queue.entries.isEmpty() && queue.entries.peek().context == entry.context && entry.mutation.merge(queue.entries.peek().mutation)) {
+				queue.entries.poll();
+				merged.incrementAndGet();
+			}
+		}
+		Handler<Void> completionHandler = new Handler<Void>() {
+			private boolean completed = false;
+
+			@Override
+			public void handle(Void event) {
+				if (completed) return;
+				completed = true;
+				next(sessionId, queue);
+			}
+		};
+		try {
+			entry.mutation.execute(completionHandler);
+		} catch (RuntimeException e) {
+			// Do not block the following mutations.
+			completionHandler.handle(null);
+			throw e;
+		}
+	}
+
+	private void next(final String sessionId, final SessionQueue queue) {
+		final Entry entry;
+		synchronized (queue) {
+			entry = queue.entries.poll();
+			if (entry == null) {
+				queue.running = false;
+				queue.closed = true;
+				queues.remove(sessionId, queue);
+				return;
+			}
+		}
+		if (entry.context != null) {
+			entry.context.runOnContext(new Handler<Void>() {
+
+				@Override
+				public void handle(Void event) {
+					execute(sessionId, queue, entry);
+				}
+			});
+		} else {
+			execute(sessionId, queue, entry);
+		}
+	}
+
+	/**
+	 * Returns the statistics of the queue.
+	 * @return JSON object with the fields sessions (sessions with pending mutations), submitted and merged.
+	 */
+	public JsonObject getStatistics() {
+		return new JsonObject()
+			.putNumber("sessions", queues.size())
+			.putNumber("submitted", submitted.get())
+			.putNumber("merged", merged.get());
+	}
+}
@@ -0,0 +1,108 @@
+package de.appsist.service.auth;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Local snapshot of the session state held in memory, used to warm up the service after a restart.
+ * For each session, the identifier, user, last activity and views are stored. Session data is not part of the snapshot, it is loaded from the database on demand.
+ * The snapshot is a text file with one tab separated record per session. It is written when the service stops and deleted once it has been read, so a snapshot is never loaded twice.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionSnapshot {
+	private static final char SEPARATOR = '\t';
+
+	private final Path file;
+
+	/**
+	 * Creates a snapshot.
+	 * @param file Path of the snapshot file.
+	 */
+	public SessionSnapshot(String file) {
+		this.file = Paths.get(file);
+	}
+
+	/**
+	 * Checks if a snapshot is available.
+	 * @return <code>true</code> if the snapshot file exists, otherwise <code>false</code>.
+	 */
+	public boolean exists() {
+		return Files.exists(file);
+	}
+
+	/**
+	 * Writes the snapshot. The file is replaced atomically.
+	 * @param sessions Sessions to write. Only the fields id, userId, lastActivity and views are stored.
+	 * @throws IOException Failed to write the snapshot file.
+	 */
+	public void write(Collection<JsonObject> sessions) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		if (directory != null) Files.createDirectories(directory);
+		Path tempFile = Files.createTempFile(directory, "sessions", ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+			for (JsonObject session : sessions) {
+				JsonArray views = session.getArray("views");
+				writer.write(session.getString("id"));
+				writer.write(SEPARATOR);
+				writer.write(valueOf(session.getString("userId")));
+				writer.write(SEPARATOR);
+				writer.write(valueOf(session.getString("lastActivity")));
+				writer.write(SEPARATOR);
+				writer.write(views != null && views.size() > 0 ? views.encode() : "");
+				writer.newLine();
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String valueOf(String value) {
+		return value != null ? value : "";
+	}
+
+	/**
+	 * Reads and deletes the snapshot.
+	 * @return Sessions contained in the snapshot, with the fields id, userId, lastActivity and views if available.
+	 * @throws IOException Failed to read the snapshot file or the file is corrupt.
+	 */
+	public List<JsonObject> consume() throws IOException {
+		List<JsonObject> sessions = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+				if (fields.length != 4) {
+					throw new IOException("Corrupt session snapshot " + file + ".");
+				}
+				JsonObject session = new JsonObject().putString("id", fields[0]);
+				if (!fields[1].isEmpty()) session.putString("userId", fields[1]);
+				if (!fields[2].isEmpty()) session.putString("lastActivity", fields[2]);
+				if (!fields[3].isEmpty()) session.putArray("views", new JsonArray(fields[3]));
+				sessions.add(session);
+			}
+		} catch (DecodeException e) {
+			throw new IOException("Corrupt session snapshot " + file + ".", e);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		return sessions;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
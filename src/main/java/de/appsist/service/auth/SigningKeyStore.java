@@ -0,0 +1,231 @@
+package de.appsist.service.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jose4j.jwk.EcJwkGenerator;
+import org.jose4j.jwk.JsonWebKey.OutputControlLevel;
+import org.jose4j.jwk.PublicJsonWebKey;
+import org.jose4j.jwk.RsaJwkGenerator;
+import org.jose4j.jwk.Use;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.keys.EllipticCurves;
+import org.jose4j.lang.JoseException;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.java.core.shareddata.Shareable;
+
+/**
+ * Store for the keys used to sign and verify tokens.
+ * The key ring is shared between all instances of the service running in the same JVM. If a key file is configured, the key ring is loaded from this file or generated once and written to it.
+ * Nodes using the same key file accept each other's tokens. Rotations written by another node are picked up by {@link #refresh()} when the file changes. Key rotation should only be enabled on one of these nodes.
+ * {@link #getKeyRing()} does not access the key file once the key ring has been initialized, so it may be called on the event loop.
+ * New keys are generated for the configured signature algorithm, either RSA (RS256) or ECDSA on the P-256 curve (ES256).
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SigningKeyStore implements Shareable {
+	private static final Logger logger = LoggerFactory.getLogger(SigningKeyStore.class);
+	private static final String KEY_RING = "keyRing";
+
+	private final ConcurrentMap<String, String> sharedKeys;
+	private final Path keyFile;
+	private final String algorithm;
+	private long keyFileModified;
+	private String keyRingJson;
+	private KeyRing keyRing;
+
+	/**
+	 * Creates a key store generating RSA keys.
+	 * @param sharedKeys Map shared between all service instances of the JVM.
+	 * @param keyFile Path of the JSON web key set file. May be <code>null</code> if keys should not be persisted.
+	 */
+	public SigningKeyStore(ConcurrentMap<String, String> sharedKeys, String keyFile) {
+		this(sharedKeys, keyFile, AlgorithmIdentifiers.RSA_USING_SHA256);
+	}
+	
+	/**
+	 * Creates a key store.
+	 * @param sharedKeys Map shared between all service instances of the JVM.
+	 * @param keyFile Path of the JSON web key set file. May be <code>null</code> if keys should not be persisted.
+	 * @param algorithm Signature algorithm for new keys: RS256 or ES256.
+	 * @throws IllegalArgumentException The algorithm is not supported.
+	 */
+	public SigningKeyStore(ConcurrentMap<String, String> sharedKeys, String keyFile, String algorithm) throws IllegalArgumentException {
+		if (!AlgorithmIdentifiers.RSA_USING_SHA256.equals(algorithm) && !AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256.equals(algorithm)) {
+			throw new IllegalArgumentException("Unsupported signature algorithm: " + algorithm);
+		}
+		this.sharedKeys = sharedKeys;
+		this.keyFile = keyFile != null ? Paths.get(keyFile) : null;
+		this.algorithm = algorithm;
+	}
+	
+	/**
+	 * Returns the signature algorithm used for new keys.
+	 * @return JWS algorithm identifier.
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Returns the current key ring.
+	 * On first access, the key ring is loaded from the key file or generated.
+	 * @return Key ring shared by all service instances.
+	 * @throws RuntimeException Failed to load, generate or persist the keys.
+	 */
+	public synchronized KeyRing getKeyRing() throws RuntimeException {
+		String json = sharedKeys.get(KEY_RING);
+		if (json == null) {
+			json = initializeKeyRing();
+		}
+		if (!json.equals(keyRingJson)) {
+			try {
+				keyRing = KeyRing.fromJson(json);
+				keyRingJson = json;
+			} catch (JoseException e) {
+				throw new RuntimeException("Failed to parse key ring.", e);
+			}
+		}
+		return keyRing;
+	}
+
+	/**
+	 * Reloads the key ring if the key file has been modified by another node.
+	 * @return Current key ring.
+	 * @throws RuntimeException Failed to load the keys.
+	 */
+	public synchronized KeyRing refresh() throws RuntimeException {
+		KeyRing current = getKeyRing();
+		if (keyFile == null || !Files.exists(keyFile)) {
+			return current;
+		}
+		try {
+			long modified = Files.getLastModifiedTime(keyFile).toMillis();
+			if (modified == keyFileModified) {
+				return current;
+			}
+			String json = readKeyFile();
+			if (KeyRing.fromJson(json).getVersion() > current.getVersion()) {
+				sharedKeys.replace(KEY_RING, keyRingJson, json);
+				logger.info("Reloaded signing keys from " + keyFile + ".");
+			}
+		} catch (IOException | JoseException e) {
+			logger.warn("Ignoring invalid key file " + keyFile + ".", e);
+		}
+		return getKeyRing();
+	}
+
+	/**
+	 * Rotates the signing key if the active key reached the given age or uses another algorithm than configured.
+	 * The new key becomes the active signing key, retired keys are kept for verification during the retention period.
+	 * @param maxKeyAge Maximum age of the active signing key in milliseconds.
+	 * @param retention Duration in milliseconds a retired key is kept for verification.
+	 * @return Current key ring.
+	 * @throws RuntimeException Failed to generate or persist the keys.
+	 */
+	public synchronized KeyRing rotate(long maxKeyAge, long retention) throws RuntimeException {
+		KeyRing current = refresh();
+		long now = System.currentTimeMillis();
+		PublicJsonWebKey activeKey = current.getActiveKey();
+		if (now - current.getCreated(activeKey.getKeyId()) < maxKeyAge && algorithm.equals(KeyRing.getAlgorithm(activeKey))) {
+			return current;
+		}
+		KeyRing rotated = current.rotate(generateKey(), now, retention);
+		String json = rotated.toJson(OutputControlLevel.INCLUDE_PRIVATE).encode();
+		if (sharedKeys.replace(KEY_RING, keyRingJson, json)) {
+			logger.info("Rotated signing key, active key is now \"" + rotated.getActiveKey().getKeyId() + "\".");
+			if (keyFile != null) persist(json);
+		}
+		return getKeyRing();
+	}
+
+	private String initializeKeyRing() throws RuntimeException {
+		String json = null;
+		boolean generated = false;
+		if (keyFile != null && Files.exists(keyFile)) {
+			try {
+				// Normalize the key set to fix the creation time of keys without this information.
+				json = KeyRing.fromJson(readKeyFile()).toJson(OutputControlLevel.INCLUDE_PRIVATE).encode();
+				logger.info("Loaded signing keys from " + keyFile + ".");
+			} catch (JoseException e) {
+				throw new RuntimeException("Failed to parse key file " + keyFile + ".", e);
+			}
+		} else {
+			KeyRing generatedRing = new KeyRing(1, Collections.singletonList(generateKey()), null);
+			json = generatedRing.toJson(OutputControlLevel.INCLUDE_PRIVATE).encode();
+			generated = true;
+		}
+		String existing = sharedKeys.putIfAbsent(KEY_RING, json);
+		if (existing != null) {
+			// Another instance has been faster.
+			return existing;
+		}
+		if (generated && keyFile != null) {
+			persist(json);
+		}
+		return json;
+	}
+
+	/**
+	 * Generates a new signing key for the configured algorithm.
+	 * @return Key pair with a unique key identifier.
+	 * @throws RuntimeException Failed to generate the key.
+	 */
+	private PublicJsonWebKey generateKey() throws RuntimeException {
+		try {
+			PublicJsonWebKey key;
+			if (AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256.equals(algorithm)) {
+				key = EcJwkGenerator.generateJwk(EllipticCurves.P256);
+			} else {
+				key = RsaJwkGenerator.generateJwk(2048);
+			}
+			key.setKeyId(Long.toString(System.currentTimeMillis(), 36));
+			key.setAlgorithm(algorithm);
+			key.setUse(Use.SIGNATURE);
+			return key;
+		} catch (JoseException e) {
+			throw new RuntimeException("Failed to initialize key.", e);
+		}
+	}
+
+	private String readKeyFile() throws RuntimeException {
+		try {
+			keyFileModified = Files.getLastModifiedTime(keyFile).toMillis();
+			return new String(Files.readAllBytes(keyFile), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read key file " + keyFile + ".", e);
+		}
+	}
+
+	/**
+	 * Writes the key ring to the key file.
+	 * The file is replaced atomically and, if supported, only readable by the owner.
+	 * @param json JSON web key set to write.
+	 * @throws RuntimeException Failed to write the key file.
+	 */
+	private void persist(String json) throws RuntimeException {
+		try {
+			Path directory = keyFile.toAbsolutePath().getParent();
+			if (directory != null) Files.createDirectories(directory);
+			Path tempFile = Files.createTempFile(directory, "keys", ".tmp");
+			try {
+				Files.setPosixFilePermissions(tempFile, PosixFilePermissions.fromString("rw-------"));
+			} catch (UnsupportedOperationException e) {
+				// Non-POSIX file system.
+			}
+			Files.write(tempFile, json.getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			keyFileModified = Files.getLastModifiedTime(keyFile).toMillis();
+			logger.info("Stored signing keys in " + keyFile + ".");
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write key file " + keyFile + ".", e);
+		}
+	}
+}
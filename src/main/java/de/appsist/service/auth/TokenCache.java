@@ -0,0 +1,151 @@
+package de.appsist.service.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jose4j.base64url.Base64Url;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Bounded cache for tokens which already passed signature and claims verification.
+ * Entries are keyed by a SHA-256 digest of the compact token and expire together with the token.
+ * The cache is safe to be used by multiple threads.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class TokenCache {
+	private final int maxSize;
+	private final ConcurrentMap<String, Entry> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA-256 is not supported.", e);
+			}
+		}
+	};
+
+	private static class Entry {
+		private final JsonObject claims;
+		private final long expiresAt;
+
+		private Entry(JsonObject claims, long expiresAt) {
+			this.claims = claims;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Creates a token cache.
+	 * @param maxSize Maximum number of tokens to keep. 0 disables the cache.
+	 */
+	public TokenCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new ConcurrentHashMap<>(Math.max(16, maxSize), 0.75f, 16);
+	}
+
+	/**
+	 * Returns the claims of a verified token.
+	 * @param jwt Token in compact serialization.
+	 * @return Copy of the claims or <code>null</code> if the token is not cached or already expired.
+	 */
+	public JsonObject get(String jwt) {
+		if (maxSize <= 0) {
+			misses.incrementAndGet();
+			return null;
+		}
+		String key = digest(jwt);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			if (entries.remove(key, entry)) evictions.incrementAndGet();
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.claims.copy();
+	}
+
+	/**
+	 * Adds a verified token to the cache.
+	 * @param jwt Token in compact serialization.
+	 * @param claims Claims of the token.
+	 * @param expiresAt Time in milliseconds since epoch after which the entry must no longer be served.
+	 */
+	public void put(String jwt, JsonObject claims, long expiresAt) {
+		if (maxSize <= 0 || expiresAt <= System.currentTimeMillis()) {
+			return;
+		}
+		if (entries.size() >= maxSize) {
+			evict();
+		}
+		entries.put(digest(jwt), new Entry(claims.copy(), expiresAt));
+	}
+
+	/**
+	 * Removes a token from the cache.
+	 * @param jwt Token in compact serialization.
+	 */
+	public void remove(String jwt) {
+		entries.remove(digest(jwt));
+	}
+
+	/**
+	 * Removes all expired entries. If the cache is still full afterwards, arbitrary entries are dropped until 10% of the capacity is free again.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		int target = maxSize - Math.max(1, maxSize / 10);
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue().expiresAt <= now) {
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		iterator = entries.entrySet().iterator();
+		while (entries.size() > target && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the statistics of the cache.
+	 * @return JSON object with the fields size, maxSize, hits, misses and evictions.
+	 */
+	public JsonObject getStatistics() {
+		return new JsonObject()
+			.putNumber("size", entries.size())
+			.putNumber("maxSize", maxSize)
+			.putNumber("hits", hits.get())
+			.putNumber("misses", misses.get())
+			.putNumber("evictions", evictions.get());
+	}
+
+	/**
+	 * Computes the key used to store a token.
+	 * @param token Token to compute the key for.
+	 * @return Base64url encoded SHA-256 digest of the token.
+	 */
+	static String digest(String token) {
+		MessageDigest digest = digests.get();
+		digest.reset();
+		return Base64Url.encode(digest.digest(token.getBytes(StandardCharsets.US_ASCII)));
+	}
+}
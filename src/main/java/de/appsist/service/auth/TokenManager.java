@@ -1,7 +1,13 @@
 package de.appsist.service.auth;
 
-import org.jose4j.jwk.RsaJsonWebKey;
-import org.jose4j.jwk.RsaJwkGenerator;
+import java.security.Key;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
+import org.jose4j.jwk.JsonWebKey.OutputControlLevel;
+import org.jose4j.jwk.PublicJsonWebKey;
 import org.jose4j.jws.AlgorithmIdentifiers;
 import org.jose4j.jws.JsonWebSignature;
 import org.jose4j.jwt.JwtClaims;
@@ -9,7 +15,12 @@ import org.jose4j.jwt.MalformedClaimException;
 import org.jose4j.jwt.consumer.InvalidJwtException;
 import org.jose4j.jwt.consumer.JwtConsumer;
 import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.jwx.JsonWebStructure;
+import org.jose4j.keys.resolvers.VerificationKeyResolver;
 import org.jose4j.lang.JoseException;
+import org.jose4j.lang.UnresolvableKeyException;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.json.JsonObject;
 
 /**
@@ -17,21 +28,79 @@ import org.vertx.java.core.json.JsonObject;
  * @author simon.schwantzer(at)im-c.de
  */
 public class TokenManager {
-	private static final String ISSUER = "appsist:service:auth";
+	public static final String ISSUER = "appsist:service:auth";
+	public static final int ALLOWED_CLOCK_SKEW_SECONDS = 30;
+	
+	private final SigningKeyStore keyStore;
+	private final long rotationInterval;
+	private final int tokenLifetime;
+	private final JwtConsumer jwtConsumer;
+	private final TokenCache tokenCache;
+	private final RevocationList revocations = new RevocationList();
+	private final CryptoExecutor cryptoExecutor;
+	private volatile KeyRing keyRing;
+	
+	/**
+	 * Resolves the verification key by the key identifier (kid) of the token.
+	 */
+	private class KeyRingResolver implements VerificationKeyResolver {
+		@Override
+		public Key resolveKey(JsonWebSignature jws, List<JsonWebStructure> nestingContext) throws UnresolvableKeyException {
+			String keyId = jws.getKeyIdHeaderValue();
+			if (keyId == null) {
+				throw new UnresolvableKeyException("Missing key identifier (kid).");
+			}
+			PublicJsonWebKey key = keyRing.getKey(keyId);
+			if (key == null && syncKeys()) {
+				// The key may have been rotated by another instance.
+				key = keyRing.getKey(keyId);
+			}
+			if (key == null) {
+				throw new UnresolvableKeyException("Unknown key identifier: " + keyId);
+			}
+			return key.getPublicKey();
+		}
+	}
 	
-	private final RsaJsonWebKey rsaJsonWebKey;
+	/**
+	 * Initializes the token manager. Asynchronous operations are performed on the calling thread.
+	 * @param keyStore Store providing the keys to sign and verify tokens.
+	 * @param cacheSize Maximum number of verified tokens to cache. 0 disables the cache.
+	 * @param rotationHours Hours after which the signing key is replaced. 0 disables the rotation.
+	 * @throws RuntimeException Failed to initialize key for token generation.
+	 */
+	public TokenManager(SigningKeyStore keyStore, int cacheSize, int rotationHours) throws RuntimeException {
+		this(keyStore, cacheSize, rotationHours, 10, null);
+	}
 	
 	/**
 	 * Initializes the token manager.
+	 * @param keyStore Store providing the keys to sign and verify tokens.
+	 * @param cacheSize Maximum number of verified tokens to cache. 0 disables the cache.
+	 * @param rotationHours Hours after which the signing key is replaced. 0 disables the rotation.
+	 * @param lifetimeMinutes Minutes an access token is valid after it has been issued.
+	 * @param cryptoExecutor Executor for asynchronous signing and verification. May be <code>null</code> to perform them on the calling thread.
 	 * @throws RuntimeException Failed to initialize key for token generation.
 	 */
-	public TokenManager() throws RuntimeException {
-		try {
-			rsaJsonWebKey = RsaJwkGenerator.generateJwk(2048);
-			rsaJsonWebKey.setKeyId("sas");
-		} catch (JoseException e) {
-			throw new RuntimeException("Failed to initialize key.", e);
+	public TokenManager(SigningKeyStore keyStore, int cacheSize, int rotationHours, int lifetimeMinutes, CryptoExecutor cryptoExecutor) throws RuntimeException {
+		this.keyStore = keyStore;
+		this.tokenLifetime = lifetimeMinutes;
+		this.cryptoExecutor = cryptoExecutor;
+		this.rotationInterval = rotationHours * 3600000L;
+		keyRing = keyStore.getKeyRing();
+		if (!keyStore.getAlgorithm().equals(KeyRing.getAlgorithm(keyRing.getActiveKey()))) {
+			// The signature algorithm has been changed, replace the active key immediately.
+			keyRing = keyStore.rotate(Long.MAX_VALUE, getMaxTokenAge());
 		}
+		jwtConsumer = new JwtConsumerBuilder()
+			.setRequireExpirationTime()
+			.setAllowedClockSkewInSeconds(ALLOWED_CLOCK_SKEW_SECONDS)
+			.setRequireSubject()
+			.setExpectedIssuer(ISSUER)
+			.setJwsAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.WHITELIST, AlgorithmIdentifiers.RSA_USING_SHA256, AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256))
+			.setVerificationKeyResolver(new KeyRingResolver())
+			.build();
+		tokenCache = new TokenCache(cacheSize);
 	}
 	
 	/**
@@ -43,16 +112,17 @@ public class TokenManager {
 		JwtClaims claims = new JwtClaims();
 		claims.setIssuer(ISSUER);
 		claims.setSubject(subject);
-		claims.setExpirationTimeMinutesInTheFuture(10);
+		claims.setExpirationTimeMinutesInTheFuture(tokenLifetime);
 		claims.setNotBeforeMinutesInThePast(2);
 		claims.setIssuedAtToNow();
 		claims.setGeneratedJwtId();
 		
+		PublicJsonWebKey signingKey = keyRing.getActiveKey();
 		JsonWebSignature jws = new JsonWebSignature();
 		jws.setPayload(claims.toJson());
-		jws.setKey(rsaJsonWebKey.getPrivateKey());
-		jws.setKeyIdHeaderValue(rsaJsonWebKey.getKeyId());
-		jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.RSA_USING_SHA256);
+		jws.setKey(signingKey.getPrivateKey());
+		jws.setKeyIdHeaderValue(signingKey.getKeyId());
+		jws.setAlgorithmHeaderValue(KeyRing.getAlgorithm(signingKey));
 
 		String jwt;
 		try {
@@ -63,8 +133,35 @@ public class TokenManager {
 		return jwt;
 	}
 	
+	/**
+	 * Generates a JSON Web Token for the given subject using the crypto executor.
+	 * @param subject Service or user identifier to be used as subject for the token.
+	 * @param resultHandler Handler for the JSON web token. Fails if the token could not be signed or the executor is overloaded.
+	 */
+	public void generateToken(final String subject, AsyncResultHandler<String> resultHandler) {
+		if (cryptoExecutor != null) {
+			cryptoExecutor.execute(new Callable<String>() {
+				
+				@Override
+				public String call() throws RuntimeException {
+					return generateToken(subject);
+				}
+			}, resultHandler);
+			return;
+		}
+		String jwt = null;
+		RuntimeException cause = null;
+		try {
+			jwt = generateToken(subject);
+		} catch (RuntimeException e) {
+			cause = e;
+		}
+		resultHandler.handle(createResult(jwt, cause));
+	}
+	
 	/**
 	 * Validates a token fur the given subject.
+	 * Tokens which already passed the verification are served from the token cache until they expire.
 	 * @param subject ID of the service or user trying to authenticate with the token. 
 	 * @param jwt JSON web token to validate.
 	 * @return Claims of the token.
@@ -74,23 +171,192 @@ public class TokenManager {
 		if (jwt == null) {
 			throw new InvalidTokenException(jwt, "Token is null.");
 		}
-		JwtConsumer jwtConsumer = new JwtConsumerBuilder()
-			.setRequireExpirationTime()
-			.setAllowedClockSkewInSeconds(30)
-			.setRequireSubject()
-			.setExpectedIssuer(ISSUER)
-			.setVerificationKey(rsaJsonWebKey.getKey())
-			.build();
-		JwtClaims jwtClaims;
+		JsonObject claims = tokenCache.get(jwt);
+		if (claims == null) {
+			claims = verifyToken(jwt);
+		}
+		checkClaims(jwt, claims, subject);
+		return claims;
+	}
+	
+	/**
+	 * Validates a token for the given subject.
+	 * Cached tokens are validated immediately, the signature of all other tokens is verified using the crypto executor.
+	 * @param jwt JSON web token to validate.
+	 * @param subject ID of the service or user trying to authenticate with the token.
+	 * @param resultHandler Handler for the claims of the token. Fails with an {@link InvalidTokenException} if the token is invalid.
+	 */
+	public void validateToken(final String jwt, final String subject, AsyncResultHandler<JsonObject> resultHandler) {
+		if (jwt == null) {
+			resultHandler.handle(createResult((JsonObject) null, new InvalidTokenException(jwt, "Token is null.")));
+			return;
+		}
+		JsonObject cachedClaims = tokenCache.get(jwt);
+		if (cachedClaims == null && cryptoExecutor != null) {
+			cryptoExecutor.execute(new Callable<JsonObject>() {
+				
+				@Override
+				public JsonObject call() throws InvalidTokenException {
+					JsonObject claims = verifyToken(jwt);
+					checkClaims(jwt, claims, subject);
+					return claims;
+				}
+			}, resultHandler);
+			return;
+		}
+		JsonObject claims = null;
+		InvalidTokenException cause = null;
 		try {
-			jwtClaims = jwtConsumer.processToClaims(jwt);
+			claims = cachedClaims != null ? cachedClaims : verifyToken(jwt);
+			checkClaims(jwt, claims, subject);
+		} catch (InvalidTokenException e) {
+			claims = null;
+			cause = e;
+		}
+		resultHandler.handle(createResult(claims, cause));
+	}
+	
+	/**
+	 * Verifies the signature and claims of a token and adds it to the token cache.
+	 * @param jwt JSON web token to verify.
+	 * @return Claims of the token.
+	 * @throws InvalidTokenException The token is invalid.
+	 */
+	private JsonObject verifyToken(String jwt) throws InvalidTokenException {
+		try {
+			JwtClaims jwtClaims = jwtConsumer.processToClaims(jwt);
 			JsonObject claims = new JsonObject(jwtClaims.toJson());
-			if (!jwtClaims.getSubject().equals(subject)) {
-				throw new InvalidTokenException(jwt, "Invalid subject: \"" + jwtClaims.getSubject() + "\" found but \"" + subject + "\" expected.");
-			}
+			tokenCache.put(jwt, claims, jwtClaims.getExpirationTime().getValueInMillis());
 			return claims;
 		} catch (InvalidJwtException | MalformedClaimException e) {
 			throw new InvalidTokenException(jwt, e.getMessage(), e);
 		}
 	}
+	
+	/**
+	 * Checks the subject of a verified token and whether the token has been revoked.
+	 * @param jwt JSON web token.
+	 * @param claims Claims of the token.
+	 * @param subject Expected subject.
+	 * @throws InvalidTokenException The token is issued for another subject or has been revoked.
+	 */
+	private void checkClaims(String jwt, JsonObject claims, String subject) throws InvalidTokenException {
+		String tokenSubject = claims.getString("sub");
+		if (!tokenSubject.equals(subject)) {
+			throw new InvalidTokenException(jwt, "Invalid subject: \"" + tokenSubject + "\" found but \"" + subject + "\" expected.");
+		}
+		if (revocations.isRevoked(claims)) {
+			throw new InvalidTokenException(jwt, "Token has been revoked.");
+		}
+	}
+	
+	private static <T> AsyncResult<T> createResult(final T result, final Throwable cause) {
+		return new AsyncResult<T>() {
+			
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+			
+			@Override
+			public T result() {
+				return result;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+	
+	/**
+	 * Rotates the signing key if it reached the configured age and picks up keys rotated by other instances or nodes.
+	 * @throws RuntimeException Failed to load or generate keys.
+	 */
+	public void rotateKeys() throws RuntimeException {
+		if (rotationInterval > 0) {
+			keyRing = keyStore.rotate(rotationInterval, getMaxTokenAge());
+		} else {
+			keyRing = keyStore.refresh();
+		}
+	}
+	
+	/**
+	 * Rotates the signing key if it reached the configured age, see {@link #rotateKeys()}.
+	 * Keys are generated and persisted using the crypto executor, so the calling event loop is not blocked.
+	 * @param resultHandler Handler to check if the operation succeeded.
+	 */
+	public void rotateKeys(AsyncResultHandler<Void> resultHandler) {
+		if (cryptoExecutor == null) {
+			RuntimeException cause = null;
+			try {
+				rotateKeys();
+			} catch (RuntimeException e) {
+				cause = e;
+			}
+			resultHandler.handle(TokenManager.<Void>createResult(null, cause));
+			return;
+		}
+		cryptoExecutor.execute(new Callable<Void>() {
+			
+			@Override
+			public Void call() {
+				rotateKeys();
+				return null;
+			}
+		}, resultHandler);
+	}
+	
+	/**
+	 * Returns the list of revoked tokens checked on validation.
+	 * @return Revocation list.
+	 */
+	public RevocationList getRevocationList() {
+		return revocations;
+	}
+	
+	/**
+	 * Returns the maximum duration a token is accepted after it has been issued, including the allowed clock skew.
+	 * Retired keys are kept for this duration to verify tokens signed before the rotation.
+	 * @return Duration in milliseconds.
+	 */
+	public long getMaxTokenAge() {
+		return tokenLifetime * 60000L + ALLOWED_CLOCK_SKEW_SECONDS * 1000L;
+	}
+	
+	/**
+	 * Picks up keys rotated by other instances of the JVM from the shared key ring.
+	 * The key file is not accessed, keys rotated by other nodes are reloaded by {@link #rotateKeys()}.
+	 * @return <code>true</code> if the key ring has been changed, otherwise <code>false</code>.
+	 */
+	private boolean syncKeys() {
+		KeyRing current = keyStore.getKeyRing();
+		if (current == keyRing) {
+			return false;
+		}
+		keyRing = current;
+		return true;
+	}
+	
+	/**
+	 * Returns the public keys to verify tokens.
+	 * @return JSON web key set including the version of the key ring. The version is increased on each key rotation.
+	 */
+	public JsonObject getJwks() {
+		return keyRing.toJson(OutputControlLevel.PUBLIC_ONLY);
+	}
+	
+	/**
+	 * Returns the statistics of the verified token cache.
+	 * @return JSON object with the fields size, maxSize, hits, misses and evictions.
+	 */
+	public JsonObject getCacheStatistics() {
+		return tokenCache.getStatistics();
+	}
 }
@@ -4,6 +4,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
@@ -42,9 +43,20 @@ public class UserManager {
 	}
 	
 	private final MongoDBConnector mongo;
+	private final CryptoExecutor cryptoExecutor;
 	
 	public UserManager(MongoDBConnector mongoConnector) {
+		this(mongoConnector, null);
+	}
+	
+	/**
+	 * Creates a user manager.
+	 * @param mongoConnector Connector for the user database.
+	 * @param cryptoExecutor Executor to hash passwords off the event loop. May be <code>null</code> to hash on the calling thread.
+	 */
+	public UserManager(MongoDBConnector mongoConnector, CryptoExecutor cryptoExecutor) {
 		this.mongo = mongoConnector;
+		this.cryptoExecutor = cryptoExecutor;
 	}
 	
 	/**
@@ -167,18 +179,46 @@ public class UserManager {
 	 * @param resultHandler Handler to return the user information if the authentication was a success.
 	 * @throws IllegalArgumentException Invalid authentication type.
 	 */
-	public void authenticateUser(String userId, String authType, String code, final AsyncResultHandler<User> resultHandler) throws IllegalArgumentException {
-		JsonObject matcher = new JsonObject();
+	public void authenticateUser(String userId, String authType, final String code, final AsyncResultHandler<User> resultHandler) throws IllegalArgumentException {
+		final JsonObject matcher = new JsonObject();
 		matcher.putString("id", userId);
 		switch (authType) {
 		case "password":
-			try {
-				matcher.putString("hash", hash(code));
-			} catch (NoSuchAlgorithmException e) {
-				logger.error("Failed to create password hash.", e);
-				throw new RuntimeException("Failed to create password hash: " + e.getMessage());
-			}
-			break;
+			hash(code, new AsyncResultHandler<String>() {
+				
+				@Override
+				public void handle(final AsyncResult<String> hashRequest) {
+					if (hashRequest.succeeded()) {
+						matcher.putString("hash", hashRequest.result());
+						findUser(matcher, resultHandler);
+					} else {
+						logger.error("Failed to create password hash.", hashRequest.cause());
+						resultHandler.handle(new AsyncResult<User>() {
+							
+							@Override
+							public boolean succeeded() {
+								return false;
+							}
+							
+							@Override
+							public User result() {
+								return null;
+							}
+							
+							@Override
+							public boolean failed() {
+								return true;
+							}
+							
+							@Override
+							public Throwable cause() {
+								return new Throwable("Failed to create password hash: " + hashRequest.cause().getMessage());
+							}
+						});
+					}
+				}
+			});
+			return;
 		case "hash":
 			matcher.putString("hash", code);
 			break;
@@ -188,6 +228,10 @@ public class UserManager {
 		default:
 			throw new IllegalArgumentException("Invalid authentication type. The following types are supported: password, hash, pin");
 		}
+		findUser(matcher, resultHandler);
+	}
+	
+	private void findUser(JsonObject matcher, final AsyncResultHandler<User> resultHandler) {
 		JsonObject keys = new JsonObject();
 		for (String key : User.getRestrictedFields()) {
 			keys.putNumber(key, 1);
@@ -296,6 +340,52 @@ public class UserManager {
 		mongo.update("users", new JsonObject().putString("id", user.getId()), user.asJson(), true, false, resultHandler);
 	}
 	
+	/**
+	 * Stores a user with a new password. The password is hashed off the event loop before the user is stored.
+	 * @param user User to store.
+	 * @param password Plain text password. If <code>null</code> or empty, the current password hash of the user is kept.
+	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
+	 */
+	public void storeUser(final User user, String password, final AsyncResultHandler<Void> resultHandler) {
+		if (password == null || password.isEmpty()) {
+			storeUser(user, resultHandler);
+			return;
+		}
+		hash(password, new AsyncResultHandler<String>() {
+			
+			@Override
+			public void handle(final AsyncResult<String> hashRequest) {
+				if (hashRequest.succeeded()) {
+					user.setHash(hashRequest.result());
+					storeUser(user, resultHandler);
+				} else if (resultHandler != null) {
+					resultHandler.handle(new AsyncResult<Void>() {
+						
+						@Override
+						public boolean succeeded() {
+							return false;
+						}
+						
+						@Override
+						public Void result() {
+							return null;
+						}
+						
+						@Override
+						public boolean failed() {
+							return true;
+						}
+						
+						@Override
+						public Throwable cause() {
+							return new Throwable("Failed to hash password: " + hashRequest.cause().getMessage());
+						}
+					});
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Deletes a user.
 	 * @param userId ID of the user to delete.
@@ -349,4 +439,54 @@ public class UserManager {
 
 		return sb.toString();
 	}
+	
+	/**
+	 * Encodes a string as hexadecimal SHA-256 hash using the crypto executor.
+	 * @param text String to encode.
+	 * @param resultHandler Handler for the encoded string.
+	 */
+	public void hash(final String text, final AsyncResultHandler<String> resultHandler) {
+		Callable<String> operation = new Callable<String>() {
+			
+			@Override
+			public String call() throws NoSuchAlgorithmException {
+				return hash(text);
+			}
+		};
+		if (cryptoExecutor != null) {
+			cryptoExecutor.execute(operation, resultHandler);
+			return;
+		}
+		String result = null;
+		Exception cause = null;
+		try {
+			result = operation.call();
+		} catch (Exception e) {
+			cause = e;
+		}
+		final String hash = result;
+		final Throwable failure = cause;
+		resultHandler.handle(new AsyncResult<String>() {
+			
+			@Override
+			public boolean succeeded() {
+				return failure == null;
+			}
+			
+			@Override
+			public String result() {
+				return hash;
+			}
+			
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+			
+			@Override
+			public Throwable cause() {
+				return failure;
+			}
+		});
+	}
 }
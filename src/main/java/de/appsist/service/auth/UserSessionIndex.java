@@ -0,0 +1,254 @@
+package de.appsist.service.auth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.shareddata.Shareable;
+
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.View;
+
+/**
+ * In-memory index of user sessions.
+ * Maps users to their sessions and sessions to the views registered in them, to answer user status requests without accessing the database.
+ * The index is shared between all service instances of a JVM. Updates are serialized, lookups do not lock.
+ * The index only sees the sessions changed by this JVM. It must be disabled if other service nodes or processes share the session database, users are then looked up in the session store.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class UserSessionIndex implements Shareable {
+	private final boolean enabled;
+	private final ConcurrentMap<String, Entry> sessions = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Set<String>> users = new ConcurrentHashMap<>();
+
+	/**
+	 * Immutable index entry for a user session.
+	 */
+	private static class Entry {
+		private final String userId;
+		private final List<View> views;
+		private final long lastActivity;
+
+		private Entry(String userId, List<View> views, long lastActivity) {
+			this.userId = userId;
+			this.views = Collections.unmodifiableList(views);
+			this.lastActivity = lastActivity;
+		}
+
+		private boolean isOnline() {
+			return !views.isEmpty();
+		}
+
+		private JsonArray getViewsAsJson() {
+			JsonArray viewsArray = new JsonArray();
+			for (View view : views) {
+				viewsArray.addObject(view.asJson());
+			}
+			return viewsArray;
+		}
+
+		private String getLastActivityAsString() {
+			return lastActivity > 0 ? ISODateTimeFormat.dateTime().print(lastActivity) : null;
+		}
+	}
+
+	/**
+	 * Creates a user session index.
+	 * @param enabled If <code>false</code>, sessions are never indexed. Has to be disabled if sessions are changed outside of this JVM.
+	 */
+	public UserSessionIndex(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Checks if sessions are indexed.
+	 * @return <code>true</code> if the index is enabled, otherwise <code>false</code>.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Adds or updates a session. Sessions without user are removed from the index.
+	 * @param session Session to index.
+	 */
+	public synchronized void update(Session session) {
+		if (!enabled) return;
+		String sessionId = session.getId();
+		String userId = session.getUserId();
+		if (userId == null) {
+			remove(sessionId);
+			return;
+		}
+		Entry entry = new Entry(userId, session.getViews(), session.getLastActivityMillis());
+		Entry previous = sessions.put(sessionId, entry);
+		if (previous != null && !previous.userId.equals(userId)) {
+			removeFromUser(previous.userId, sessionId);
+		}
+		Set<String> sessionIds = users.get(userId);
+		if (sessionIds == null) {
+			sessionIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			users.put(userId, sessionIds);
+		}
+		sessionIds.add(sessionId);
+	}
+
+	/**
+	 * Adds a view to an indexed session. Sessions not indexed are not affected.
+	 * @param sessionId ID of the session.
+	 * @param view View to add.
+	 */
+	public synchronized void addView(String sessionId, View view) {
+		if (!enabled) return;
+		Entry entry = sessions.get(sessionId);
+		if (entry != null) {
+			List<View> views = new ArrayList<>(entry.views);
+			views.add(view);
+			sessions.put(sessionId, new Entry(entry.userId, views, entry.lastActivity));
+		}
+	}
+
+	/**
+	 * Removes a view from an indexed session. Sessions not indexed are not affected.
+	 * @param sessionId ID of the session.
+	 * @param viewId ID of the view to remove.
+	 */
+	public synchronized void removeView(String sessionId, String viewId) {
+		if (!enabled) return;
+		Entry entry = sessions.get(sessionId);
+		if (entry != null) {
+			List<View> views = new ArrayList<>(entry.views.size());
+			for (View view : entry.views) {
+				if (!viewId.equals(view.getId())) {
+					views.add(view);
+				}
+			}
+			sessions.put(sessionId, new Entry(entry.userId, views, entry.lastActivity));
+		}
+	}
+
+	/**
+	 * Sets the last activity of an indexed session. Sessions not indexed are not affected.
+	 * @param sessionId ID of the session.
+	 * @param lastActivity Time in milliseconds since epoch.
+	 */
+	public synchronized void setLastActivity(String sessionId, long lastActivity) {
+		if (!enabled) return;
+		Entry entry = sessions.get(sessionId);
+		if (entry != null) {
+			sessions.put(sessionId, new Entry(entry.userId, entry.views, lastActivity));
+		}
+	}
+
+	/**
+	 * Removes a session from the index.
+	 * @param sessionId ID of the session to remove.
+	 */
+	public synchronized void remove(String sessionId) {
+		Entry entry = sessions.remove(sessionId);
+		if (entry != null) {
+			removeFromUser(entry.userId, sessionId);
+		}
+	}
+
+	private void removeFromUser(String userId, String sessionId) {
+		Set<String> sessionIds = users.get(userId);
+		if (sessionIds != null) {
+			sessionIds.remove(sessionId);
+			if (sessionIds.isEmpty()) users.remove(userId);
+		}
+	}
+
+	/**
+	 * Removes all sessions from the index.
+	 */
+	public synchronized void clear() {
+		sessions.clear();
+		users.clear();
+	}
+
+	/**
+	 * Returns a session of a user. Sessions with registered views are preferred.
+	 * @param userId ID of the user.
+	 * @return Session identifier or <code>null</code> if the user has no session.
+	 */
+	public String getSessionId(String userId) {
+		String sessionId = null;
+		Set<String> sessionIds = users.get(userId);
+		if (sessionIds != null) for (String candidate : sessionIds) {
+			Entry entry = sessions.get(candidate);
+			if (entry == null) continue;
+			sessionId = candidate;
+			if (entry.isOnline()) break;
+		}
+		return sessionId;
+	}
+
+	/**
+	 * Returns the online status of a user.
+	 * @param userId ID of the user.
+	 * @return JSON object with the fields isOnline and lastActivity. For online users, sessionId and views are set.
+	 */
+	public JsonObject getStatus(String userId) {
+		String sessionId = getSessionId(userId);
+		Entry entry = sessionId != null ? sessions.get(sessionId) : null;
+		return createStatus(sessionId, entry);
+	}
+
+	/**
+	 * Returns the online status of a user based on a session of the user, in the format of {@link #getStatus(String)}.
+	 * @param session Session of the user, sessions with registered views should be preferred. May be <code>null</code> if the user has no session.
+	 * @return JSON object with the fields isOnline and lastActivity. For online users, sessionId and views are set.
+	 */
+	public static JsonObject getStatus(Session session) {
+		if (session == null) return createStatus(null, null);
+		return createStatus(session.getId(), new Entry(session.getUserId(), session.getViews(), session.getLastActivityMillis()));
+	}
+
+	private static JsonObject createStatus(String sessionId, Entry entry) {
+		JsonObject status = new JsonObject();
+		if (entry != null) {
+			status.putBoolean("isOnline", entry.isOnline());
+			status.putString("lastActivity", entry.getLastActivityAsString());
+			if (entry.isOnline()) {
+				status.putString("sessionId", sessionId);
+				status.putArray("views", entry.getViewsAsJson());
+			}
+		} else {
+			status.putBoolean("isOnline", false);
+		}
+		return status;
+	}
+
+	/**
+	 * Returns all indexed sessions.
+	 * @return List of JSON objects with the session fields id, userId, views and lastActivity.
+	 */
+	public List<JsonObject> getSessions() {
+		List<JsonObject> result = new ArrayList<>(sessions.size());
+		for (Map.Entry<String, Entry> mapEntry : sessions.entrySet()) {
+			Entry entry = mapEntry.getValue();
+			result.add(new JsonObject()
+				.putString("id", mapEntry.getKey())
+				.putString("userId", entry.userId)
+				.putArray("views", entry.getViewsAsJson())
+				.putString("lastActivity", entry.getLastActivityAsString()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of indexed sessions.
+	 * @return Number of user sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+}
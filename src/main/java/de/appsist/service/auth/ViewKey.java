@@ -0,0 +1,56 @@
+package de.appsist.service.auth;
+
+/**
+ * Key of a view registered in a session, used to track views sending heartbeats.
+ * Views are only unique within their session, so the key consists of the session and the view identifier.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public final class ViewKey {
+	private final String sessionId;
+	private final String viewId;
+
+	/**
+	 * Creates the key of a view.
+	 * @param sessionId ID of the session the view is registered in.
+	 * @param viewId ID of the view.
+	 */
+	public ViewKey(String sessionId, String viewId) {
+		if (sessionId == null || viewId == null) throw new IllegalArgumentException("Session and view identifier are required.");
+		this.sessionId = sessionId;
+		this.viewId = viewId;
+	}
+
+	/**
+	 * Returns the identifier of the session the view is registered in.
+	 * @return Session identifier.
+	 */
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * Returns the identifier of the view.
+	 * @return View identifier.
+	 */
+	public String getViewId() {
+		return viewId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof ViewKey)) return false;
+		ViewKey other = (ViewKey) obj;
+		return sessionId.equals(other.sessionId) && viewId.equals(other.viewId);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * sessionId.hashCode() + viewId.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return sessionId + "/" + viewId;
+	}
+}
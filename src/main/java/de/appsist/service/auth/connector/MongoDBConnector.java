@@ -113,6 +113,55 @@ public class MongoDBConnector {
 		});
 	}
 	
+	/**
+	 * Updates existing documents in the database and returns the number of documents affected.
+	 * In combination with a matcher checking the current state of a document, this allows conditional updates within a single request.
+	 * @param collection Name of the MongoDB collection.
+	 * @param criteria The selection criteria for the update.
+	 * @param newObj Updated document or update operators.
+	 * @param upsert If set to <code>true</code>, creates a new document when no document matches the query criteria.
+	 * @param multi If set to <code>true</code>, updates multiple documents that meet the query criteria. If set to <code>false</code>, updates one document.
+	 * @param resultHandler Handler to return the number of documents affected.
+	 */
+	public void updateAndCount(String collection, JsonObject criteria, JsonObject newObj, boolean upsert, boolean multi, final AsyncResultHandler<Integer> resultHandler) {
+		JsonObject request = new JsonObject();
+		request.putString("action", "update");
+		request.putString("collection", collection);
+		request.putObject("criteria", criteria);
+		request.putObject("objNew", newObj);
+		request.putBoolean("upsert", upsert);
+		request.putBoolean("multi", multi);
+		eventBus.send(address, request, new Handler<Message<JsonObject>>() {
+
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonObject body = message.body();
+				resultHandler.handle(new AsyncResult<Integer>() {
+					
+					@Override
+					public boolean succeeded() {
+						return "ok".equals(body.getString("status"));
+					}
+					
+					@Override
+					public Integer result() {
+						return succeeded() ? body.getInteger("number") : null;
+					}
+					
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+					
+					@Override
+					public Throwable cause() {
+						return failed() ? new Throwable(body.getString("message")) : null;
+					}
+				});
+			}
+		});
+	}
+	
 	/**
 	 * Requests documents from the database.
 	 * @param collection Name of the MongoDB collection.
@@ -121,26 +170,52 @@ public class MongoDBConnector {
 	 * @param resultHandler Handler for the request results.
 	 */
 	public void find(String collection, JsonObject matcher, JsonObject keys, final AsyncResultHandler<JsonArray> resultHandler) {
+		find(collection, matcher, keys, 0, resultHandler);
+	}
+	
+	/**
+	 * Requests documents from the database.
+	 * The persistor returns large results in batches. All batches are retrieved before the result handler is called.
+	 * @param collection Name of the MongoDB collection.
+	 * @param matcher JSON object to match against to find matching documents. This obeys the normal MongoDB matching rules.
+	 * @param keys JSON object that contains the fields that should be returned for matched documents. May be <code>null</code>.
+	 * @param batchSize Number of documents to retrieve per batch. 0 uses the default of the persistor.
+	 * @param resultHandler Handler for the request results.
+	 */
+	public void find(String collection, JsonObject matcher, JsonObject keys, int batchSize, final AsyncResultHandler<JsonArray> resultHandler) {
 		JsonObject request = new JsonObject();
 		request.putString("action", "find");
 		request.putString("collection", collection);
 		request.putObject("matcher", matcher);
 		if (keys != null) request.putObject("keys", keys);
+		if (batchSize > 0) request.putNumber("batch_size", batchSize);
+		final JsonArray results = new JsonArray();
 		eventBus.send(address, request, new Handler<Message<JsonObject>>() {
 
 			@Override
 			public void handle(Message<JsonObject> message) {
 				final JsonObject body = message.body();
+				final String status = body.getString("status");
+				if ("ok".equals(status) || "more-exist".equals(status)) {
+					for (Object result : body.getArray("results")) {
+						results.add(result);
+					}
+				}
+				if ("more-exist".equals(status)) {
+					// Request the next batch.
+					message.reply(new JsonObject(), this);
+					return;
+				}
 				resultHandler.handle(new AsyncResult<JsonArray>() {
 					
 					@Override
 					public boolean succeeded() {
-						return "ok".equals(body.getString("status"));
+						return "ok".equals(status);
 					}
 					
 					@Override
 					public JsonArray result() {
-						return succeeded() ? body.getArray("results") : null;
+						return succeeded() ? results : null;
 					}
 					
 					@Override
@@ -293,6 +368,46 @@ public class MongoDBConnector {
 		});
 	}
 	
+	/**
+	 * Runs a database command.
+	 * @param command Command document. The name of the command must be its first field.
+	 * @param resultHandler Handler for the result document of the command.
+	 */
+	public void command(JsonObject command, final AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject request = new JsonObject();
+		request.putString("action", "command");
+		request.putString("command", command.encode());
+		eventBus.send(address, request, new Handler<Message<JsonObject>>() {
+
+			@Override
+			public void handle(Message<JsonObject> message) {
+				final JsonObject body = message.body();
+				resultHandler.handle(new AsyncResult<JsonObject>() {
+					
+					@Override
+					public boolean succeeded() {
+						return "ok".equals(body.getString("status"));
+					}
+					
+					@Override
+					public JsonObject result() {
+						return succeeded() ? body.getObject("result") : null;
+					}
+					
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+					
+					@Override
+					public Throwable cause() {
+						return failed() ? new Throwable(body.getString("message")) : null;
+					}
+				});
+			}
+		});
+	}
+	
 	/**
 	 * Counts documents in the database.
 	 * @param collection Collection containing the documents.
@@ -0,0 +1,257 @@
+package de.appsist.service.auth.connector;
+
+import java.security.Key;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jose4j.jwa.AlgorithmConstraints;
+import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
+import org.jose4j.jwk.JsonWebKey;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.jwx.JsonWebStructure;
+import org.jose4j.keys.resolvers.VerificationKeyResolver;
+import org.jose4j.lang.JoseException;
+import org.jose4j.lang.UnresolvableKeyException;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.InvalidTokenException;
+import de.appsist.service.auth.MainVerticle;
+import de.appsist.service.auth.TokenCache;
+import de.appsist.service.auth.TokenManager;
+
+/**
+ * Validator for tokens issued by the authentication service.
+ * Other verticles may embed the validator to check tokens locally instead of sending a <code>validateToken</code> request for each of them.
+ * The public keys are retrieved from the service and only reloaded if a token refers to an unknown key, i.e., after a key rotation.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class TokenValidator {
+	private static final int ALLOWED_CLOCK_SKEW_SECONDS = 30;
+
+	private final EventBus eventBus;
+	private final String address;
+	private final JwtConsumer jwtConsumer;
+	private final TokenCache tokenCache;
+	private volatile Map<String, Key> keys = Collections.emptyMap();
+	private volatile long version = 0;
+
+	/**
+	 * Thrown by the resolver if a token refers to a key which has not been loaded yet.
+	 */
+	private static class UnknownKeyException extends UnresolvableKeyException {
+		private static final long serialVersionUID = 1L;
+
+		private UnknownKeyException(String keyId) {
+			super("Unknown key identifier: " + keyId);
+		}
+	}
+
+	/**
+	 * Creates a validator for the default address of the authentication service.
+	 * @param eventBus Event bus to retrieve the public keys.
+	 */
+	public TokenValidator(EventBus eventBus) {
+		this(eventBus, MainVerticle.SERVICE_ID, 1000);
+	}
+
+	/**
+	 * Creates a validator.
+	 * @param eventBus Event bus to retrieve the public keys.
+	 * @param address Event bus address of the authentication service.
+	 * @param cacheSize Maximum number of verified tokens to cache. 0 disables the cache.
+	 */
+	public TokenValidator(EventBus eventBus, String address, int cacheSize) {
+		this.eventBus = eventBus;
+		this.address = address;
+		this.tokenCache = new TokenCache(cacheSize);
+		jwtConsumer = new JwtConsumerBuilder()
+			.setRequireExpirationTime()
+			.setAllowedClockSkewInSeconds(ALLOWED_CLOCK_SKEW_SECONDS)
+			.setRequireSubject()
+			.setExpectedIssuer(TokenManager.ISSUER)
+			.setJwsAlgorithmConstraints(new AlgorithmConstraints(ConstraintType.WHITELIST, AlgorithmIdentifiers.RSA_USING_SHA256, AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256))
+			.setVerificationKeyResolver(new VerificationKeyResolver() {
+
+				@Override
+				public Key resolveKey(JsonWebSignature jws, List<JsonWebStructure> nestingContext) throws UnresolvableKeyException {
+					String keyId = jws.getKeyIdHeaderValue();
+					Key key = keyId != null ? keys.get(keyId) : null;
+					if (key == null) {
+						throw new UnknownKeyException(keyId);
+					}
+					return key;
+				}
+			})
+			.build();
+	}
+
+	/**
+	 * Retrieves the current public keys from the authentication service.
+	 * @param resultHandler Handler to check if the operation succeeded. May be <code>null</code>.
+	 */
+	public void refresh(final AsyncResultHandler<Void> resultHandler) {
+		JsonObject request = new JsonObject().putString("action", "getJwks");
+		eventBus.send(address, request, new Handler<Message<JsonObject>>() {
+
+			@Override
+			public void handle(Message<JsonObject> message) {
+				JsonObject body = message.body();
+				Throwable failure = null;
+				if ("ok".equals(body.getString("status"))) {
+					try {
+						updateKeys(body.getObject("jwks"), body.getLong("version"));
+					} catch (JoseException e) {
+						failure = new Throwable("Invalid key set: " + e.getMessage(), e);
+					}
+				} else {
+					failure = new Throwable(body.getString("message"));
+				}
+				final Throwable cause = failure;
+				if (resultHandler != null) resultHandler.handle(new AsyncResult<Void>() {
+
+					@Override
+					public boolean succeeded() {
+						return cause == null;
+					}
+
+					@Override
+					public Void result() {
+						return null;
+					}
+
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+
+					@Override
+					public Throwable cause() {
+						return cause;
+					}
+				});
+			}
+		});
+	}
+
+	private synchronized void updateKeys(JsonObject jwks, long newVersion) throws JoseException {
+		if (newVersion == version) {
+			return;
+		}
+		Map<String, Key> newKeys = new HashMap<>();
+		for (JsonWebKey key : new JsonWebKeySet(jwks.encode()).getJsonWebKeys()) {
+			newKeys.put(key.getKeyId(), key.getKey());
+		}
+		keys = newKeys;
+		version = newVersion;
+	}
+
+	/**
+	 * Returns the version of the key set currently used.
+	 * @return Version number or 0 if no keys have been loaded yet.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Validates a token with the keys loaded so far.
+	 * @param jwt JSON web token to validate.
+	 * @param subject ID of the service or user trying to authenticate with the token.
+	 * @return Claims of the token.
+	 * @throws InvalidTokenException The token is invalid or signed with a key which has not been loaded yet.
+	 */
+	public JsonObject validateToken(String jwt, String subject) throws InvalidTokenException {
+		if (jwt == null) {
+			throw new InvalidTokenException(jwt, "Token is null.");
+		}
+		JsonObject claims = tokenCache.get(jwt);
+		if (claims == null) {
+			try {
+				JwtClaims jwtClaims = jwtConsumer.processToClaims(jwt);
+				claims = new JsonObject(jwtClaims.toJson());
+				tokenCache.put(jwt, claims, jwtClaims.getExpirationTime().getValueInMillis());
+			} catch (InvalidJwtException | MalformedClaimException e) {
+				throw new InvalidTokenException(jwt, e.getMessage(), e);
+			}
+		}
+		String tokenSubject = claims.getString("sub");
+		if (!tokenSubject.equals(subject)) {
+			throw new InvalidTokenException(jwt, "Invalid subject: \"" + tokenSubject + "\" found but \"" + subject + "\" expected.");
+		}
+		return claims;
+	}
+
+	/**
+	 * Validates a token. If the token is signed with an unknown key, the keys are reloaded once before the token is rejected.
+	 * @param jwt JSON web token to validate.
+	 * @param subject ID of the service or user trying to authenticate with the token.
+	 * @param resultHandler Handler for the claims of the token. Fails with an {@link InvalidTokenException} if the token is invalid.
+	 */
+	public void validateToken(final String jwt, final String subject, final AsyncResultHandler<JsonObject> resultHandler) {
+		try {
+			resultHandler.handle(createResult(validateToken(jwt, subject), null));
+		} catch (InvalidTokenException e) {
+			if (!isCausedByUnknownKey(e)) {
+				resultHandler.handle(createResult(null, e));
+				return;
+			}
+			refresh(new AsyncResultHandler<Void>() {
+
+				@Override
+				public void handle(AsyncResult<Void> refreshRequest) {
+					try {
+						resultHandler.handle(createResult(validateToken(jwt, subject), null));
+					} catch (InvalidTokenException e) {
+						resultHandler.handle(createResult(null, e));
+					}
+				}
+			});
+		}
+	}
+
+	private static boolean isCausedByUnknownKey(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UnknownKeyException) return true;
+		}
+		return false;
+	}
+
+	private static AsyncResult<JsonObject> createResult(final JsonObject claims, final Throwable cause) {
+		return new AsyncResult<JsonObject>() {
+
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+
+			@Override
+			public JsonObject result() {
+				return claims;
+			}
+
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+}
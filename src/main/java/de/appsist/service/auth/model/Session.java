@@ -1,7 +1,9 @@
 package de.appsist.service.auth.model;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
@@ -10,22 +12,52 @@ import org.vertx.java.core.json.JsonObject;
 
 /**
  * Model for a session.
- * The model is internally represented by a JSON object.
+ * The session is held in typed fields: The last activity is stored in milliseconds since epoch, views are indexed by their identifier.
+ * The JSON representation with an ISO 8601 last activity is only created and parsed when a session is sent or stored, see {@link #asJson()} and {@link #Session(JsonObject)}. The representation is not backed by the session, use the setters to change the session.
+ * Views are never modified, copies of a session share them. Session data is not part of the model, it is stored and retrieved separately.
  * @author simon.schwantzer(at)im-c.de
  */
 public class Session {
-	private final JsonObject json;
-	
+	private final String id;
+	private String userId;
+	private final Map<String, View> views;
+	private long lastActivity; // 0 if unknown
+	private final JsonObject properties; // other fields of the JSON representation, may be null
+
 	/**
 	 * Creates a session based on the given JSON object.
-	 * @param json JSON object to wrap.
+	 * @param json JSON representation of the session. The object is not referenced by the session. A data field is ignored.
 	 * @throws IllegalArgumentException The given JSON object is not a valid session
 	 */
 	public Session(JsonObject json) throws IllegalArgumentException {
-		this.json = json;
 		validateJson(json);
+		id = json.getString("id");
+		userId = json.getString("userId");
+		views = new LinkedHashMap<>();
+		JsonArray viewsArray = json.getArray("views");
+		if (viewsArray != null) for (Object entry : viewsArray) {
+			View view = new View((JsonObject) entry);
+			views.put(view.getId(), view);
+		}
+		String lastActivityString = json.getString("lastActivity");
+		lastActivity = lastActivityString != null ? ISODateTimeFormat.dateTime().parseMillis(lastActivityString) : 0;
+		JsonObject otherFields = null;
+		for (String fieldName : json.getFieldNames()) {
+			switch (fieldName) {
+			case "id":
+			case "userId":
+			case "views":
+			case "lastActivity":
+			case "data": // stored separately, documents of former versions may contain it
+				break;
+			default:
+				if (otherFields == null) otherFields = new JsonObject();
+				otherFields.putValue(fieldName, json.getValue(fieldName));
+			}
+		}
+		properties = otherFields != null ? otherFields.copy() : null;
 	}
-	
+
 	private static void validateJson(JsonObject json) throws IllegalArgumentException {
 		if (json == null) throw new IllegalArgumentException("Field missing.");
 		String id = json.getString("id");
@@ -33,105 +65,141 @@ public class Session {
 			throw new IllegalArgumentException("Missing identifier (id).");
 		}
 	}
-	
-	/**
-	 * Returns the JSON object wrapped by this model.
-	 * @return JSON representation of the session.
-	 */
-	public JsonObject asJson() {
-		return json;
-	}
-	
+
 	/**
 	 * Creates a new session.
 	 * @param id Identifier for the session.
 	 */
 	public Session(String id) {
-		json = new JsonObject();
+		this.id = id;
+		this.userId = null;
+		this.views = new LinkedHashMap<>();
+		this.properties = null;
+	}
+
+	/**
+	 * Creates a copy of a session. Changes of the copy do not affect the original session.
+	 * @param session Session to copy.
+	 */
+	public Session(Session session) {
+		id = session.id;
+		userId = session.userId;
+		views = new LinkedHashMap<>(session.views);
+		lastActivity = session.lastActivity;
+		properties = session.properties;
+	}
+
+	/**
+	 * Returns the JSON representation of the session.
+	 * Each call creates a new object. Changes of the object do not affect the session, and changes of the session are not reflected by former representations.
+	 * @return New JSON object.
+	 */
+	public JsonObject asJson() {
+		JsonObject json = properties != null ? properties.copy() : new JsonObject();
 		json.putString("id", id);
+		if (userId != null) json.putString("userId", userId);
+		JsonArray viewsArray = new JsonArray();
+		for (View view : views.values()) {
+			viewsArray.addObject(view.asJson());
+		}
+		json.putArray("views", viewsArray);
+		if (lastActivity > 0) json.putString("lastActivity", ISODateTimeFormat.dateTime().print(lastActivity));
+		return json;
 	}
-	
+
 	/**
 	 * Returns the identifier of the session.
 	 * @return Session identifier (UUID).
 	 */
 	public String getId() {
-		return json.getString("id");
+		return id;
 	}
-	
+
 	/**
 	 * Returns the user the session belongs to.
 	 * @return User identifier (UUID) or <code>null</code> if the session is no user session.
 	 */
 	public String getUserId() {
-		return json.getString("userId");
+		return userId;
+	}
+
+	/**
+	 * Sets the user the session belongs to.
+	 * @param userId User identifier or <code>null</code> if the session is no user session.
+	 */
+	public void setUserId(String userId) {
+		this.userId = userId;
 	}
-	
+
 	/**
 	 * Registers a view for the session.
 	 * @param view View to register.
 	 */
 	public void registerView(View view) {
-		JsonArray views = json.getArray("views");
-		if (views == null) {
-			views = new JsonArray();
-			json.putArray("views", views);
-		}
-		views.addObject(view.asJson());
+		views.put(view.getId(), view);
 	}
-	
+
 	/**
 	 * Removes a view for the session.
 	 * @param viewId ID of the view which should be removed.
 	 */
 	public void removeView(String viewId) {
-		JsonArray views = json.getArray("views");
-		
-		if (views != null) {
-			JsonArray newViews = new JsonArray();
-			for (int i = 0; i < views.size(); i++) {
-				View view = new View((JsonObject) views.get(i));
-				if (!view.getId().equals(viewId)) {
-					newViews.addObject(view.asJson());
-				}
-			}
-			json.putArray("views", newViews);
-		}
+		views.remove(viewId);
 	}
-	
+
 	/**
 	 * Checks if at least one view is registered for the session.
 	 * @return <code>true</code> if one or more views are registered, otherwise <code>false</code>.
 	 */
 	public boolean hasView() {
-		JsonArray views = json.getArray("views");
-		return views != null && views.size() > 0;
+		return !views.isEmpty();
 	}
-	
+
+	/**
+	 * Returns a view registered for the session.
+	 * @param viewId ID of the view.
+	 * @return View or <code>null</code> if no view with the given identifier is registered.
+	 */
+	public View getView(String viewId) {
+		return views.get(viewId);
+	}
+
+	/**
+	 * Returns the views registered for the session.
+	 * @return List of views in the order of their registration.
+	 */
 	public List<View> getViews() {
-		List<View> views = new ArrayList<View>();
-		JsonArray viewsArray = json.getArray("views");
-		if (viewsArray != null) for (Object entry : viewsArray) {
-			views.add(new View((JsonObject) entry));
-		}
-		return views;
+		return new ArrayList<>(views.values());
 	}
-	
+
 	/**
-	 * Sets the lastActivity field to now.
+	 * Sets the last activity to now.
 	 */
 	public void update() {
-		DateTime now = new DateTime();
-		String dateTimeString = ISODateTimeFormat.dateTime().print(now);
-		json.putString("lastActivity", dateTimeString);
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sets the last activity.
+	 * @param lastActivity Time in milliseconds since epoch.
+	 */
+	public void setLastActivity(long lastActivity) {
+		this.lastActivity = lastActivity;
 	}
-	
+
+	/**
+	 * Returns the last time the session has been updated.
+	 * @return Time in milliseconds since epoch or 0 if unknown.
+	 */
+	public long getLastActivityMillis() {
+		return lastActivity;
+	}
+
 	/**
-	 * Returns the last time the session has been updated.  
-	 * @return Date time of the last activity. May be <code>null</code>.s
+	 * Returns the last time the session has been updated.
+	 * @return Date time of the last activity. May be <code>null</code>.
 	 */
 	public DateTime getLastActivity() {
-		String dateTimeString = json.getString("lastActivity");
-		return dateTimeString != null ? ISODateTimeFormat.dateTime().parseDateTime(dateTimeString) : null;
+		return lastActivity > 0 ? new DateTime(lastActivity) : null;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,71 @@
+package de.appsist.service.auth.model;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Model for the ownership of a session: the session identifier, the user owning the session and the number of registered views.
+ * The ownership is sufficient to authorize requests for a session. It is retrieved without loading the views of the session.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionOwnership {
+	private final String sessionId;
+	private final String userId;
+	private final int viewCount;
+
+	/**
+	 * Creates the ownership based on the given JSON object.
+	 * @param json JSON object with the fields id, userId (optional) and viewCount.
+	 * @throws IllegalArgumentException The given JSON object does not contain a session identifier.
+	 */
+	public SessionOwnership(JsonObject json) throws IllegalArgumentException {
+		if (json == null) throw new IllegalArgumentException("Field missing.");
+		sessionId = json.getString("id");
+		if (sessionId == null || sessionId.isEmpty()) {
+			throw new IllegalArgumentException("Missing identifier (id).");
+		}
+		userId = json.getString("userId");
+		viewCount = json.getInteger("viewCount", 0);
+	}
+
+	/**
+	 * Creates the ownership of a session.
+	 * @param session Session to create the ownership for.
+	 */
+	public SessionOwnership(Session session) {
+		sessionId = session.getId();
+		userId = session.getUserId();
+		viewCount = session.getViews().size();
+	}
+
+	/**
+	 * Returns the identifier of the session.
+	 * @return Session identifier (UUID).
+	 */
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * Returns the user the session belongs to.
+	 * @return User identifier or <code>null</code> if the session is no user session.
+	 */
+	public String getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Returns the number of views registered for the session.
+	 * @return Number of views.
+	 */
+	public int getViewCount() {
+		return viewCount;
+	}
+
+	/**
+	 * Checks if at least one view is registered for the session.
+	 * @return <code>true</code> if one or more views are registered, otherwise <code>false</code>.
+	 */
+	public boolean hasView() {
+		return viewCount > 0;
+	}
+}
@@ -1,24 +1,35 @@
 package de.appsist.service.auth.model;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.vertx.java.core.json.JsonObject;
 
 /**
  * Model for a view.
+ * Views are immutable and may be shared between sessions. Device classes are interned, as there are only a few of them.
  * @author simon.schwantzer(at)im-c.de
  */
 public class View {
-	public final JsonObject json;
+	private static final int MAX_DEVICE_CLASSES = 1000;
+	private static final ConcurrentMap<String, String> deviceClasses = new ConcurrentHashMap<>();
+
+	private final String id;
+	private final String deviceClass;
+	private final String deviceId;
 
 	/**
 	 * Creates a view based on the given JSON object.
-	 * @param json JSON object to be wrapped.
+	 * @param json JSON representation of the view.
 	 * @throws IllegalArgumentException The given JSON object does not represent a view model.
 	 */
 	public View(JsonObject json) throws IllegalArgumentException {
-		this.json = json;
 		validateJson(json);
+		this.id = json.getString("id");
+		this.deviceClass = intern(json.getString("deviceClass"));
+		this.deviceId = json.getString("deviceId");
 	}
-	
+
 	private static void validateJson(JsonObject json) throws IllegalArgumentException {
 		if (json == null) throw new IllegalArgumentException("Field missing.");
 		String id = json.getString("id");
@@ -34,7 +45,19 @@ public class View {
 			throw new IllegalArgumentException("Missing device identifier (deviceId).");
 		}
 	}
-	
+
+	/**
+	 * Returns the canonical instance of a device class. The number of canonical instances is limited.
+	 */
+	private static String intern(String deviceClass) {
+		if (deviceClass == null) return null;
+		String canonical = deviceClasses.get(deviceClass);
+		if (canonical != null) return canonical;
+		if (deviceClasses.size() >= MAX_DEVICE_CLASSES) return deviceClass;
+		canonical = deviceClasses.putIfAbsent(deviceClass, deviceClass);
+		return canonical != null ? canonical : deviceClass;
+	}
+
 	/**
 	 * Creates a new view.
 	 * @param id Unique ID for this view.
@@ -42,42 +65,44 @@ public class View {
 	 * @param deviceId Identifier for the device.
 	 */
 	public View(String id, String deviceClass, String deviceId) {
-		JsonObject json = new JsonObject();
-		json.putString("id", id);
-		json.putString("deviceClass", deviceClass);
-		json.putString("deviceId", deviceId);
-		this.json = json;
+		this.id = id;
+		this.deviceClass = intern(deviceClass);
+		this.deviceId = deviceId;
 	}
-	
+
 	/**
 	 * Returns the JSON representation of the model.
-	 * @return JSON object.
+	 * @return New JSON object.
 	 */
 	public JsonObject asJson() {
+		JsonObject json = new JsonObject();
+		json.putString("id", id);
+		json.putString("deviceClass", deviceClass);
+		json.putString("deviceId", deviceId);
 		return json;
 	}
-	
+
 	/**
 	 * Returns the unique identifier of the view.
 	 * @return UUID.
 	 */
 	public String getId() {
-		return json.getString("id");
+		return id;
 	}
-	
+
 	/**
 	 * Returns the device class of the view.
 	 * @return Device class identifier.
 	 */
 	public String getDeviceClass() {
-		return json.getString("deviceClass");
+		return deviceClass;
 	}
-	
+
 	/**
 	 * Returns the device id of the view.
 	 * @return Device identifier.
 	 */
 	public String getDeviceId() {
-		return json.getString("deviceId");
+		return deviceId;
 	}
 }
@@ -0,0 +1,157 @@
+package de.appsist.service.auth.store;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Session store keeping all sessions in memory and appending each change to a local file.
+ * The file contains one JSON object per line: either the new state of a session, a deletion marker with the fields id and deleted, or a data change with the fields id, storedData and deletedData. It is replayed when the store is opened.
+ * When the file contains considerably more records than sessions, it is rewritten with the current state only.
+ * Changes are written to the operating system before the operation completes, they are not forced to disk.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class FileSessionStore extends MemorySessionStore {
+	private static final Logger logger = LoggerFactory.getLogger(FileSessionStore.class);
+
+	private final Path file;
+	private BufferedWriter writer; // guarded by this
+	private int records; // guarded by this
+
+	/**
+	 * Opens a session store. Sessions stored in the file are loaded.
+	 * @param file Path of the session file. Created if it does not exist.
+	 * @throws IOException Failed to read or write the session file.
+	 */
+	public FileSessionStore(String file) throws IOException {
+		this.file = Paths.get(file);
+		synchronized (this) {
+			if (Files.exists(this.file)) replay();
+			compact();
+		}
+	}
+
+	private void replay() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) continue;
+				JsonObject record;
+				try {
+					record = new JsonObject(line);
+				} catch (DecodeException e) {
+					// Most likely an incomplete record written before a crash.
+					logger.warn("Skipping corrupt record in line " + lineNumber + " of session file " + file + ".");
+					continue;
+				}
+				String sessionId = record.getString("id");
+				if (sessionId == null) continue;
+				if (record.containsField("storedData")) {
+					restoreData(sessionId, record.getObject("storedData"), toList(record.getArray("deletedData")));
+				} else {
+					restore(sessionId, record.getBoolean("deleted", false) ? null : record);
+				}
+			}
+		}
+	}
+
+	private static List<String> toList(JsonArray fieldNames) {
+		List<String> list = new ArrayList<>();
+		if (fieldNames != null) for (Object fieldName : fieldNames) {
+			list.add((String) fieldName);
+		}
+		return list;
+	}
+
+	private static JsonObject createDataRecord(String sessionId, JsonObject storedFields, Collection<String> deletedFields) {
+		JsonArray deletedArray = new JsonArray();
+		for (String fieldName : deletedFields) {
+			deletedArray.addString(fieldName);
+		}
+		return new JsonObject()
+			.putString("id", sessionId)
+			.putObject("storedData", storedFields)
+			.putArray("deletedData", deletedArray);
+	}
+
+	/**
+	 * Rewrites the session file with the current state of all sessions and their data.
+	 */
+	private void compact() throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		if (directory != null) Files.createDirectories(directory);
+		Path tempFile = Files.createTempFile(directory, "sessions", ".tmp");
+		List<JsonObject> sessions = getAll();
+		Map<String, JsonObject> sessionData = getAllData();
+		try (BufferedWriter tempWriter = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+			for (JsonObject session : sessions) {
+				tempWriter.write(session.encode());
+				tempWriter.newLine();
+			}
+			for (Map.Entry<String, JsonObject> entry : sessionData.entrySet()) {
+				tempWriter.write(createDataRecord(entry.getKey(), entry.getValue(), Collections.<String>emptyList()).encode());
+				tempWriter.newLine();
+			}
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (writer != null) writer.close();
+		writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+		records = sessions.size() + sessionData.size();
+	}
+
+	@Override
+	protected void written(String sessionId, JsonObject session) throws IOException {
+		append(session != null ? session : new JsonObject().putString("id", sessionId).putBoolean("deleted", true));
+	}
+
+	@Override
+	protected void dataWritten(String sessionId, JsonObject storedFields, Collection<String> deletedFields) throws IOException {
+		append(createDataRecord(sessionId, storedFields, deletedFields));
+	}
+
+	private void append(JsonObject record) throws IOException {
+		writer.write(record.encode());
+		writer.newLine();
+		writer.flush();
+		if (++records > 4 * size() + 1024) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// The change has been written, keep appending to the current file.
+				logger.warn("Failed to compact session file " + file + ".", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the session file. The store must not be used afterwards.
+	 * @throws IOException Failed to close the file.
+	 */
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
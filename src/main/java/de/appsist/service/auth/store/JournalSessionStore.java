@@ -0,0 +1,381 @@
+package de.appsist.service.auth.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+/**
+ * Session store keeping all sessions in memory and appending each change to a memory mapped journal.
+ * The journal consists of segment files of a fixed size. Each record contains its length, a CRC32 checksum, the record type and either the session encoded as JSON, the identifier of a deleted session or the changed fields of the session data encoded as JSON. Appending a record copies it into the mapped segment, the operating system writes it to disk.
+ * Segments are forced to disk periodically, changes since the last sync may be lost if the machine fails. Changes are not lost if only the JVM fails.
+ * Whenever a segment is full, the state of all sessions and their data is written to a snapshot file in the background and the segments covered by the snapshot are deleted.
+ * On startup, the latest snapshot is loaded and the following segments are replayed. Replaying a segment stops at the first incomplete or corrupt record.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class JournalSessionStore extends MemorySessionStore {
+	private static final Logger logger = LoggerFactory.getLogger(JournalSessionStore.class);
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte DATA = 3;
+	private static final int HEADER_SIZE = 8; // length and checksum
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ScheduledExecutorService executor;
+	private final CRC32 checksum = new CRC32(); // guarded by this
+	private volatile MappedByteBuffer segment; // modified while holding the lock
+	private long sequence; // guarded by this
+	private boolean compacting = false; // guarded by this
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+
+	/**
+	 * Opens a session store. Sessions stored in the journal directory are loaded.
+	 * @param directory Directory for the journal segments and snapshots. Created if it does not exist.
+	 * @param segmentSize Size of a journal segment in bytes.
+	 * @param syncInterval Interval in milliseconds to force the journal to disk.
+	 * @throws IOException Failed to read the snapshot or to create a journal segment.
+	 */
+	public JournalSessionStore(String directory, int segmentSize, long syncInterval) throws IOException {
+		this.directory = Paths.get(directory);
+		this.segmentSize = segmentSize;
+		Files.createDirectories(this.directory);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "session-journal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				sync();
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		synchronized (this) {
+			openSegment(load(), segmentSize);
+			if (list(SEGMENT_PREFIX, SEGMENT_SUFFIX).size() > 1) {
+				// Segments have been replayed, replace them with a snapshot.
+				startCompaction();
+			}
+		}
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the journal segments written afterwards.
+	 * @return Sequence number for the next segment.
+	 */
+	private long load() throws IOException {
+		TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+		long first = 0;
+		if (!snapshots.isEmpty()) {
+			first = snapshots.lastKey();
+			Path snapshot = snapshots.lastEntry().getValue();
+			if (!replay(snapshot)) {
+				throw new IOException("Corrupt session snapshot " + snapshot + ".");
+			}
+		}
+		long next = first;
+		for (Long segmentSequence : segments.tailMap(first).keySet()) {
+			Path segmentFile = segments.get(segmentSequence);
+			if (!replay(segmentFile)) {
+				logger.warn("Journal segment " + segmentFile + " ends with an incomplete record.");
+			}
+			next = segmentSequence + 1;
+		}
+		deleteBefore(first);
+		return next;
+	}
+
+	private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+		TreeMap<Long, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring unknown file " + file + " in session journal.");
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Applies the records of a journal segment or snapshot.
+	 * @return <code>true</code> if the file has been read completely, <code>false</code> if it ends with an incomplete or corrupt record.
+	 */
+	private boolean replay(Path file) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		CRC32 recordChecksum = new CRC32();
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int length = buffer.getInt();
+			if (length == 0) {
+				// Unused space of a segment.
+				return true;
+			}
+			if (length < 0 || length > buffer.remaining() - 4) {
+				return false;
+			}
+			int expectedChecksum = buffer.getInt();
+			byte[] record = new byte[length];
+			buffer.get(record);
+			recordChecksum.reset();
+			recordChecksum.update(record);
+			if ((int) recordChecksum.getValue() != expectedChecksum) {
+				return false;
+			}
+			try {
+				apply(record);
+			} catch (DecodeException | BufferUnderflowException e) {
+				return false;
+			}
+		}
+		while (buffer.hasRemaining()) {
+			// Less space than a record header left, which is unused if the segment is intact.
+			if (buffer.get() != 0) return false;
+		}
+		return true;
+	}
+
+	private void apply(byte[] record) {
+		String payload = new String(record, 1, record.length - 1, StandardCharsets.UTF_8);
+		switch (record[0]) {
+		case PUT:
+			JsonObject session = new JsonObject(payload);
+			restore(session.getString("id"), session);
+			break;
+		case DELETE:
+			restore(payload, null);
+			break;
+		case DATA:
+			JsonObject change = new JsonObject(payload);
+			List<String> deletedFields = new ArrayList<>();
+			JsonArray deletedArray = change.getArray("deletedData");
+			if (deletedArray != null) for (Object fieldName : deletedArray) {
+				deletedFields.add((String) fieldName);
+			}
+			restoreData(change.getString("id"), change.getObject("storedData"), deletedFields);
+			break;
+		default:
+			throw new DecodeException("Unknown record type " + record[0] + ".");
+		}
+	}
+
+	private void openSegment(long segmentSequence, int size) throws IOException {
+		Path file = directory.resolve(SEGMENT_PREFIX + segmentSequence + SEGMENT_SUFFIX);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		sequence = segmentSequence;
+	}
+
+	private static JsonObject createDataChange(String sessionId, JsonObject storedFields, Collection<String> deletedFields) {
+		JsonArray deletedArray = new JsonArray();
+		for (String fieldName : deletedFields) {
+			deletedArray.addString(fieldName);
+		}
+		return new JsonObject()
+			.putString("id", sessionId)
+			.putObject("storedData", storedFields)
+			.putArray("deletedData", deletedArray);
+	}
+
+	@Override
+	protected void written(String sessionId, JsonObject session) throws IOException {
+		append(session != null ? PUT : DELETE, session != null ? session.encode() : sessionId);
+	}
+
+	@Override
+	protected void dataWritten(String sessionId, JsonObject storedFields, Collection<String> deletedFields) throws IOException {
+		append(DATA, createDataChange(sessionId, storedFields, deletedFields).encode());
+	}
+
+	private void append(byte type, String record) throws IOException {
+		byte[] payload = record.getBytes(StandardCharsets.UTF_8);
+		int length = payload.length + 1;
+		if (segment.remaining() < HEADER_SIZE + length) {
+			roll(HEADER_SIZE + length);
+		}
+		checksum.reset();
+		checksum.update(type);
+		checksum.update(payload);
+		segment.putInt(length).putInt((int) checksum.getValue()).put(type).put(payload);
+		records.incrementAndGet();
+		bytes.addAndGet(HEADER_SIZE + length);
+	}
+
+	/**
+	 * Continues the journal with a new segment and starts a compaction if none is running.
+	 * The state of the sessions is taken before the change currently written is appended, so the snapshot may already contain it. Replaying the change again has no effect.
+	 * @param recordSize Size of the record to write, may exceed the segment size.
+	 */
+	private void roll(int recordSize) throws IOException {
+		segment.force();
+		openSegment(sequence + 1, Math.max(segmentSize, recordSize));
+		startCompaction();
+	}
+
+	/**
+	 * Starts a compaction in the background if none is running. The snapshot covers all segments before the current one.
+	 */
+	private void startCompaction() {
+		if (compacting) return;
+		compacting = true;
+		final List<JsonObject> sessions = getAll();
+		final Map<String, JsonObject> sessionData = getAllData();
+		final long snapshotSequence = sequence;
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				compact(sessions, sessionData, snapshotSequence);
+			}
+		});
+	}
+
+	/**
+	 * Writes a snapshot and deletes the segments covered by it.
+	 * @param sessions State of all sessions when the segment with the given sequence number has been started. The objects are not modified by the store.
+	 * @param sessionData Data of all sessions at the same time. The objects are not modified by the store.
+	 * @param snapshotSequence Sequence number of the first segment not covered by the snapshot.
+	 */
+	private void compact(List<JsonObject> sessions, Map<String, JsonObject> sessionData, long snapshotSequence) {
+		try {
+			Path tempFile = directory.resolve(SNAPSHOT_PREFIX + snapshotSequence + ".tmp");
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+				CRC32 recordChecksum = new CRC32();
+				for (JsonObject session : sessions) {
+					writeRecord(out, recordChecksum, PUT, session.encode());
+				}
+				for (Map.Entry<String, JsonObject> entry : sessionData.entrySet()) {
+					writeRecord(out, recordChecksum, DATA, createDataChange(entry.getKey(), entry.getValue(), Collections.<String>emptyList()).encode());
+				}
+				out.flush();
+				channel.force(true);
+			}
+			Files.move(tempFile, directory.resolve(SNAPSHOT_PREFIX + snapshotSequence + SNAPSHOT_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			deleteBefore(snapshotSequence);
+			compactions.incrementAndGet();
+		} catch (IOException e) {
+			logger.warn("Failed to compact session journal " + directory + ".", e);
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, CRC32 recordChecksum, byte type, String record) throws IOException {
+		byte[] payload = record.getBytes(StandardCharsets.UTF_8);
+		recordChecksum.reset();
+		recordChecksum.update(type);
+		recordChecksum.update(payload);
+		out.writeInt(payload.length + 1);
+		out.writeInt((int) recordChecksum.getValue());
+		out.writeByte(type);
+		out.write(payload);
+	}
+
+	/**
+	 * Deletes all segments and snapshots with a lower sequence number as well as incomplete snapshots.
+	 */
+	private void deleteBefore(long firstSequence) throws IOException {
+		for (Path file : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(firstSequence).values()) {
+			Files.deleteIfExists(file);
+		}
+		for (Path file : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(firstSequence).values()) {
+			Files.deleteIfExists(file);
+		}
+		for (Path file : list(SNAPSHOT_PREFIX, ".tmp").headMap(firstSequence).values()) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Forces the current journal segment to disk.
+	 */
+	public void sync() {
+		MappedByteBuffer current = segment;
+		if (current != null) {
+			current.force();
+			syncs.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Forces the journal to disk and stops the background tasks. The store must not be used afterwards.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sync();
+	}
+
+	/**
+	 * Returns the statistics of the journal.
+	 * @return JSON object with the fields sessions, records, bytes, syncs and compactions.
+	 */
+	public JsonObject getStatistics() {
+		return new JsonObject()
+			.putNumber("sessions", size())
+			.putNumber("records", records.get())
+			.putNumber("bytes", bytes.get())
+			.putNumber("syncs", syncs.get())
+			.putNumber("compactions", compactions.get());
+	}
+
+	@Override
+	public String toString() {
+		return directory.toString();
+	}
+}
@@ -0,0 +1,460 @@
+package de.appsist.service.auth.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.shareddata.Shareable;
+
+/**
+ * Session store keeping all sessions in memory.
+ * Intended for single node deployments and tests: Sessions are lost when the JVM stops. Operations complete before the method returns.
+ * Session data is held separately from the sessions. Stored session and data objects are never modified, changes replace them with a modified copy. The store is shared between all service instances of a JVM.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class MemorySessionStore implements SessionStore, Shareable {
+	private final Map<String, JsonObject> sessions = new HashMap<>(); // guarded by this
+	private final Map<String, JsonObject> data = new HashMap<>(); // guarded by this
+
+	/**
+	 * Called for each change of a session, after the change has been applied. Does nothing by default.
+	 * Subclasses may override this method to persist the change. The store is locked during the call.
+	 * @param sessionId ID of the session changed.
+	 * @param session New state of the session, <code>null</code> if it has been deleted together with its data. Must not be modified.
+	 * @throws IOException Failed to persist the change. The change is reverted.
+	 */
+	protected void written(String sessionId, JsonObject session) throws IOException {
+	}
+
+	/**
+	 * Called for each change of session data, after the change has been applied. Does nothing by default.
+	 * Subclasses may override this method to persist the change. Only the changed fields are passed. The store is locked during the call.
+	 * @param sessionId ID of the session whose data changed.
+	 * @param storedFields Fields set. Must not be modified.
+	 * @param deletedFields Names of the fields removed.
+	 * @throws IOException Failed to persist the change. The change is reverted.
+	 */
+	protected void dataWritten(String sessionId, JsonObject storedFields, Collection<String> deletedFields) throws IOException {
+	}
+
+	/**
+	 * Applies a change to the sessions in memory without calling {@link #written(String, JsonObject)}, e.g., to restore persisted sessions.
+	 * Data contained in the session object, as written by former versions, is restored as session data.
+	 * @param sessionId ID of the session.
+	 * @param session New state of the session, <code>null</code> to delete it together with its data. The object is stored without a copy.
+	 */
+	protected synchronized void restore(String sessionId, JsonObject session) {
+		if (session != null) {
+			if (session.containsField("data")) {
+				data.put(sessionId, session.getObject("data"));
+				session.removeField("data");
+			}
+			sessions.put(sessionId, session);
+		} else {
+			sessions.remove(sessionId);
+			data.remove(sessionId);
+		}
+	}
+
+	/**
+	 * Applies a change of session data in memory without calling {@link #dataWritten(String, JsonObject, Collection)}, e.g., to restore persisted sessions.
+	 * @param sessionId ID of the session.
+	 * @param storedFields Fields to set. The values are stored without a copy.
+	 * @param deletedFields Names of the fields to remove.
+	 */
+	protected synchronized void restoreData(String sessionId, JsonObject storedFields, Collection<String> deletedFields) {
+		data.put(sessionId, merge(data.get(sessionId), storedFields, deletedFields, false));
+	}
+
+	private static JsonObject merge(JsonObject sessionData, JsonObject storedFields, Collection<String> deletedFields, boolean copyValues) {
+		JsonObject modified = sessionData != null ? sessionData.copy() : new JsonObject();
+		for (String fieldName : storedFields.getFieldNames()) {
+			Object value = storedFields.getValue(fieldName);
+			modified.putValue(fieldName, copyValues ? copyOf(value) : value);
+		}
+		for (String fieldName : deletedFields) {
+			modified.removeField(fieldName);
+		}
+		return modified;
+	}
+
+	/**
+	 * Returns the state of all sessions.
+	 * @return List of the stored session objects. The objects must not be modified.
+	 */
+	protected synchronized List<JsonObject> getAll() {
+		return new ArrayList<>(sessions.values());
+	}
+
+	/**
+	 * Returns the data of all sessions.
+	 * @return Map from session identifiers to the stored data objects. The objects must not be modified.
+	 */
+	protected synchronized Map<String, JsonObject> getAllData() {
+		return new HashMap<>(data);
+	}
+
+	/**
+	 * Returns the number of stored sessions.
+	 * @return Number of sessions.
+	 */
+	public synchronized int size() {
+		return sessions.size();
+	}
+
+	private void write(String sessionId, JsonObject session) throws IOException {
+		JsonObject previous = session != null ? sessions.put(sessionId, session) : sessions.remove(sessionId);
+		JsonObject previousData = session != null ? null : data.remove(sessionId);
+		try {
+			written(sessionId, session);
+		} catch (IOException e) {
+			if (previous != null) {
+				sessions.put(sessionId, previous);
+			} else {
+				sessions.remove(sessionId);
+			}
+			if (previousData != null) data.put(sessionId, previousData);
+			throw e;
+		}
+	}
+
+	private void writeData(String sessionId, JsonObject storedFields, Collection<String> deletedFields) throws IOException {
+		JsonObject previous = data.put(sessionId, merge(data.get(sessionId), storedFields, deletedFields, true));
+		try {
+			dataWritten(sessionId, storedFields, deletedFields);
+		} catch (IOException e) {
+			if (previous != null) {
+				data.put(sessionId, previous);
+			} else {
+				data.remove(sessionId);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void get(String sessionId, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject session;
+		synchronized (this) {
+			session = sessions.get(sessionId);
+		}
+		resultHandler.handle(createResult(session != null ? session.copy() : null, null));
+	}
+
+	@Override
+	public void getByUser(String userId, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject result = null;
+		synchronized (this) {
+			for (JsonObject session : sessions.values()) {
+				if (!userId.equals(session.getString("userId"))) continue;
+				result = session;
+				JsonArray views = session.getArray("views");
+				if (views != null && views.size() > 0) break;
+			}
+		}
+		resultHandler.handle(createResult(result != null ? result.copy() : null, null));
+	}
+
+	@Override
+	public void getOwnership(String sessionId, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject session;
+		synchronized (this) {
+			session = sessions.get(sessionId);
+		}
+		JsonObject ownership = null;
+		if (session != null) {
+			JsonArray views = session.getArray("views");
+			ownership = new JsonObject().putString("id", sessionId);
+			if (session.containsField("userId")) ownership.putString("userId", session.getString("userId"));
+			ownership.putNumber("viewCount", views != null ? views.size() : 0);
+		}
+		resultHandler.handle(createResult(ownership, null));
+	}
+
+	@Override
+	public void getData(String sessionId, List<String> fieldNames, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject sessionData;
+		synchronized (this) {
+			sessionData = data.get(sessionId);
+		}
+		JsonObject result = null;
+		if (sessionData != null && fieldNames == null) {
+			result = sessionData.copy();
+		} else if (sessionData != null) {
+			result = new JsonObject();
+			for (String fieldName : fieldNames) {
+				if (sessionData.containsField(fieldName)) {
+					result.putValue(fieldName, copyOf(sessionData.getValue(fieldName)));
+				}
+			}
+		}
+		resultHandler.handle(createResult(result, null));
+	}
+
+	@Override
+	public void scan(AsyncResultHandler<List<JsonObject>> resultHandler) {
+		List<JsonObject> result = new ArrayList<>();
+		synchronized (this) {
+			for (JsonObject session : sessions.values()) {
+				JsonArray views = session.getArray("views");
+				if (session.getString("userId") != null || (views != null && views.size() > 0)) {
+					result.add(project(session, true));
+				}
+			}
+		}
+		resultHandler.handle(createResult(result, null));
+	}
+
+	private static JsonObject project(JsonObject session, boolean withLastActivity) {
+		JsonObject result = new JsonObject().putString("id", session.getString("id"));
+		if (session.containsField("userId")) result.putString("userId", session.getString("userId"));
+		if (session.containsField("views")) result.putArray("views", session.getArray("views").copy());
+		if (withLastActivity && session.containsField("lastActivity")) result.putString("lastActivity", session.getString("lastActivity"));
+		return result;
+	}
+
+	@Override
+	public void scanIds(AsyncResultHandler<List<String>> resultHandler) {
+		List<String> sessionIds;
+		synchronized (this) {
+			sessionIds = new ArrayList<>(sessions.keySet());
+		}
+		resultHandler.handle(createResult(sessionIds, null));
+	}
+
+	@Override
+	public void migrateData(AsyncResultHandler<Integer> resultHandler) {
+		// Sessions are never stored with their data, data of sessions restored from former versions is separated when they are loaded.
+		resultHandler.handle(createResult(0, null));
+	}
+
+	@Override
+	public void put(JsonObject session, AsyncResultHandler<Void> resultHandler) {
+		JsonObject copy = session.copy();
+		copy.removeField("data");
+		IOException failure = null;
+		synchronized (this) {
+			try {
+				write(copy.getString("id"), copy);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (resultHandler != null) resultHandler.handle(MemorySessionStore.<Void>createResult(null, failure));
+	}
+
+	@Override
+	public void delete(String sessionId, AsyncResultHandler<Integer> resultHandler) {
+		int count = 0;
+		IOException failure = null;
+		synchronized (this) {
+			try {
+				if (sessions.containsKey(sessionId)) {
+					write(sessionId, null);
+					count = 1;
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (resultHandler != null) resultHandler.handle(createResult(failure == null ? count : null, failure));
+	}
+
+	@Override
+	public void deleteInactive(String lastActivity, AsyncResultHandler<Integer> resultHandler) {
+		List<String> sessionIds = new ArrayList<>();
+		synchronized (this) {
+			for (JsonObject session : sessions.values()) {
+				String sessionActivity = session.getString("lastActivity");
+				if (sessionActivity != null && sessionActivity.compareTo(lastActivity) < 0) {
+					sessionIds.add(session.getString("id"));
+				}
+			}
+		}
+		deleteAll(sessionIds, resultHandler);
+	}
+
+	@Override
+	public void deleteAll(AsyncResultHandler<Integer> resultHandler) {
+		List<String> sessionIds;
+		synchronized (this) {
+			sessionIds = new ArrayList<>(sessions.keySet());
+		}
+		deleteAll(sessionIds, resultHandler);
+	}
+
+	private void deleteAll(List<String> sessionIds, AsyncResultHandler<Integer> resultHandler) {
+		int count = 0;
+		IOException failure = null;
+		synchronized (this) {
+			try {
+				for (String sessionId : sessionIds) {
+					if (sessions.containsKey(sessionId)) {
+						write(sessionId, null);
+						count++;
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		resultHandler.handle(createResult(failure == null ? count : null, failure));
+	}
+
+	@Override
+	public void addView(String sessionId, JsonObject view, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject added = null;
+		IOException failure = null;
+		synchronized (this) {
+			JsonObject session = sessions.get(sessionId);
+			if (session != null && !hasDeviceClass(session, view.getString("deviceClass"))) {
+				JsonObject modified = session.copy();
+				JsonArray views = modified.getArray("views");
+				if (views == null) {
+					views = new JsonArray();
+					modified.putArray("views", views);
+				}
+				views.addObject(view.copy());
+				try {
+					write(sessionId, modified);
+					added = modified.copy();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+		resultHandler.handle(createResult(added, failure));
+	}
+
+	private static boolean hasDeviceClass(JsonObject session, String deviceClass) {
+		JsonArray views = session.getArray("views");
+		if (views != null) for (Object view : views) {
+			String viewDeviceClass = ((JsonObject) view).getString("deviceClass");
+			if (viewDeviceClass == null ? deviceClass == null : viewDeviceClass.equals(deviceClass)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void removeView(String sessionId, String viewId, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject session = null;
+		IOException failure = null;
+		synchronized (this) {
+			try {
+				session = removeViews(sessionId, Collections.singleton(viewId));
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		resultHandler.handle(createResult(session != null ? session.copy() : null, failure));
+	}
+
+	@Override
+	public void removeViews(Map<String, ? extends Collection<String>> viewIds, AsyncResultHandler<Void> resultHandler) {
+		IOException failure = null;
+		synchronized (this) {
+			try {
+				for (Map.Entry<String, ? extends Collection<String>> entry : viewIds.entrySet()) {
+					removeViews(entry.getKey(), entry.getValue());
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		resultHandler.handle(MemorySessionStore.<Void>createResult(null, failure));
+	}
+
+	/**
+	 * Removes views from a session. Must be called while holding the lock.
+	 * @return Updated session, which must not be modified, or <code>null</code> if the session does not exist.
+	 */
+	private JsonObject removeViews(String sessionId, Collection<String> viewIds) throws IOException {
+		JsonObject session = sessions.get(sessionId);
+		if (session == null) return null;
+		JsonArray views = session.getArray("views");
+		if (views == null) return session;
+		JsonArray remainingViews = new JsonArray();
+		for (Object view : views) {
+			if (!viewIds.contains(((JsonObject) view).getString("id"))) {
+				remainingViews.addObject(((JsonObject) view).copy());
+			}
+		}
+		if (remainingViews.size() < views.size()) {
+			session = session.copy().putArray("views", remainingViews);
+			write(sessionId, session);
+		}
+		return session;
+	}
+
+	@Override
+	public void updateData(String sessionId, JsonObject storedFields, Collection<String> deletedFields, AsyncResultHandler<Void> resultHandler) {
+		IOException failure = null;
+		synchronized (this) {
+			if (sessions.containsKey(sessionId) && (storedFields.size() > 0 || !deletedFields.isEmpty())) {
+				try {
+					writeData(sessionId, storedFields, deletedFields);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+		if (resultHandler != null) resultHandler.handle(MemorySessionStore.<Void>createResult(null, failure));
+	}
+
+	@Override
+	public void setLastActivity(Collection<String> sessionIds, String lastActivity, AsyncResultHandler<Void> resultHandler) {
+		IOException failure = null;
+		synchronized (this) {
+			try {
+				for (String sessionId : sessionIds) {
+					JsonObject session = sessions.get(sessionId);
+					if (session != null) {
+						write(sessionId, session.copy().putString("lastActivity", lastActivity));
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		resultHandler.handle(MemorySessionStore.<Void>createResult(null, failure));
+	}
+
+	private static Object copyOf(Object value) {
+		if (value instanceof JsonObject) return ((JsonObject) value).copy();
+		if (value instanceof JsonArray) return ((JsonArray) value).copy();
+		return value;
+	}
+
+	private static <T> AsyncResult<T> createResult(final T result, final Throwable cause) {
+		return new AsyncResult<T>() {
+
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+
+			@Override
+			public T result() {
+				return result;
+			}
+
+			@Override
+			public boolean failed() {
+				return !succeeded();
+			}
+
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+}
@@ -0,0 +1,558 @@
+package de.appsist.service.auth.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.connector.MongoDBConnector;
+
+/**
+ * Session store backed by the "sessions" collection of a MongoDB instance.
+ * Session data is stored in the "sessionData" collection, with one document per session identified by the session id. Data fields are read with projections and written with field updates.
+ * Operations on sessions are single requests to the mongo persistor, deletions also delete the session data. Views are added and removed with conditional updates.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class MongoSessionStore implements SessionStore {
+	private static final String COLLECTION = "sessions";
+	private static final String DATA_COLLECTION = "sessionData";
+	private static final int SCAN_BATCH_SIZE = 1000;
+
+	private final MongoDBConnector mongo;
+
+	/**
+	 * Creates a session store.
+	 * @param mongoConnector Connector for the session database.
+	 */
+	public MongoSessionStore(MongoDBConnector mongoConnector) {
+		this.mongo = mongoConnector;
+	}
+
+	@Override
+	public void get(String sessionId, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject keys = new JsonObject().putNumber("_id", 0).putNumber("data", 0);
+		mongo.findOne(COLLECTION, new JsonObject().putString("id", sessionId), keys, resultHandler);
+	}
+
+	@Override
+	public void getByUser(String userId, final AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject keys = new JsonObject().putNumber("_id", 0).putNumber("data", 0);
+		mongo.find(COLLECTION, new JsonObject().putString("userId", userId), keys, new AsyncResultHandler<JsonArray>() {
+
+			@Override
+			public void handle(final AsyncResult<JsonArray> findRequest) {
+				JsonObject session = null;
+				if (findRequest.succeeded()) for (Object candidate : findRequest.result()) {
+					session = (JsonObject) candidate;
+					JsonArray views = session.getArray("views");
+					if (views != null && views.size() > 0) break;
+				}
+				final JsonObject result = session;
+				resultHandler.handle(new AsyncResult<JsonObject>() {
+
+					@Override
+					public boolean succeeded() {
+						return findRequest.succeeded();
+					}
+
+					@Override
+					public JsonObject result() {
+						return result;
+					}
+
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+
+					@Override
+					public Throwable cause() {
+						return findRequest.cause();
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void getOwnership(String sessionId, final AsyncResultHandler<JsonObject> resultHandler) {
+		// The identifiers are the smallest projection of the views which still allows counting them.
+		JsonObject keys = new JsonObject()
+			.putNumber("_id", 0)
+			.putNumber("id", 1)
+			.putNumber("userId", 1)
+			.putNumber("views.id", 1);
+		mongo.findOne(COLLECTION, new JsonObject().putString("id", sessionId), keys, new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(final AsyncResult<JsonObject> event) {
+				JsonObject session = event.succeeded() ? event.result() : null;
+				final JsonObject ownership = session != null ? new JsonObject().putString("id", session.getString("id")) : null;
+				if (session != null) {
+					JsonArray views = session.getArray("views");
+					if (session.containsField("userId")) ownership.putString("userId", session.getString("userId"));
+					ownership.putNumber("viewCount", views != null ? views.size() : 0);
+				}
+				resultHandler.handle(new AsyncResult<JsonObject>() {
+
+					@Override
+					public boolean succeeded() {
+						return event.succeeded();
+					}
+
+					@Override
+					public JsonObject result() {
+						return ownership;
+					}
+
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+
+					@Override
+					public Throwable cause() {
+						return event.cause();
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void getData(String sessionId, List<String> fieldNames, final AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject keys = new JsonObject().putNumber("_id", 0);
+		if (fieldNames != null) for (String fieldName : fieldNames) {
+			keys.putNumber("data." + fieldName, 1);
+		}
+		mongo.findOne(DATA_COLLECTION, new JsonObject().putString("_id", sessionId), keys, new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(final AsyncResult<JsonObject> event) {
+				resultHandler.handle(new AsyncResult<JsonObject>() {
+
+					@Override
+					public boolean succeeded() {
+						return event.succeeded();
+					}
+
+					@Override
+					public JsonObject result() {
+						return event.result() != null ? event.result().getObject("data") : null;
+					}
+
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+
+					@Override
+					public Throwable cause() {
+						return event.cause();
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void scan(AsyncResultHandler<List<JsonObject>> resultHandler) {
+		JsonArray conditions = new JsonArray()
+			.addObject(new JsonObject().putObject("userId", new JsonObject().putBoolean("$exists", true)))
+			.addObject(new JsonObject().putObject("views.0", new JsonObject().putBoolean("$exists", true)));
+		JsonObject matcher = new JsonObject().putArray("$or", conditions);
+		JsonObject keys = new JsonObject()
+			.putNumber("_id", 0)
+			.putNumber("id", 1)
+			.putNumber("userId", 1)
+			.putNumber("views", 1)
+			.putNumber("lastActivity", 1);
+		mongo.find(COLLECTION, matcher, keys, SCAN_BATCH_SIZE, toList(resultHandler));
+	}
+
+	@Override
+	public void scanIds(final AsyncResultHandler<List<String>> resultHandler) {
+		JsonObject keys = new JsonObject().putNumber("_id", 0).putNumber("id", 1);
+		mongo.find(COLLECTION, new JsonObject(), keys, SCAN_BATCH_SIZE, new AsyncResultHandler<JsonArray>() {
+
+			@Override
+			public void handle(final AsyncResult<JsonArray> findRequest) {
+				final List<String> sessionIds = new ArrayList<>();
+				if (findRequest.succeeded()) for (Object session : findRequest.result()) {
+					sessionIds.add(((JsonObject) session).getString("id"));
+				}
+				resultHandler.handle(new AsyncResult<List<String>>() {
+
+					@Override
+					public boolean succeeded() {
+						return findRequest.succeeded();
+					}
+
+					@Override
+					public List<String> result() {
+						return succeeded() ? sessionIds : null;
+					}
+
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+
+					@Override
+					public Throwable cause() {
+						return findRequest.cause();
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void migrateData(final AsyncResultHandler<Integer> resultHandler) {
+		JsonObject matcher = new JsonObject().putObject("data", new JsonObject().putBoolean("$exists", true));
+		JsonObject keys = new JsonObject().putNumber("_id", 0).putNumber("id", 1).putNumber("data", 1);
+		mongo.find(COLLECTION, matcher, keys, SCAN_BATCH_SIZE, new AsyncResultHandler<JsonArray>() {
+
+			@Override
+			public void handle(AsyncResult<JsonArray> findRequest) {
+				if (findRequest.failed()) {
+					resultHandler.handle(MongoSessionStore.<Integer>createResult(null, findRequest.cause()));
+					return;
+				}
+				migrateData(findRequest.result().iterator(), 0, resultHandler);
+			}
+		});
+	}
+
+	/**
+	 * Moves the data of the remaining sessions one after another.
+	 */
+	private void migrateData(final Iterator<Object> sessions, final int count, final AsyncResultHandler<Integer> resultHandler) {
+		if (!sessions.hasNext()) {
+			resultHandler.handle(createResult(count, null));
+			return;
+		}
+		JsonObject session = (JsonObject) sessions.next();
+		final String sessionId = session.getString("id");
+		final JsonObject removeData = new JsonObject().putObject("$unset", new JsonObject().putString("data", ""));
+		final AsyncResultHandler<Void> removeHandler = new AsyncResultHandler<Void>() {
+
+			@Override
+			public void handle(AsyncResult<Void> removeRequest) {
+				if (removeRequest.failed()) {
+					resultHandler.handle(MongoSessionStore.<Integer>createResult(null, removeRequest.cause()));
+				} else {
+					migrateData(sessions, count + 1, resultHandler);
+				}
+			}
+		};
+		Object data = session.getValue("data");
+		if (!(data instanceof JsonObject)) {
+			mongo.update(COLLECTION, new JsonObject().putString("id", sessionId), removeData, false, false, removeHandler);
+			return;
+		}
+		// Data stored by this version is newer than the data within the session.
+		JsonObject insertData = new JsonObject().putObject("$setOnInsert", new JsonObject().putObject("data", (JsonObject) data));
+		mongo.update(DATA_COLLECTION, new JsonObject().putString("_id", sessionId), insertData, true, false, new AsyncResultHandler<Void>() {
+
+			@Override
+			public void handle(AsyncResult<Void> insertRequest) {
+				if (insertRequest.failed()) {
+					resultHandler.handle(MongoSessionStore.<Integer>createResult(null, insertRequest.cause()));
+				} else {
+					mongo.update(COLLECTION, new JsonObject().putString("id", sessionId), removeData, false, false, removeHandler);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void put(JsonObject session, AsyncResultHandler<Void> resultHandler) {
+		if (session.containsField("data")) {
+			session = session.copy();
+			session.removeField("data");
+		}
+		mongo.update(COLLECTION, new JsonObject().putString("id", session.getString("id")), session, true, false, resultHandler);
+	}
+
+	@Override
+	public void delete(String sessionId, AsyncResultHandler<Integer> resultHandler) {
+		delete(new JsonObject().putString("id", sessionId), new JsonObject().putString("_id", sessionId), resultHandler);
+	}
+
+	@Override
+	public void deleteInactive(String lastActivity, final AsyncResultHandler<Integer> resultHandler) {
+		JsonObject matcher = new JsonObject().putObject("lastActivity", new JsonObject().putString("$lt", lastActivity));
+		JsonObject keys = new JsonObject().putNumber("_id", 0).putNumber("id", 1);
+		mongo.find(COLLECTION, matcher, keys, SCAN_BATCH_SIZE, new AsyncResultHandler<JsonArray>() {
+
+			@Override
+			public void handle(final AsyncResult<JsonArray> findRequest) {
+				if (findRequest.failed() || findRequest.result().size() == 0) {
+					resultHandler.handle(new AsyncResult<Integer>() {
+
+						@Override
+						public boolean succeeded() {
+							return findRequest.succeeded();
+						}
+
+						@Override
+						public Integer result() {
+							return succeeded() ? 0 : null;
+						}
+
+						@Override
+						public boolean failed() {
+							return !succeeded();
+						}
+
+						@Override
+						public Throwable cause() {
+							return findRequest.cause();
+						}
+					});
+					return;
+				}
+				List<String> sessionIds = new ArrayList<>();
+				for (Object session : findRequest.result()) {
+					sessionIds.add(((JsonObject) session).getString("id"));
+				}
+				// Sessions are deleted by their identifiers, so the data of sessions active in the meantime is not deleted without them.
+				delete(matchAll(sessionIds), matchAll("_id", sessionIds), resultHandler);
+			}
+		});
+	}
+
+	@Override
+	public void deleteAll(AsyncResultHandler<Integer> resultHandler) {
+		delete(new JsonObject(), new JsonObject(), resultHandler);
+	}
+
+	/**
+	 * Deletes sessions and afterwards their data. Data remains if the deletion of the sessions fails.
+	 */
+	private void delete(JsonObject matcher, final JsonObject dataMatcher, final AsyncResultHandler<Integer> resultHandler) {
+		mongo.delete(COLLECTION, matcher, new AsyncResultHandler<Integer>() {
+
+			@Override
+			public void handle(final AsyncResult<Integer> deleteRequest) {
+				if (deleteRequest.failed()) {
+					if (resultHandler != null) resultHandler.handle(deleteRequest);
+					return;
+				}
+				mongo.delete(DATA_COLLECTION, dataMatcher, new AsyncResultHandler<Integer>() {
+
+					@Override
+					public void handle(AsyncResult<Integer> dataRequest) {
+						if (resultHandler != null) resultHandler.handle(dataRequest.succeeded() ? deleteRequest : dataRequest);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void addView(String sessionId, JsonObject view, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject matcher = new JsonObject();
+		matcher.putString("id", sessionId);
+		matcher.putObject("views.deviceClass", new JsonObject().putString("$ne", view.getString("deviceClass")));
+		JsonObject update = new JsonObject();
+		update.putObject("$push", new JsonObject().putObject("views", view));
+		findAndModify(matcher, update, resultHandler);
+	}
+
+	@Override
+	public void removeView(String sessionId, String viewId, AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject matcher = new JsonObject().putString("id", sessionId);
+		JsonObject update = new JsonObject();
+		update.putObject("$pull", new JsonObject().putObject("views", new JsonObject().putString("id", viewId)));
+		findAndModify(matcher, update, resultHandler);
+	}
+
+	@Override
+	public void removeViews(Map<String, ? extends Collection<String>> viewIds, final AsyncResultHandler<Void> resultHandler) {
+		if (viewIds.isEmpty()) {
+			resultHandler.handle(MongoSessionStore.<Void>createResult(null, null));
+			return;
+		}
+		// One update per session, as view identifiers are only unique within a session. The updates are sent concurrently.
+		final AtomicInteger pending = new AtomicInteger(viewIds.size());
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		AsyncResultHandler<Void> updateHandler = new AsyncResultHandler<Void>() {
+
+			@Override
+			public void handle(AsyncResult<Void> updateRequest) {
+				if (updateRequest.failed()) {
+					failure.compareAndSet(null, updateRequest.cause());
+				}
+				if (pending.decrementAndGet() == 0) {
+					resultHandler.handle(MongoSessionStore.<Void>createResult(null, failure.get()));
+				}
+			}
+		};
+		for (Map.Entry<String, ? extends Collection<String>> entry : viewIds.entrySet()) {
+			JsonArray ids = new JsonArray();
+			for (String viewId : entry.getValue()) {
+				ids.addString(viewId);
+			}
+			JsonObject update = new JsonObject();
+			update.putObject("$pull", new JsonObject().putObject("views", new JsonObject().putObject("id", new JsonObject().putArray("$in", ids))));
+			mongo.update(COLLECTION, new JsonObject().putString("id", entry.getKey()), update, false, false, updateHandler);
+		}
+	}
+
+	@Override
+	public void updateData(final String sessionId, JsonObject storedFields, Collection<String> deletedFields, final AsyncResultHandler<Void> resultHandler) {
+		if (storedFields.size() == 0 && deletedFields.isEmpty()) {
+			if (resultHandler != null) resultHandler.handle(MongoSessionStore.<Void>createResult(null, null));
+			return;
+		}
+		final JsonObject update = new JsonObject();
+		if (storedFields.size() > 0) {
+			JsonObject dataUpdates = new JsonObject();
+			for (String fieldName : storedFields.getFieldNames()) {
+				dataUpdates.putValue("data." + fieldName, storedFields.getValue(fieldName));
+			}
+			update.putObject("$set", dataUpdates);
+		}
+		if (!deletedFields.isEmpty()) {
+			JsonObject dataUpdates = new JsonObject();
+			for (String fieldName : deletedFields) {
+				dataUpdates.putString("data." + fieldName, "");
+			}
+			update.putObject("$unset", dataUpdates);
+		}
+		final JsonObject matcher = new JsonObject().putString("_id", sessionId);
+		// The data document is only created if the session exists, data of deleted sessions is not recreated.
+		mongo.updateAndCount(DATA_COLLECTION, matcher, update, false, false, new AsyncResultHandler<Integer>() {
+
+			@Override
+			public void handle(AsyncResult<Integer> updateRequest) {
+				if (updateRequest.failed() || updateRequest.result() > 0) {
+					if (resultHandler != null) resultHandler.handle(MongoSessionStore.<Void>createResult(null, updateRequest.cause()));
+					return;
+				}
+				mongo.findOne(COLLECTION, new JsonObject().putString("id", sessionId), new JsonObject().putNumber("_id", 0).putNumber("id", 1), new AsyncResultHandler<JsonObject>() {
+
+					@Override
+					public void handle(AsyncResult<JsonObject> findRequest) {
+						if (findRequest.failed() || findRequest.result() == null) {
+							if (resultHandler != null) resultHandler.handle(MongoSessionStore.<Void>createResult(null, findRequest.cause()));
+							return;
+						}
+						mongo.update(DATA_COLLECTION, matcher, update, true, false, resultHandler);
+					}
+				});
+			}
+		});
+	}
+
+	private static <T> AsyncResult<T> createResult(final T result, final Throwable cause) {
+		return new AsyncResult<T>() {
+
+			@Override
+			public boolean succeeded() {
+				return cause == null;
+			}
+
+			@Override
+			public T result() {
+				return result;
+			}
+
+			@Override
+			public boolean failed() {
+				return cause != null;
+			}
+
+			@Override
+			public Throwable cause() {
+				return cause;
+			}
+		};
+	}
+
+	@Override
+	public void setLastActivity(Collection<String> sessionIds, String lastActivity, AsyncResultHandler<Void> resultHandler) {
+		JsonObject update = new JsonObject().putObject("$set", new JsonObject().putString("lastActivity", lastActivity));
+		mongo.update(COLLECTION, matchAll(sessionIds), update, false, true, resultHandler);
+	}
+
+	private static JsonObject matchAll(Collection<String> sessionIds) {
+		return matchAll("id", sessionIds);
+	}
+
+	private static JsonObject matchAll(String field, Collection<String> sessionIds) {
+		JsonArray ids = new JsonArray();
+		for (String sessionId : sessionIds) {
+			ids.addString(sessionId);
+		}
+		return new JsonObject().putObject(field, new JsonObject().putArray("$in", ids));
+	}
+
+	private static AsyncResultHandler<JsonArray> toList(final AsyncResultHandler<List<JsonObject>> resultHandler) {
+		return new AsyncResultHandler<JsonArray>() {
+
+			@Override
+			public void handle(final AsyncResult<JsonArray> findRequest) {
+				final List<JsonObject> sessions = new ArrayList<>();
+				if (findRequest.succeeded()) for (Object session : findRequest.result()) {
+					sessions.add((JsonObject) session);
+				}
+				resultHandler.handle(new AsyncResult<List<JsonObject>>() {
+
+					@Override
+					public boolean succeeded() {
+						return findRequest.succeeded();
+					}
+
+					@Override
+					public List<JsonObject> result() {
+						return succeeded() ? sessions : null;
+					}
+
+					@Override
+					public boolean failed() {
+						return !succeeded();
+					}
+
+					@Override
+					public Throwable cause() {
+						return findRequest.cause();
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Updates a single session and returns the updated session with the "findAndModify" command, as the "find_and_modify" action of the persistor cannot be used.
+	 */
+	private void findAndModify(JsonObject matcher, JsonObject update, final AsyncResultHandler<JsonObject> resultHandler) {
+		JsonObject command = new JsonObject()
+			.putString("findAndModify", COLLECTION)
+			.putObject("query", matcher)
+			.putObject("update", update)
+			.putBoolean("new", true)
+			.putObject("fields", new JsonObject().putNumber("_id", 0));
+		mongo.command(command, new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(AsyncResult<JsonObject> commandRequest) {
+				if (commandRequest.failed()) {
+					resultHandler.handle(MongoSessionStore.<JsonObject>createResult(null, commandRequest.cause()));
+				} else {
+					resultHandler.handle(createResult(commandRequest.result().getObject("value"), null));
+				}
+			}
+		});
+	}
+}
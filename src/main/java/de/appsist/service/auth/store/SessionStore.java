@@ -0,0 +1,133 @@
+package de.appsist.service.auth.store;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Persistent storage for sessions.
+ * Sessions are stored as JSON objects with the fields id, userId, views and lastActivity. Last activities are ISO 8601 date time strings and compared as strings.
+ * Session data is stored separately from the session, so reading and writing sessions does not depend on the amount of data. It is only accessed with {@link #getData(String, List, AsyncResultHandler)} and {@link #updateData(String, JsonObject, Collection, AsyncResultHandler)} and deleted with the session.
+ * All operations are asynchronous. Result handlers may be called before the method returns. Handlers documented as optional may be <code>null</code>.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public interface SessionStore {
+	/**
+	 * Returns a session.
+	 * @param sessionId ID of the session.
+	 * @param resultHandler Handler for the JSON representation of the session without data, <code>null</code> if the session does not exist.
+	 */
+	void get(String sessionId, AsyncResultHandler<JsonObject> resultHandler);
+
+	/**
+	 * Returns the ownership of a session without loading its views.
+	 * @param sessionId ID of the session.
+	 * @param resultHandler Handler for a JSON object with the fields id, userId and viewCount, <code>null</code> if the session does not exist.
+	 */
+	void getOwnership(String sessionId, AsyncResultHandler<JsonObject> resultHandler);
+
+	/**
+	 * Returns a session of a user. Sessions with registered views are preferred.
+	 * @param userId ID of the user.
+	 * @param resultHandler Handler for the JSON representation of the session without data, <code>null</code> if the user has no session.
+	 */
+	void getByUser(String userId, AsyncResultHandler<JsonObject> resultHandler);
+
+	/**
+	 * Returns fields of the session data.
+	 * @param sessionId ID of the session.
+	 * @param fieldNames Names of the fields to return, <code>null</code> to return all fields.
+	 * @param resultHandler Handler for a JSON object with the fields available, <code>null</code> if the session does not exist or no data has been stored at all.
+	 */
+	void getData(String sessionId, List<String> fieldNames, AsyncResultHandler<JsonObject> resultHandler);
+
+	/**
+	 * Returns all sessions with a user or registered views.
+	 * @param resultHandler Handler for the sessions found, with the fields id, userId, views and lastActivity.
+	 */
+	void scan(AsyncResultHandler<List<JsonObject>> resultHandler);
+
+	/**
+	 * Returns the identifiers of all sessions.
+	 * @param resultHandler Handler for the session identifiers.
+	 */
+	void scanIds(AsyncResultHandler<List<String>> resultHandler);
+
+	/**
+	 * Moves session data stored within the sessions by former versions to the separate session data. Data already stored separately is kept.
+	 * @param resultHandler Handler for the number of sessions whose data has been moved.
+	 */
+	void migrateData(AsyncResultHandler<Integer> resultHandler);
+
+	/**
+	 * Stores a session. An existing session with the same identifier is replaced, its data is kept.
+	 * @param session JSON representation of the session. A data field is ignored.
+	 * @param resultHandler Optional handler to check if the operation succeeded.
+	 */
+	void put(JsonObject session, AsyncResultHandler<Void> resultHandler);
+
+	/**
+	 * Deletes a session and its data.
+	 * @param sessionId ID of the session.
+	 * @param resultHandler Optional handler for the number of sessions deleted.
+	 */
+	void delete(String sessionId, AsyncResultHandler<Integer> resultHandler);
+
+	/**
+	 * Deletes all sessions inactive since the given time, including their data.
+	 * @param lastActivity ISO 8601 date time string. Sessions with an earlier last activity are deleted.
+	 * @param resultHandler Handler for the number of sessions deleted.
+	 */
+	void deleteInactive(String lastActivity, AsyncResultHandler<Integer> resultHandler);
+
+	/**
+	 * Deletes all sessions and their data.
+	 * @param resultHandler Handler for the number of sessions deleted.
+	 */
+	void deleteAll(AsyncResultHandler<Integer> resultHandler);
+
+	/**
+	 * Adds a view to a session atomically. The view is not added if the session already contains a view of the same device class.
+	 * @param sessionId ID of the session.
+	 * @param view JSON representation of the view.
+	 * @param resultHandler Handler for the updated session, <code>null</code> if the session does not exist or a similar view is registered.
+	 */
+	void addView(String sessionId, JsonObject view, AsyncResultHandler<JsonObject> resultHandler);
+
+	/**
+	 * Removes a view from a session atomically.
+	 * @param sessionId ID of the session.
+	 * @param viewId ID of the view to remove.
+	 * @param resultHandler Handler for the updated session, <code>null</code> if the session does not exist.
+	 */
+	void removeView(String sessionId, String viewId, AsyncResultHandler<JsonObject> resultHandler);
+
+	/**
+	 * Removes views from multiple sessions.
+	 * View identifiers are only unique within a session, each session is only stripped of its own views.
+	 * @param viewIds Map of session identifiers to the identifiers of the views to remove from the session.
+	 * @param resultHandler Handler to check if the operation succeeded.
+	 */
+	void removeViews(Map<String, ? extends Collection<String>> viewIds, AsyncResultHandler<Void> resultHandler);
+
+	/**
+	 * Sets and removes fields of the session data. Only the given fields are written.
+	 * Nothing is written if no fields are given or the session does not exist.
+	 * @param sessionId ID of the session.
+	 * @param storedFields Fields to set.
+	 * @param deletedFields Names of the fields to remove.
+	 * @param resultHandler Optional handler to check if the operation succeeded.
+	 */
+	void updateData(String sessionId, JsonObject storedFields, Collection<String> deletedFields, AsyncResultHandler<Void> resultHandler);
+
+	/**
+	 * Sets the last activity of multiple sessions.
+	 * @param sessionIds IDs of the sessions.
+	 * @param lastActivity ISO 8601 date time string.
+	 * @param resultHandler Handler to check if the operation succeeded.
+	 */
+	void setLastActivity(Collection<String> sessionIds, String lastActivity, AsyncResultHandler<Void> resultHandler);
+}
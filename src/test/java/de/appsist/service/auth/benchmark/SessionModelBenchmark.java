@@ -0,0 +1,87 @@
+package de.appsist.service.auth.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.View;
+
+/**
+ * Compares the CPU time and the allocated memory of the session handling per request for JSON backed and typed session models.
+ * The JSON path mirrors the former models: A request copies the cached session object, wraps its views, updates the ISO 8601 last activity and parses it for the expiry queue.
+ * The typed path copies the cached session, updates the epoch timestamp and looks up the view.
+ * Run manually, e.g., with <code>mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.appsist.service.auth.benchmark.SessionModelBenchmark</code>.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionModelBenchmark {
+	private static final int WARMUP_ITERATIONS = 200000;
+	private static final int ITERATIONS = 1000000;
+	private static final String VIEW_ID = "view-2";
+
+	private static long sink;
+
+	public static void main(String[] args) {
+		JsonObject sessionObject = new JsonObject()
+				.putString("id", "b6f2c1d4-7f1e-4e1a-9c6a-2d4e8f0a1b3c")
+				.putString("userId", "alice.tester@example.com")
+				.putString("lastActivity", ISODateTimeFormat.dateTime().print(System.currentTimeMillis()))
+				.putObject("data", new JsonObject().putString("course", "welding-101"));
+		JsonArray views = new JsonArray();
+		for (int i = 1; i <= 3; i++) {
+			views.addObject(new JsonObject().putString("id", "view-" + i).putString("deviceClass", "desktop").putString("deviceId", "device-" + i));
+		}
+		sessionObject.putArray("views", views);
+		Session session = new Session(sessionObject);
+
+		System.out.println(String.format("%-8s %14s %16s", "model", "time [ns/op]", "alloc [bytes/op]"));
+		runJson(sessionObject, WARMUP_ITERATIONS);
+		long[] json = runJson(sessionObject, ITERATIONS);
+		print("json", json);
+		runTyped(session, WARMUP_ITERATIONS);
+		long[] typed = runTyped(session, ITERATIONS);
+		print("typed", typed);
+	}
+
+	private static void print(String name, long[] result) {
+		System.out.println(String.format("%-8s %14.1f %16.1f", name, (double) result[0] / ITERATIONS, (double) result[1] / ITERATIONS));
+	}
+
+	private static long[] runJson(JsonObject cachedSession, int iterations) {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			JsonObject session = cachedSession.copy();
+			session.putString("lastActivity", ISODateTimeFormat.dateTime().print(System.currentTimeMillis()));
+			for (Object entry : session.getArray("views")) {
+				JsonObject view = (JsonObject) entry;
+				if (view.getString("id").equals(VIEW_ID)) {
+					sink += view.getString("deviceClass").length();
+				}
+			}
+			sink += ISODateTimeFormat.dateTime().parseMillis(session.getString("lastActivity"));
+		}
+		return new long[] {System.nanoTime() - start, allocatedBytes() - allocated};
+	}
+
+	private static long[] runTyped(Session cachedSession, int iterations) {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Session session = new Session(cachedSession);
+			session.update();
+			View view = session.getView(VIEW_ID);
+			if (view != null) {
+				sink += view.getDeviceClass().length();
+			}
+			sink += session.getLastActivityMillis();
+		}
+		return new long[] {System.nanoTime() - start, allocatedBytes() - allocated};
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,86 @@
+package de.appsist.service.auth.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.store.FileSessionStore;
+import de.appsist.service.auth.store.JournalSessionStore;
+import de.appsist.service.auth.store.MemorySessionStore;
+import de.appsist.service.auth.store.SessionStore;
+
+/**
+ * Compares the throughput of the session stores running in the JVM for the operations of a typical session lifecycle.
+ * Run manually, e.g., with <code>mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.appsist.service.auth.benchmark.SessionStoreBenchmark</code>.
+ * The MongoDB store requires a running persistor and is not covered.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class SessionStoreBenchmark {
+	private static final int WARMUP_SESSIONS = 5000;
+	private static final int SESSIONS = 20000;
+
+	public static void main(String[] args) throws IOException {
+		Path directory = Files.createTempDirectory("sessions");
+		System.out.println(String.format("%-8s %14s %14s %14s", "store", "put [ops/s]", "view [ops/s]", "data [ops/s]"));
+		run("memory", new MemorySessionStore());
+		FileSessionStore fileStore = new FileSessionStore(directory.resolve("sessions.log").toString());
+		run("file", fileStore);
+		fileStore.close();
+		JournalSessionStore journalStore = new JournalSessionStore(directory.resolve("journal").toString(), 64 * 1024 * 1024, 1000);
+		run("journal", journalStore);
+		journalStore.close();
+		delete(directory);
+	}
+
+	private static void delete(Path path) throws IOException {
+		if (Files.isDirectory(path)) for (Path child : Files.newDirectoryStream(path)) {
+			delete(child);
+		}
+		Files.delete(path);
+	}
+
+	private static void run(String name, SessionStore store) {
+		execute(store, "warmup", WARMUP_SESSIONS);
+		long[] times = execute(store, "session", SESSIONS);
+		System.out.println(String.format("%-8s %14.0f %14.0f %14.0f", name, opsPerSecond(times[0]), opsPerSecond(times[1]), opsPerSecond(times[2])));
+	}
+
+	private static long[] execute(SessionStore store, String prefix, int sessions) {
+		long[] times = new long[3];
+		long start = System.nanoTime();
+		for (int i = 0; i < sessions; i++) {
+			store.put(new JsonObject().putString("id", prefix + i).putString("userId", "user" + i), null);
+		}
+		times[0] = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		JsonObject view = new JsonObject().putString("id", "view").putString("deviceClass", "desktop");
+		AsyncResultHandler<JsonObject> ignore = new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(AsyncResult<JsonObject> event) {
+			}
+		};
+		for (int i = 0; i < sessions; i++) {
+			store.addView(prefix + i, view, ignore);
+		}
+		times[1] = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		JsonObject data = new JsonObject().putString("course", "welding-101");
+		for (int i = 0; i < sessions; i++) {
+			store.updateData(prefix + i, data, Collections.<String>emptyList(), null);
+		}
+		times[2] = System.nanoTime() - start;
+		return times;
+	}
+
+	private static double opsPerSecond(long nanos) {
+		return SESSIONS * 1e9 / nanos;
+	}
+}
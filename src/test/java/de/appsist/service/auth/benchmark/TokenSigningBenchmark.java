@@ -0,0 +1,56 @@
+package de.appsist.service.auth.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jose4j.jws.AlgorithmIdentifiers;
+
+import de.appsist.service.auth.InvalidTokenException;
+import de.appsist.service.auth.SigningKeyStore;
+import de.appsist.service.auth.TokenManager;
+
+/**
+ * Compares sign and verify throughput as well as the token size of the supported signature algorithms.
+ * Run manually, e.g., with <code>mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=de.appsist.service.auth.benchmark.TokenSigningBenchmark</code>.
+ * The token cache is disabled to measure the signature verification.
+ * @author simon.schwantzer(at)im-c.de
+ */
+public class TokenSigningBenchmark {
+	private static final String SUBJECT = "alice.tester@example.com";
+	private static final int WARMUP_ITERATIONS = 500;
+	private static final int ITERATIONS = 2000;
+	
+	public static void main(String[] args) throws InvalidTokenException {
+		String[] algorithms = {AlgorithmIdentifiers.RSA_USING_SHA256, AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256};
+		System.out.println(String.format("%-8s %14s %14s %12s", "alg", "sign [ops/s]", "verify [ops/s]", "size [bytes]"));
+		for (String algorithm : algorithms) {
+			SigningKeyStore keyStore = new SigningKeyStore(new ConcurrentHashMap<String, String>(), null, algorithm);
+			TokenManager tokenManager = new TokenManager(keyStore, 0, 0);
+			run(tokenManager, WARMUP_ITERATIONS);
+			
+			String[] tokens = new String[ITERATIONS];
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				tokens[i] = tokenManager.generateToken(SUBJECT);
+			}
+			long signTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				tokenManager.validateToken(tokens[i], SUBJECT);
+			}
+			long verifyTime = System.nanoTime() - start;
+			
+			System.out.println(String.format("%-8s %14.0f %14.0f %12d", algorithm, opsPerSecond(signTime), opsPerSecond(verifyTime), tokens[0].length()));
+		}
+	}
+	
+	private static void run(TokenManager tokenManager, int iterations) throws InvalidTokenException {
+		for (int i = 0; i < iterations; i++) {
+			tokenManager.validateToken(tokenManager.generateToken(SUBJECT), SUBJECT);
+		}
+	}
+	
+	private static double opsPerSecond(long nanos) {
+		return ITERATIONS * 1e9 / nanos;
+	}
+}
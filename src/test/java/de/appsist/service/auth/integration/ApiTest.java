@@ -62,12 +62,12 @@ public class ApiTest extends TestVerticle {
 							JsonObject request = new JsonObject();
 							request.putString("action", "storeSession");
 							testSession = new Session(UUID.randomUUID().toString());
-							testSession.asJson().putString("userId", "alice.tester@example.com");
+							testSession.setUserId("alice.tester@example.com");
 							testData = new JsonObject().putString("foo", "bar").putBoolean("foobar", true);
-							testSession.asJson().putObject("data", testData);
 							testView = new View(UUID.randomUUID().toString(), "tablet", "nvidiashield01");
 							testSession.registerView(testView);
-							request.putObject("session", testSession.asJson());
+							// Session data is not part of the session model, it is sent with the JSON representation.
+							request.putObject("session", testSession.asJson().putObject("data", testData));
 							request.putString("token", testToken);
 							vertx.eventBus().send("appsist:service:auth", request, new Handler<Message<JsonObject>>() {
 								@Override
@@ -94,12 +94,11 @@ public class ApiTest extends TestVerticle {
 				JsonObject request = new JsonObject();
 				request.putString("action", "storeSession");
 				testSession = new Session(UUID.randomUUID().toString());
-				testSession.asJson().putString("userId", "alice.tester@example.com");
+				testSession.setUserId("alice.tester@example.com");
 				testData = new JsonObject().putString("foo", "bar").putBoolean("foobar", true);
-				testSession.asJson().putObject("data", testData);
 				testView = new View(UUID.randomUUID().toString(), "tablet", "nvidiashield01");
 				testSession.registerView(testView);
-				request.putObject("session", testSession.asJson());
+				request.putObject("session", testSession.asJson().putObject("data", testData));
 				vertx.eventBus().send("appsist:service:auth", request, new Handler<Message<JsonObject>>() {
 					@Override
 					public void handle(Message<JsonObject> event) {
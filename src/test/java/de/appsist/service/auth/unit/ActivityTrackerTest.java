@@ -0,0 +1,139 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+
+import de.appsist.service.auth.ActivityTracker;
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+public class ActivityTrackerTest {
+	private RecordingStore store;
+	private ActivityTracker tracker;
+	
+	private static class Update {
+		private final List<String> sessionIds;
+		private final long lastActivity;
+		
+		private Update(Collection<String> sessionIds, String lastActivity) {
+			this.sessionIds = new ArrayList<>(sessionIds);
+			this.lastActivity = DateTime.parse(lastActivity).getMillis();
+		}
+	}
+	
+	private static class RecordingStore extends MemorySessionStore {
+		private final List<Update> updates = new ArrayList<>();
+		private boolean failing;
+		
+		@Override
+		public void setLastActivity(Collection<String> sessionIds, String lastActivity, final AsyncResultHandler<Void> resultHandler) {
+			updates.add(new Update(sessionIds, lastActivity));
+			resultHandler.handle(new AsyncResult<Void>() {
+				
+				@Override
+				public boolean succeeded() {
+					return !failing;
+				}
+				
+				@Override
+				public Void result() {
+					return null;
+				}
+				
+				@Override
+				public boolean failed() {
+					return failing;
+				}
+				
+				@Override
+				public Throwable cause() {
+					return failing ? new Throwable("Store unavailable.") : null;
+				}
+			});
+		}
+	}
+	
+	@Before
+	public void setUp() {
+		store = new RecordingStore();
+		tracker = new ActivityTracker(store, new SessionCache(100), new UserSessionIndex(true), 60);
+	}
+	
+	@Test
+	public void writesRecordedActivityOfEachSession() throws InterruptedException {
+		long firstTouch = System.currentTimeMillis();
+		tracker.touch("session-1");
+		Thread.sleep(1100);
+		long secondTouch = System.currentTimeMillis();
+		tracker.touch("session-2");
+		Thread.sleep(1100);
+		tracker.flush();
+		
+		assertEquals(2, store.updates.size());
+		for (Update update : store.updates) {
+			assertEquals(1, update.sessionIds.size());
+			long touched = update.sessionIds.contains("session-1") ? firstTouch : secondTouch;
+			assertTrue(update.lastActivity <= touched + 1000);
+			assertTrue(update.lastActivity > touched - 1000);
+		}
+	}
+	
+	@Test
+	public void groupsSessionsActiveWithinTheSameSecond() {
+		long now = System.currentTimeMillis();
+		while (now % 1000 > 900) {
+			now = System.currentTimeMillis();
+		}
+		tracker.touch("session-1");
+		tracker.touch("session-2");
+		tracker.flush();
+		
+		assertEquals(1, store.updates.size());
+		assertEquals(2, store.updates.get(0).sessionIds.size());
+	}
+	
+	@Test
+	public void retriesWithRecordedActivity() throws InterruptedException {
+		store.failing = true;
+		tracker.touch("session-1");
+		tracker.flush();
+		store.failing = false;
+		Thread.sleep(1100);
+		tracker.flush();
+		
+		assertEquals(2, store.updates.size());
+		assertEquals(store.updates.get(0).lastActivity, store.updates.get(1).lastActivity);
+		assertEquals("{\"pending\":0,\"touches\":1,\"flushes\":1,\"writtenSessions\":1}", tracker.getStatistics().encode());
+	}
+	
+	@Test
+	public void reportsCompletionOfFlush() {
+		final List<AsyncResult<Void>> flushes = new ArrayList<>();
+		AsyncResultHandler<Void> flushHandler = new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> event) {
+				flushes.add(event);
+			}
+		};
+		tracker.flush(flushHandler);
+		assertTrue(flushes.get(0).succeeded());
+		
+		store.failing = true;
+		tracker.touch("session-1");
+		tracker.flush(flushHandler);
+		assertEquals(2, flushes.size());
+		assertTrue(flushes.get(1).failed());
+	}
+}
@@ -0,0 +1,194 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.AuthenticationContext;
+import de.appsist.service.auth.EBHandler;
+import de.appsist.service.auth.InvalidTokenException;
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.SessionExpiryQueue;
+import de.appsist.service.auth.SessionLookupFilter;
+import de.appsist.service.auth.SessionManager;
+import de.appsist.service.auth.SessionMutationQueue;
+import de.appsist.service.auth.SigningKeyStore;
+import de.appsist.service.auth.TokenManager;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.ViewKey;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.SessionOwnership;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+public class AuthenticationContextTest {
+	private static final String USER_ID = "alice.tester@example.com";
+
+	private CountingTokenManager tokenManager;
+	private SessionManager sessionManager;
+	private Handler<Message<JsonObject>> serviceHandler;
+
+	private static class CountingTokenManager extends TokenManager {
+		private int validations = 0;
+
+		public CountingTokenManager() {
+			super(new SigningKeyStore(new ConcurrentHashMap<String, String>(), null), 0, 0);
+		}
+
+		@Override
+		public void validateToken(String jwt, String subject, AsyncResultHandler<JsonObject> resultHandler) {
+			validations++;
+			super.validateToken(jwt, subject, resultHandler);
+		}
+	}
+
+	private static class Result<T> implements AsyncResultHandler<T> {
+		private AsyncResult<T> result;
+
+		@Override
+		public void handle(AsyncResult<T> event) {
+			result = event;
+		}
+	}
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		tokenManager = new CountingTokenManager();
+		final Handler<?>[] handlers = new Handler<?>[1];
+		EventBus eventBus = (EventBus) Proxy.newProxyInstance(EventBus.class.getClassLoader(), new Class<?>[] {EventBus.class}, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("registerHandler")) {
+					handlers[0] = (Handler<?>) args[args.length - 1];
+				}
+				return method.getReturnType() == EventBus.class ? proxy : null;
+			}
+		});
+		sessionManager = new SessionManager(new MemorySessionStore(), eventBus, new SessionCache(100), new SessionMutationQueue(null), new UserSessionIndex(true), new SessionExpiryQueue<String>(3600000), new SessionExpiryQueue<ViewKey>(3600000), new SessionLookupFilter(false, 0), 60, false);
+		new EBHandler(sessionManager, null, tokenManager, null, null, null, eventBus);
+		serviceHandler = (Handler<Message<JsonObject>>) handlers[0];
+	}
+
+	private static Session createUserSession() {
+		return new Session(new JsonObject().putString("id", UUID.randomUUID().toString()).putString("userId", USER_ID));
+	}
+
+	private Session storeUserSession() {
+		JsonArray views = new JsonArray().addObject(new JsonObject().putString("id", "view-1").putString("deviceClass", "desktop").putString("deviceId", "device-1"));
+		Session session = new Session(createUserSession().asJson().putArray("views", views));
+		Result<Void> stored = new Result<>();
+		sessionManager.storeSession(session, null, stored);
+		assertTrue(stored.result.succeeded());
+		return session;
+	}
+
+	/**
+	 * Sends a request to the service and returns the reply.
+	 */
+	@SuppressWarnings("unchecked")
+	private JsonObject request(final JsonObject body) {
+		final JsonObject[] reply = new JsonObject[1];
+		Message<JsonObject> message = (Message<JsonObject>) Proxy.newProxyInstance(Message.class.getClassLoader(), new Class<?>[] {Message.class}, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "body":
+					return body;
+				case "reply":
+					reply[0] = (JsonObject) args[0];
+					return null;
+				default:
+					return null;
+				}
+			}
+		});
+		serviceHandler.handle(message);
+		return reply[0];
+	}
+
+	@Test
+	public void validatesTokenOncePerSessionRequest() {
+		Session session = storeUserSession();
+		String token = tokenManager.generateToken(USER_ID);
+
+		JsonObject reply = request(new JsonObject().putString("action", "getSession").putString("sessionId", session.getId()).putString("token", token));
+		assertEquals("ok", reply.getString("status"));
+		assertEquals(USER_ID, reply.getObject("session").getString("userId"));
+		assertEquals(1, tokenManager.validations);
+	}
+
+	@Test
+	public void validatesTokenOncePerOwnershipRequest() {
+		Session session = storeUserSession();
+		String token = tokenManager.generateToken(USER_ID);
+
+		JsonObject reply = request(new JsonObject().putString("action", "heartbeat").putString("sessionId", session.getId()).putString("viewId", "view-1").putString("token", token));
+		assertEquals("ok", reply.getString("status"));
+		assertEquals(1, tokenManager.validations);
+		reply = request(new JsonObject().putString("action", "heartbeat").putString("sessionId", session.getId()).putString("viewId", "view-1").putString("token", token));
+		assertEquals("ok", reply.getString("status"));
+		assertEquals(2, tokenManager.validations);
+	}
+
+	@Test
+	public void rejectsRequestWithTokenOfOtherSubject() {
+		Session session = storeUserSession();
+		String token = tokenManager.generateToken("bob.tester@example.com");
+
+		JsonObject reply = request(new JsonObject().putString("action", "getSession").putString("sessionId", session.getId()).putString("token", token));
+		assertEquals("error", reply.getString("status"));
+		assertEquals(1, tokenManager.validations);
+	}
+
+	@Test
+	public void authenticatesWithOwnershipOnly() {
+		SessionOwnership ownership = new SessionOwnership(new JsonObject().putString("id", UUID.randomUUID().toString()).putString("userId", USER_ID).putNumber("viewCount", 1));
+		Result<AuthenticationContext> context = new Result<>();
+		AuthenticationContext.authenticate(ownership, tokenManager.generateToken(USER_ID), tokenManager, context);
+		assertTrue(context.result.succeeded());
+		assertTrue(context.result.result().isUserSession());
+		assertNull(context.result.result().getSession());
+		assertEquals(ownership, context.result.result().getOwnership());
+		assertEquals(USER_ID, context.result.result().getClaims().getString("sub"));
+		assertEquals(1, tokenManager.validations);
+	}
+
+	@Test
+	public void rejectsTokenOfOtherSubject() {
+		Result<AuthenticationContext> context = new Result<>();
+		AuthenticationContext.authenticate(createUserSession(), tokenManager.generateToken("bob.tester@example.com"), tokenManager, context);
+		assertTrue(context.result.failed());
+		assertTrue(context.result.cause() instanceof InvalidTokenException);
+		assertEquals(1, tokenManager.validations);
+	}
+
+	@Test
+	public void skipsValidationForAnonymousSessions() {
+		Result<AuthenticationContext> context = new Result<>();
+		AuthenticationContext.authenticate(new Session(UUID.randomUUID().toString()), null, tokenManager, context);
+		assertTrue(context.result.succeeded());
+		assertFalse(context.result.result().isUserSession());
+		assertNull(context.result.result().getSubject());
+		assertNull(context.result.result().getClaims());
+		assertEquals(0, tokenManager.validations);
+	}
+}
@@ -0,0 +1,152 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.store.FileSessionStore;
+
+public class FileSessionStoreTest {
+	private Path directory;
+	private String file;
+	private FileSessionStore store;
+
+	/**
+	 * Handler storing the result of a store operation.
+	 */
+	private static class Result<T> implements AsyncResultHandler<T> {
+		private T value;
+
+		@Override
+		public void handle(AsyncResult<T> result) {
+			assertTrue(result.succeeded());
+			value = result.result();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("sessions");
+		file = directory.resolve("sessions.log").toString();
+		store = new FileSessionStore(file);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+		for (Path path : Files.newDirectoryStream(directory)) {
+			Files.delete(path);
+		}
+		Files.delete(directory);
+	}
+
+	private static JsonObject createView(String id, String deviceClass) {
+		return new JsonObject().putString("id", id).putString("deviceClass", deviceClass);
+	}
+
+	private JsonObject get(String sessionId) {
+		Result<JsonObject> result = new Result<>();
+		store.get(sessionId, result);
+		return result.value;
+	}
+
+	private JsonObject getData(String sessionId, List<String> fieldNames) {
+		Result<JsonObject> result = new Result<>();
+		store.getData(sessionId, fieldNames, result);
+		return result.value;
+	}
+
+	@Test
+	public void restoresSessionsFromFile() throws IOException {
+		store.put(new JsonObject().putString("id", "session-1").putString("userId", "alice"), null);
+		store.put(new JsonObject().putString("id", "session-2"), null);
+		store.addView("session-1", createView("view-1", "desktop"), new Result<JsonObject>());
+		store.updateData("session-1", new JsonObject().putString("a", "1").putString("b", "2"), Collections.<String>emptyList(), null);
+		store.updateData("session-1", new JsonObject(), Arrays.asList("b"), null);
+		store.delete("session-2", null);
+		store.close();
+
+		store = new FileSessionStore(file);
+		assertEquals(1, store.size());
+		JsonObject session = get("session-1");
+		assertEquals("alice", session.getString("userId"));
+		assertEquals(1, session.getArray("views").size());
+		assertEquals(new JsonObject().putString("a", "1"), getData("session-1", null));
+		assertNull(get("session-2"));
+	}
+
+	@Test
+	public void storesDataSeparately() throws IOException {
+		store.put(new JsonObject().putString("id", "session-1"), null);
+		store.updateData("session-1", new JsonObject().putString("a", "1").putString("b", "2"), Collections.<String>emptyList(), null);
+		store.put(new JsonObject().putString("id", "session-1").putString("userId", "alice"), null);
+		assertNull(get("session-1").getObject("data"));
+		assertEquals(new JsonObject().putString("b", "2"), getData("session-1", Arrays.asList("b", "c")));
+		assertNull(getData("session-2", null));
+		store.updateData("session-2", new JsonObject().putString("a", "1"), Collections.<String>emptyList(), null);
+		assertNull(getData("session-2", null));
+
+		store.delete("session-1", null);
+		store.put(new JsonObject().putString("id", "session-1"), null);
+		assertNull(getData("session-1", null));
+		store.close();
+
+		// Sessions written by former versions contain their data.
+		Files.write(directory.resolve("sessions.log"), "{\"id\":\"session-2\",\"data\":{\"a\":\"1\"}}\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		store = new FileSessionStore(file);
+		assertNull(get("session-2").getObject("data"));
+		assertEquals(new JsonObject().putString("a", "1"), getData("session-2", null));
+	}
+
+	@Test
+	public void rejectsSimilarViews() {
+		store.put(new JsonObject().putString("id", "session-1"), null);
+		Result<JsonObject> added = new Result<>();
+		store.addView("session-1", createView("view-1", "desktop"), added);
+		assertEquals(1, added.value.getArray("views").size());
+		store.addView("session-1", createView("view-2", "desktop"), added);
+		assertNull(added.value);
+		store.addView("session-2", createView("view-3", "mobile"), added);
+		assertNull(added.value);
+
+		Result<JsonObject> removed = new Result<>();
+		store.removeView("session-1", "view-1", removed);
+		assertEquals(0, removed.value.getArray("views").size());
+		assertEquals(0, get("session-1").getArray("views").size());
+		store.removeView("session-2", "view-1", removed);
+		assertNull(removed.value);
+	}
+
+	@Test
+	public void scansUserAndOnlineSessions() {
+		store.put(new JsonObject().putString("id", "session-1").putString("userId", "alice").putString("lastActivity", "2017-01-01T10:00:00.000Z"), null);
+		store.put(new JsonObject().putString("id", "session-2").putArray("views", new JsonArray().addObject(createView("view-1", "desktop"))).putString("lastActivity", "2017-01-02T10:00:00.000Z"), null);
+		store.put(new JsonObject().putString("id", "session-3").putString("lastActivity", "2017-01-03T10:00:00.000Z"), null);
+		Result<List<JsonObject>> scan = new Result<>();
+		store.scan(scan);
+		assertEquals(2, scan.value.size());
+
+		Result<Integer> deleted = new Result<>();
+		store.deleteInactive("2017-01-02T00:00:00.000Z", deleted);
+		assertEquals(1, deleted.value.intValue());
+		assertNull(get("session-1"));
+		assertEquals(2, store.size());
+	}
+}
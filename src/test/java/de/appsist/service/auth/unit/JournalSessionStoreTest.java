@@ -0,0 +1,133 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.store.JournalSessionStore;
+
+public class JournalSessionStoreTest {
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	private Path directory;
+	private JournalSessionStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("journal");
+		store = open(SEGMENT_SIZE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+		for (Path path : Files.newDirectoryStream(directory)) {
+			Files.delete(path);
+		}
+		Files.delete(directory);
+	}
+
+	private JournalSessionStore open(int segmentSize) throws IOException {
+		return new JournalSessionStore(directory.toString(), segmentSize, 60000);
+	}
+
+	private JournalSessionStore reopen(int segmentSize) throws IOException {
+		store.close();
+		store = open(segmentSize);
+		return store;
+	}
+
+	private JsonObject get(String sessionId) {
+		final JsonObject[] session = new JsonObject[1];
+		store.get(sessionId, new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(AsyncResult<JsonObject> result) {
+				assertTrue(result.succeeded());
+				session[0] = result.result();
+			}
+		});
+		return session[0];
+	}
+
+	private JsonObject getData(String sessionId) {
+		final JsonObject[] data = new JsonObject[1];
+		store.getData(sessionId, null, new AsyncResultHandler<JsonObject>() {
+
+			@Override
+			public void handle(AsyncResult<JsonObject> result) {
+				assertTrue(result.succeeded());
+				data[0] = result.result();
+			}
+		});
+		return data[0];
+	}
+
+	private static JsonObject createSession(String id) {
+		return new JsonObject().putString("id", id).putString("userId", "user-" + id);
+	}
+
+	@Test
+	public void replaysJournalOnStartup() throws IOException {
+		store.put(createSession("session-1"), null);
+		store.put(createSession("session-2"), null);
+		store.put(createSession("session-3"), null);
+		store.delete("session-2", null);
+		store.updateData("session-1", new JsonObject().putString("course", "welding"), Collections.<String>emptyList(), null);
+
+		reopen(SEGMENT_SIZE);
+		assertEquals(2, store.size());
+		assertEquals("welding", getData("session-1").getString("course"));
+		assertNull(get("session-2"));
+		assertNotNull(get("session-3"));
+	}
+
+	@Test
+	public void compactsFullSegments() throws IOException, InterruptedException {
+		reopen(1024);
+		for (int i = 0; i < 1000; i++) {
+			store.put(createSession("session-" + (i % 50)).putNumber("version", i), null);
+			store.updateData("session-" + (i % 50), new JsonObject().putNumber("version", i), Collections.<String>emptyList(), null);
+		}
+		for (int i = 0; i < 100 && store.getStatistics().getNumber("compactions").intValue() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(store.getStatistics().getNumber("compactions").intValue() > 0);
+
+		reopen(1024);
+		assertEquals(50, store.size());
+		assertEquals(999, get("session-49").getNumber("version").intValue());
+		assertEquals(999, getData("session-49").getNumber("version").intValue());
+	}
+
+	@Test
+	public void ignoresCorruptRecords() throws IOException {
+		store.put(createSession("session-1"), null);
+		store.put(createSession("session-2"), null);
+		long bytes = store.getStatistics().getNumber("bytes").longValue();
+		store.close();
+		try (RandomAccessFile file = new RandomAccessFile(directory.resolve("journal-0.log").toFile(), "rw")) {
+			// Damage the payload of the last record.
+			file.seek(bytes - 2);
+			file.write('#');
+		}
+
+		store = open(SEGMENT_SIZE);
+		assertNotNull(get("session-1"));
+		assertNull(get("session-2"));
+	}
+}
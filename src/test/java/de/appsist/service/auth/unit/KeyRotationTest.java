@@ -0,0 +1,73 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.appsist.service.auth.InvalidTokenException;
+import de.appsist.service.auth.SigningKeyStore;
+import de.appsist.service.auth.TokenManager;
+
+public class KeyRotationTest {
+	private static final String SUBJECT = "alice.tester@example.com";
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("keys");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(directory.resolve("keys.json"));
+		Files.delete(directory);
+	}
+
+	private static SigningKeyStore createKeyStore(String keyFile) {
+		return new SigningKeyStore(new ConcurrentHashMap<String, String>(), keyFile, AlgorithmIdentifiers.ECDSA_USING_P256_CURVE_AND_SHA256);
+	}
+
+	@Test
+	public void picksUpKeysRotatedByOtherInstance() throws Exception {
+		SigningKeyStore keyStore = createKeyStore(null);
+		TokenManager instance1 = new TokenManager(keyStore, 0, 0);
+		String previousKey = keyStore.getKeyRing().getActiveKey().getKeyId();
+		Thread.sleep(5);
+		keyStore.rotate(0, instance1.getMaxTokenAge());
+		TokenManager instance2 = new TokenManager(keyStore, 0, 0);
+		assertNotEquals(previousKey, keyStore.getKeyRing().getActiveKey().getKeyId());
+
+		assertEquals(SUBJECT, instance1.validateToken(instance2.generateToken(SUBJECT), SUBJECT).getString("sub"));
+	}
+
+	@Test
+	public void reloadsKeyFileOnRotationOnly() throws Exception {
+		String keyFile = directory.resolve("keys.json").toString();
+		TokenManager node1 = new TokenManager(createKeyStore(keyFile), 0, 0);
+		SigningKeyStore otherKeyStore = createKeyStore(keyFile);
+		TokenManager node2 = new TokenManager(otherKeyStore, 0, 0);
+		Thread.sleep(10);
+		otherKeyStore.rotate(0, node2.getMaxTokenAge());
+		String token = new TokenManager(otherKeyStore, 0, 0).generateToken(SUBJECT);
+
+		try {
+			node1.validateToken(token, SUBJECT);
+			fail("Key of other node resolved without rotation.");
+		} catch (InvalidTokenException e) {
+			// Key file is not read on validation.
+		}
+		node1.rotateKeys();
+		assertEquals(SUBJECT, node1.validateToken(token, SUBJECT).getString("sub"));
+	}
+}
@@ -0,0 +1,138 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.SessionExpiryQueue;
+import de.appsist.service.auth.SessionLookupFilter;
+import de.appsist.service.auth.SessionManager;
+import de.appsist.service.auth.SessionMutationQueue;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.ViewKey;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+public class PendingSessionTest {
+	private DeferringStore store;
+	private SessionCache cache;
+	private SessionManager sessionManager;
+	
+	/**
+	 * Store which completes writes only on request, if deferring is enabled.
+	 */
+	private static class DeferringStore extends MemorySessionStore {
+		private final List<Runnable> deferredWrites = new ArrayList<>();
+		private boolean deferring;
+		
+		@Override
+		public void put(final JsonObject session, final AsyncResultHandler<Void> resultHandler) {
+			if (!deferring) {
+				super.put(session, resultHandler);
+				return;
+			}
+			deferredWrites.add(new Runnable() {
+				
+				@Override
+				public void run() {
+					DeferringStore.super.put(session, resultHandler);
+				}
+			});
+		}
+		
+		private void completeWrite() {
+			deferredWrites.remove(0).run();
+		}
+	}
+	
+	@Before
+	public void setUp() {
+		EventBus eventBus = (EventBus) Proxy.newProxyInstance(EventBus.class.getClassLoader(), new Class<?>[] {EventBus.class}, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getReturnType() == EventBus.class ? proxy : null;
+			}
+		});
+		store = new DeferringStore();
+		cache = new SessionCache(0);
+		sessionManager = new SessionManager(store, eventBus, cache, new SessionMutationQueue(null), new UserSessionIndex(true), new SessionExpiryQueue<String>(3600000), new SessionExpiryQueue<ViewKey>(3600000), new SessionLookupFilter(false, 0), 60, true);
+	}
+	
+	private void createSessions(int count) {
+		AsyncResultHandler<Session> ignore = new AsyncResultHandler<Session>() {
+			
+			@Override
+			public void handle(AsyncResult<Session> event) {
+				assertTrue(event.succeeded());
+			}
+		};
+		for (int i = 0; i < count; i++) {
+			sessionManager.createSession(ignore);
+		}
+	}
+	
+	@Test
+	public void writesAllPendingSessions() {
+		createSessions(5000);
+		assertEquals(0, store.size());
+		sessionManager.flushActivity();
+		assertEquals(5000, store.size());
+		assertEquals(0, cache.getPendingIds().size());
+	}
+	
+	@Test
+	public void boundsWritesInFlight() {
+		store.deferring = true;
+		createSessions(100);
+		sessionManager.flushActivity();
+		assertEquals(32, store.deferredWrites.size());
+		// Sessions already queued are not written twice.
+		sessionManager.flushActivity();
+		assertEquals(32, store.deferredWrites.size());
+		
+		store.completeWrite();
+		assertEquals(1, store.size());
+		assertEquals(32, store.deferredWrites.size());
+		while (!store.deferredWrites.isEmpty()) {
+			store.completeWrite();
+		}
+		assertEquals(100, store.size());
+		assertEquals(0, cache.getPendingIds().size());
+	}
+	
+	@Test
+	public void completesFlushWhenAllPendingSessionsHaveBeenWritten() {
+		store.deferring = true;
+		createSessions(40);
+		final List<AsyncResult<Void>> flushes = new ArrayList<>();
+		sessionManager.flushActivity(new AsyncResultHandler<Void>() {
+			
+			@Override
+			public void handle(AsyncResult<Void> event) {
+				flushes.add(event);
+			}
+		});
+		while (store.deferredWrites.size() > 1) {
+			store.completeWrite();
+			assertTrue(flushes.isEmpty());
+		}
+		store.completeWrite();
+		assertEquals(1, flushes.size());
+		assertTrue(flushes.get(0).succeeded());
+		assertEquals(40, store.size());
+	}
+}
@@ -0,0 +1,77 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.RevocationList;
+
+public class RevocationListTest {
+	private static final String SUBJECT = "alice.tester@example.com";
+	
+	private RevocationList revocations;
+	private long now;
+	
+	@Before
+	public void setUp() {
+		revocations = new RevocationList();
+		now = System.currentTimeMillis();
+	}
+	
+	private static JsonObject claims(String tokenId, String subject, long issuedAt) {
+		return new JsonObject()
+			.putString("jti", tokenId)
+			.putString("sub", subject)
+			.putNumber("iat", issuedAt / 1000);
+	}
+	
+	@Test
+	public void detectsRevokedToken() {
+		revocations.add(RevocationList.tokenEntry("token-1"), now, now + 60000);
+		assertTrue(revocations.isRevoked(claims("token-1", SUBJECT, now)));
+		assertFalse(revocations.isRevoked(claims("token-2", SUBJECT, now)));
+	}
+	
+	@Test
+	public void subjectRevocationCoversEarlierTokensOnly() {
+		revocations.add(RevocationList.subjectEntry(SUBJECT), now, now + 60000);
+		assertTrue(revocations.isRevoked(claims("token-1", SUBJECT, now - 5000)));
+		assertFalse(revocations.isRevoked(claims("token-2", SUBJECT, now + 5000)));
+		assertFalse(revocations.isRevoked(claims("token-3", "bob.tester@example.com", now - 5000)));
+	}
+	
+	@Test
+	public void subjectRevocationCoversTokensOfTheSameSecond() {
+		long second = now - now % 1000;
+		revocations.add(RevocationList.subjectEntry(SUBJECT), second + 500, now + 60000);
+		// Issued before and after the revocation, both with the issue time of the same second.
+		assertTrue(revocations.isRevoked(claims("token-1", SUBJECT, second + 200)));
+		assertTrue(revocations.isRevoked(claims("token-2", SUBJECT, second + 800)));
+		assertFalse(revocations.isRevoked(claims("token-3", SUBJECT, second + 1000)));
+	}
+	
+	@Test
+	public void purgesExpiredEntries() {
+		revocations.add(RevocationList.tokenEntry("token-1"), now - 60000, now - 1);
+		revocations.add(RevocationList.tokenEntry("token-2"), now, now + 60000);
+		assertFalse(revocations.isRevoked(claims("token-1", SUBJECT, now)));
+		assertEquals(1, revocations.purgeExpired());
+		assertEquals(1, revocations.size());
+		assertTrue(revocations.isRevoked(claims("token-2", SUBJECT, now)));
+	}
+	
+	@Test
+	public void keepsRevocationsWhenFilterGrows() {
+		for (int i = 0; i < 5000; i++) {
+			revocations.add(RevocationList.tokenEntry("token-" + i), now, now + 60000);
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(revocations.isRevoked(claims("token-" + i, SUBJECT, now)));
+		}
+		assertFalse(revocations.isRevoked(claims("token-5000", SUBJECT, now)));
+	}
+}
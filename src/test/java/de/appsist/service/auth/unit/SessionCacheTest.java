@@ -0,0 +1,93 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.SessionOwnership;
+import de.appsist.service.auth.model.View;
+
+public class SessionCacheTest {
+	
+	@Test
+	public void returnsPendingSessionsIfCacheIsDisabled() {
+		SessionCache cache = new SessionCache(0);
+		cache.putPending(new Session("session-1"));
+		assertTrue(cache.isPending("session-1"));
+		assertNotNull(cache.get("session-1"));
+		assertEquals("session-1", cache.getOwnership("session-1").getSessionId());
+		assertEquals(Collections.singletonList("session-1"), cache.getPendingIds());
+	}
+	
+	@Test
+	public void keepsPendingSessionsUntilWritten() {
+		SessionCache cache = new SessionCache(10);
+		Session session = new Session("session-1");
+		cache.putPending(session);
+		cache.remove("session-1");
+		assertTrue(cache.isPending("session-1"));
+		cache.put(session);
+		assertFalse(cache.isPending("session-1"));
+		assertNull(cache.getPending("session-1"));
+		assertNotNull(cache.get("session-1"));
+	}
+	
+	@Test
+	public void removesDeletedPendingSessions() {
+		SessionCache cache = new SessionCache(10);
+		cache.putPending(new Session("session-1"));
+		cache.removePending("session-1");
+		assertNull(cache.get("session-1"));
+		assertEquals(0, (int) cache.getStatistics().getInteger("pendingSize"));
+	}
+	
+	@Test
+	public void addsLoadedSessionIfUnchanged() {
+		SessionCache cache = new SessionCache(10);
+		long version = cache.getVersion("session-1");
+		assertTrue(cache.putLoaded(new Session("session-1"), version));
+		assertNotNull(cache.get("session-1"));
+	}
+	
+	@Test
+	public void rejectsLoadedSessionChangedDuringLoad() {
+		SessionCache cache = new SessionCache(10);
+		long version = cache.getVersion("session-1");
+		cache.registerView("session-1", new View("view-1", "tablet", "device-1"));
+		assertFalse(cache.putLoaded(new Session("session-1"), version));
+		assertNull(cache.get("session-1"));
+		cache.putLoadedOwnership(new SessionOwnership(new Session("session-1")), version);
+		assertNull(cache.getOwnership("session-1"));
+	}
+	
+	@Test
+	public void keepsCachedSessionWhenLoaded() {
+		SessionCache cache = new SessionCache(10);
+		Session session = new Session("session-1");
+		session.setLastActivity(1000);
+		cache.put(session);
+		assertFalse(cache.putLoaded(new Session("session-1"), cache.getVersion("session-1")));
+		assertEquals(1000, cache.get("session-1").getLastActivityMillis());
+	}
+	
+	@Test
+	public void rejectsLoadedDataChangedDuringLoad() {
+		SessionCache cache = new SessionCache(10);
+		long version = cache.getVersion("session-1");
+		cache.updateData("session-1", new JsonObject().putString("field", "new"), Collections.<String>emptyList());
+		cache.putLoadedData("session-1", new JsonObject().putString("field", "old"), version);
+		assertNull(cache.getData("session-1", Collections.singletonList("field")));
+		
+		cache.putLoadedData("session-1", new JsonObject().putString("field", "new"), cache.getVersion("session-1"));
+		assertEquals("new", cache.getData("session-1", Collections.singletonList("field")).getObject("data").getString("field"));
+	}
+}
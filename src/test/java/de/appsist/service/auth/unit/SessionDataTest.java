@@ -0,0 +1,73 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.SessionExpiryQueue;
+import de.appsist.service.auth.SessionLookupFilter;
+import de.appsist.service.auth.SessionManager;
+import de.appsist.service.auth.SessionMutationQueue;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.ViewKey;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+public class SessionDataTest {
+	private SessionManager sessionManager;
+	
+	private static class Result<T> implements AsyncResultHandler<T> {
+		private AsyncResult<T> result;
+		
+		@Override
+		public void handle(AsyncResult<T> event) {
+			result = event;
+		}
+	}
+	
+	@Before
+	public void setUp() {
+		EventBus eventBus = (EventBus) Proxy.newProxyInstance(EventBus.class.getClassLoader(), new Class<?>[] {EventBus.class}, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getReturnType() == EventBus.class ? proxy : null;
+			}
+		});
+		sessionManager = new SessionManager(new MemorySessionStore(), eventBus, new SessionCache(100), new SessionMutationQueue(null), new UserSessionIndex(true), new SessionExpiryQueue<String>(3600000), new SessionExpiryQueue<ViewKey>(3600000), new SessionLookupFilter(false, 0), 60, false);
+	}
+	
+	private JsonObject getData(String sessionId) {
+		Result<JsonObject> data = new Result<>();
+		sessionManager.getData(sessionId, null, data);
+		assertTrue(data.result.succeeded());
+		return data.result.result();
+	}
+	
+	@Test
+	public void storesDataWithSession() {
+		Result<Void> stored = new Result<>();
+		sessionManager.storeSession(new Session("session-1"), new JsonObject().putString("foo", "bar"), stored);
+		assertTrue(stored.result.succeeded());
+		assertEquals(new JsonObject().putString("foo", "bar"), getData("session-1"));
+	}
+	
+	@Test
+	public void keepsDataIfSessionIsStoredWithoutData() {
+		sessionManager.storeSession(new Session("session-1"), new JsonObject().putString("foo", "bar"), null);
+		sessionManager.storeSession(new Session("session-1"), null, null);
+		sessionManager.storeSession(new Session("session-1"), new JsonObject().putNumber("count", 1), null);
+		assertEquals(new JsonObject().putString("foo", "bar").putNumber("count", 1), getData("session-1"));
+	}
+}
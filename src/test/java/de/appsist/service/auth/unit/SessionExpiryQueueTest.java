@@ -0,0 +1,55 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.appsist.service.auth.SessionExpiryQueue;
+
+public class SessionExpiryQueueTest {
+	private static final long TIMEOUT = 60000;
+
+	private SessionExpiryQueue<String> queue;
+
+	@Before
+	public void setUp() {
+		queue = new SessionExpiryQueue<>(TIMEOUT);
+	}
+
+	@Test
+	public void expiresInactiveSessions() {
+		queue.track("session-1", 1000);
+		queue.track("session-2", 2000);
+		assertTrue(queue.poll(1000 + TIMEOUT - 1).isEmpty());
+		assertEquals(Arrays.asList("session-1"), queue.poll(1000 + TIMEOUT));
+		assertEquals(Arrays.asList("session-2"), queue.poll(2000 + TIMEOUT));
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void reschedulesActiveSessions() {
+		queue.track("session-1", 1000);
+		queue.touch("session-1", 5000);
+		assertTrue(queue.poll(1000 + TIMEOUT).isEmpty());
+		assertEquals(1, queue.size());
+		assertEquals(Arrays.asList("session-1"), queue.poll(5000 + TIMEOUT));
+	}
+
+	@Test
+	public void ignoresUntrackedSessions() {
+		queue.track("session-1", 1000);
+		queue.untrack("session-1");
+		queue.touch("session-1", 2000);
+		assertTrue(queue.poll(2000 + TIMEOUT).isEmpty());
+
+		queue.track("session-2", 1000);
+		queue.untrack("session-2");
+		queue.track("session-2", 3000);
+		assertTrue(queue.poll(1000 + TIMEOUT).isEmpty());
+		assertEquals(Arrays.asList("session-2"), queue.poll(3000 + TIMEOUT));
+	}
+}
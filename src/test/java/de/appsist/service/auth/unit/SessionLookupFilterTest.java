@@ -0,0 +1,90 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.appsist.service.auth.SessionLookupFilter;
+
+public class SessionLookupFilterTest {
+	
+	@Test
+	public void rejectsNothingBeforeBuild() {
+		SessionLookupFilter filter = new SessionLookupFilter(true, 0);
+		assertFalse(filter.isUnknown("session-1"));
+		assertFalse(filter.add("session-1"));
+		assertFalse(filter.isUnknown("session-2"));
+	}
+	
+	@Test
+	public void rejectsSessionsMissingAfterBuild() {
+		SessionLookupFilter filter = new SessionLookupFilter(true, 0);
+		assertTrue(filter.startRebuild());
+		filter.completeRebuild(Arrays.asList("session-1", "session-2"));
+		assertFalse(filter.isUnknown("session-1"));
+		assertFalse(filter.isUnknown("session-2"));
+		assertTrue(filter.isUnknown("session-3"));
+		filter.add("session-3");
+		assertFalse(filter.isUnknown("session-3"));
+		assertEquals(1, (long) filter.getStatistics().getLong("filterRejections"));
+	}
+	
+	@Test
+	public void keepsSessionsAddedDuringRebuild() {
+		SessionLookupFilter filter = new SessionLookupFilter(true, 0);
+		assertTrue(filter.startRebuild());
+		assertFalse(filter.startRebuild());
+		filter.add("session-2");
+		filter.completeRebuild(Collections.singletonList("session-1"));
+		assertFalse(filter.isUnknown("session-1"));
+		assertFalse(filter.isUnknown("session-2"));
+	}
+	
+	@Test
+	public void requestsRebuildAtCapacity() {
+		SessionLookupFilter filter = new SessionLookupFilter(true, 0);
+		filter.startRebuild();
+		filter.completeRebuild(Collections.<String>emptyList());
+		int capacity = filter.getStatistics().getInteger("capacity");
+		List<String> sessionIds = new ArrayList<>();
+		boolean rebuildRequested = false;
+		for (int i = 0; i <= capacity && !rebuildRequested; i++) {
+			sessionIds.add("session-" + i);
+			rebuildRequested = filter.add("session-" + i);
+		}
+		assertTrue(rebuildRequested);
+		assertEquals(capacity + 1, sessionIds.size());
+		filter.startRebuild();
+		filter.completeRebuild(sessionIds);
+		assertTrue(filter.getStatistics().getInteger("capacity") > capacity);
+		for (String sessionId : sessionIds) {
+			assertFalse(filter.isUnknown(sessionId));
+		}
+	}
+	
+	@Test
+	public void remembersUnknownSessions() {
+		SessionLookupFilter filter = new SessionLookupFilter(true, 60000);
+		assertFalse(filter.isUnknown("session-1"));
+		filter.addUnknown("session-1");
+		assertTrue(filter.isUnknown("session-1"));
+		filter.add("session-1");
+		assertFalse(filter.isUnknown("session-1"));
+		assertEquals(1, (long) filter.getStatistics().getLong("unknownRejections"));
+	}
+	
+	@Test
+	public void disabledFilterIsNeverBuilt() {
+		SessionLookupFilter filter = new SessionLookupFilter(false, 0);
+		assertFalse(filter.startRebuild());
+		filter.addUnknown("session-1");
+		assertFalse(filter.isUnknown("session-1"));
+	}
+}
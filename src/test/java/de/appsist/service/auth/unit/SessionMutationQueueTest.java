@@ -0,0 +1,89 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+
+import de.appsist.service.auth.SessionMutationQueue;
+
+public class SessionMutationQueueTest {
+	private SessionMutationQueue queue;
+	private List<String> executed;
+
+	/**
+	 * Mutation which records its execution and completes when requested.
+	 */
+	private class RecordingMutation extends SessionMutationQueue.Mutation {
+		private final String name;
+		private final boolean mergeable;
+		private Handler<Void> completionHandler;
+
+		private RecordingMutation(String name, boolean mergeable) {
+			this.name = name;
+			this.mergeable = mergeable;
+		}
+
+		@Override
+		protected void execute(Handler<Void> completionHandler) {
+			executed.add(name);
+			this.completionHandler = completionHandler;
+		}
+
+		@Override
+		protected boolean merge(SessionMutationQueue.Mutation next) {
+			if (!mergeable || !((RecordingMutation) next).mergeable) return false;
+			executed.add(name + "+" + ((RecordingMutation) next).name);
+			return true;
+		}
+
+		private void complete() {
+			completionHandler.handle(null);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		queue = new SessionMutationQueue(null);
+		executed = new ArrayList<>();
+	}
+
+	@Test
+	public void executesMutationsOfSessionInOrder() {
+		RecordingMutation first = new RecordingMutation("a", false);
+		RecordingMutation second = new RecordingMutation("b", false);
+		queue.submit("session-1", first);
+		queue.submit("session-1", second);
+		assertEquals(Arrays.asList("a"), executed);
+		first.complete();
+		assertEquals(Arrays.asList("a", "b"), executed);
+		second.complete();
+		assertEquals(0, queue.getStatistics().getNumber("sessions").intValue());
+	}
+
+	@Test
+	public void executesSessionsInParallel() {
+		RecordingMutation first = new RecordingMutation("a", false);
+		queue.submit("session-1", first);
+		queue.submit("session-2", new RecordingMutation("b", false));
+		assertEquals(Arrays.asList("a", "b"), executed);
+		assertEquals(2, queue.getStatistics().getNumber("sessions").intValue());
+	}
+
+	@Test
+	public void mergesPendingMutations() {
+		RecordingMutation first = new RecordingMutation("a", false);
+		queue.submit("session-1", first);
+		queue.submit("session-1", new RecordingMutation("b", true));
+		queue.submit("session-1", new RecordingMutation("c", true));
+		queue.submit("session-1", new RecordingMutation("d", false));
+		first.complete();
+		assertEquals(Arrays.asList("a", "b+c", "b"), executed);
+		assertEquals(1, queue.getStatistics().getNumber("merged").intValue());
+	}
+}
@@ -0,0 +1,62 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.View;
+
+public class SessionTest {
+
+	@Test
+	public void convertsJsonWithoutLoss() {
+		JsonObject sessionObject = new JsonObject()
+				.putString("id", "session-1")
+				.putString("userId", "alice.tester@example.com")
+				.putString("lastActivity", "2016-12-08T10:15:30.000Z")
+				.putObject("data", new JsonObject().putString("course", "welding-101"))
+				.putArray("views", new JsonArray().addObject(new View("view-1", "desktop", "device-1").asJson()))
+				.putString("_id", "session-1");
+		Session session = new Session(sessionObject);
+		assertEquals(1481192130000L, session.getLastActivityMillis());
+		assertEquals("desktop", session.getView("view-1").getDeviceClass());
+
+		JsonObject json = session.asJson();
+		assertEquals("session-1", json.getString("_id"));
+		assertEquals(1481192130000L, new Session(json).getLastActivityMillis());
+		assertNull("Session data is stored separately.", json.getObject("data"));
+		assertEquals(sessionObject.getArray("views"), json.getArray("views"));
+	}
+
+	@Test
+	public void copiesAreIndependent() {
+		Session session = new Session("session-1");
+		session.registerView(new View("view-1", "desktop", "device-1"));
+
+		Session copy = new Session(session);
+		copy.removeView("view-1");
+		copy.setLastActivity(1000);
+
+		assertNotNull(session.getView("view-1"));
+		assertEquals(0, session.getLastActivityMillis());
+		assertNull(session.getLastActivity());
+		assertTrue(session.asJson().getArray("views").size() == 1);
+	}
+
+	@Test
+	public void jsonIsNotBackedBySession() {
+		Session session = new Session("session-1");
+		session.asJson().putString("userId", "alice.tester@example.com");
+		assertNull(session.getUserId());
+
+		session.setUserId("alice.tester@example.com");
+		assertEquals("alice.tester@example.com", session.asJson().getString("userId"));
+		assertEquals("alice.tester@example.com", new Session(session).getUserId());
+	}
+}
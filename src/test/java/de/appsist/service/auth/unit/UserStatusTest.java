@@ -0,0 +1,102 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.SessionExpiryQueue;
+import de.appsist.service.auth.SessionLookupFilter;
+import de.appsist.service.auth.SessionManager;
+import de.appsist.service.auth.SessionMutationQueue;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.ViewKey;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.View;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+/**
+ * Two nodes sharing a session store, without cache and user index.
+ */
+public class UserStatusTest {
+	private SessionManager node1;
+	private SessionManager node2;
+
+	private static class Result<T> implements AsyncResultHandler<T> {
+		private AsyncResult<T> result;
+
+		@Override
+		public void handle(AsyncResult<T> event) {
+			result = event;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		EventBus eventBus = (EventBus) Proxy.newProxyInstance(EventBus.class.getClassLoader(), new Class<?>[] {EventBus.class}, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getReturnType() == EventBus.class ? proxy : null;
+			}
+		});
+		MemorySessionStore store = new MemorySessionStore();
+		node1 = createNode(store, eventBus);
+		node2 = createNode(store, eventBus);
+		store.put(new JsonObject().putString("id", "session-1").putString("userId", "alice"), null);
+	}
+
+	private static SessionManager createNode(MemorySessionStore store, EventBus eventBus) {
+		return new SessionManager(store, eventBus, new SessionCache(0), new SessionMutationQueue(null), new UserSessionIndex(false), new SessionExpiryQueue<String>(3600000), new SessionExpiryQueue<ViewKey>(3600000), new SessionLookupFilter(false, 0), 60, false);
+	}
+
+	private JsonObject getUserStatus(SessionManager node, String userId) {
+		Result<JsonObject> status = new Result<>();
+		node.getUserStatus(userId, status);
+		assertTrue(status.result.succeeded());
+		return status.result.result();
+	}
+
+	@Test
+	public void reportsViewsRegisteredByOtherNode() {
+		assertFalse(getUserStatus(node2, "alice").getBoolean("isOnline"));
+		node1.registerView("session-1", new View("view-1", "desktop", "device-1"), new Result<Session>());
+		JsonObject status = getUserStatus(node2, "alice");
+		assertTrue(status.getBoolean("isOnline"));
+		assertEquals("session-1", status.getString("sessionId"));
+		assertEquals(1, status.getArray("views").size());
+	}
+
+	@Test
+	public void findsSessionStoredByOtherNode() {
+		Result<Session> session = new Result<>();
+		node2.getSessionForUser("bob", session);
+		assertTrue(session.result.succeeded());
+		assertNull(session.result.result());
+
+		node1.storeSession(new Session(new JsonObject().putString("id", "session-2").putString("userId", "bob")), null, new Result<Void>());
+		node2.getSessionForUser("bob", session);
+		assertEquals("session-2", session.result.result().getId());
+	}
+
+	@Test
+	public void prefersOnlineSession() {
+		node1.storeSession(new Session(new JsonObject().putString("id", "session-2").putString("userId", "alice")), null, new Result<Void>());
+		node1.registerView("session-2", new View("view-1", "desktop", "device-1"), new Result<Session>());
+		Result<Session> session = new Result<>();
+		node2.getSessionForUser("alice", session);
+		assertEquals("session-2", session.result.result().getId());
+	}
+}
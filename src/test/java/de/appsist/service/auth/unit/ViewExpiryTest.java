@@ -0,0 +1,179 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.SessionExpiryQueue;
+import de.appsist.service.auth.SessionLookupFilter;
+import de.appsist.service.auth.SessionManager;
+import de.appsist.service.auth.SessionMutationQueue;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.ViewKey;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+public class ViewExpiryTest {
+	private DeferringStore store;
+	private SessionManager sessionManager;
+	private List<String> publishedAddresses;
+	
+	private static class Result<T> implements AsyncResultHandler<T> {
+		private AsyncResult<T> result;
+		
+		@Override
+		public void handle(AsyncResult<T> event) {
+			result = event;
+		}
+	}
+	
+	/**
+	 * Store which holds back the removal of single views, if deferring is enabled.
+	 */
+	private static class DeferringStore extends MemorySessionStore {
+		private Runnable deferredRemoval;
+		private boolean deferring;
+		private int reads;
+		
+		@Override
+		public void get(String sessionId, AsyncResultHandler<JsonObject> resultHandler) {
+			reads++;
+			super.get(sessionId, resultHandler);
+		}
+		
+		@Override
+		public void removeView(final String sessionId, final String viewId, final AsyncResultHandler<JsonObject> resultHandler) {
+			if (!deferring) {
+				super.removeView(sessionId, viewId, resultHandler);
+				return;
+			}
+			deferredRemoval = new Runnable() {
+				
+				@Override
+				public void run() {
+					DeferringStore.super.removeView(sessionId, viewId, resultHandler);
+				}
+			};
+		}
+	}
+	
+	@Before
+	public void setUp() {
+		publishedAddresses = new ArrayList<>();
+		EventBus eventBus = (EventBus) Proxy.newProxyInstance(EventBus.class.getClassLoader(), new Class<?>[] {EventBus.class}, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("publish")) {
+					publishedAddresses.add((String) args[0]);
+				}
+				return method.getReturnType() == EventBus.class ? proxy : null;
+			}
+		});
+		store = new DeferringStore();
+		// Views expire as soon as they sent a heartbeat.
+		sessionManager = new SessionManager(store, eventBus, new SessionCache(100), new SessionMutationQueue(null), new UserSessionIndex(true), new SessionExpiryQueue<String>(3600000), new SessionExpiryQueue<ViewKey>(0), new SessionLookupFilter(false, 0), 60, false);
+		store.put(createSession("session-1", "alice", "view-1", "view-2"), null);
+		store.put(createSession("session-2", "bob", "view-1", "view-3"), null);
+	}
+	
+	private static JsonObject createSession(String sessionId, String userId, String... viewIds) {
+		JsonArray views = new JsonArray();
+		for (String viewId : viewIds) {
+			views.addObject(new JsonObject().putString("id", viewId).putString("deviceClass", viewId + "-class").putString("deviceId", "device-" + viewId));
+		}
+		return new JsonObject().putString("id", sessionId).putString("userId", userId).putArray("views", views);
+	}
+	
+	private List<String> getViewIds(String sessionId) {
+		Result<JsonObject> session = new Result<>();
+		store.get(sessionId, session);
+		List<String> viewIds = new ArrayList<>();
+		for (Object view : session.result.result().getArray("views")) {
+			viewIds.add(((JsonObject) view).getString("id"));
+		}
+		return viewIds;
+	}
+	
+	private void heartbeat(String sessionId, String viewId) {
+		Result<Void> heartbeat = new Result<>();
+		sessionManager.heartbeat(sessionId, viewId, heartbeat);
+		assertTrue(heartbeat.result.succeeded());
+	}
+	
+	@Test
+	public void readsTheSessionForTheFirstHeartbeatOnly() {
+		heartbeat("session-1", "view-1");
+		assertEquals(1, store.reads);
+		heartbeat("session-1", "view-1");
+		assertEquals(1, store.reads);
+	}
+	
+	@Test
+	public void rejectsHeartbeatsOfUnregisteredViews() {
+		Result<Void> heartbeat = new Result<>();
+		sessionManager.heartbeat("session-1", "view-3", heartbeat);
+		assertFalse(heartbeat.result.succeeded());
+		Result<Integer> expired = new Result<>();
+		sessionManager.expireViews(expired);
+		assertEquals(0, (int) expired.result.result());
+	}
+	
+	@Test
+	public void keepsViewsWithoutHeartbeat() {
+		Result<Integer> expired = new Result<>();
+		sessionManager.expireViews(expired);
+		assertEquals(0, (int) expired.result.result());
+		assertEquals(2, getViewIds("session-1").size());
+		assertEquals(2, getViewIds("session-2").size());
+		assertEquals(0, publishedAddresses.size());
+	}
+	
+	@Test
+	public void removesMissedViewsFromTheirSessionOnly() {
+		heartbeat("session-1", "view-1");
+		heartbeat("session-2", "view-3");
+		Result<Integer> expired = new Result<>();
+		sessionManager.expireViews(expired);
+		assertEquals(2, (int) expired.result.result());
+		assertEquals(1, getViewIds("session-1").size());
+		assertEquals("view-2", getViewIds("session-1").get(0));
+		// Session 2 keeps its own view with the identifier of the expired view of session 1.
+		assertEquals(1, getViewIds("session-2").size());
+		assertEquals("view-1", getViewIds("session-2").get(0));
+		assertEquals(2, publishedAddresses.size());
+	}
+	
+	@Test
+	public void waitsForPendingChangesOfTheSession() {
+		heartbeat("session-1", "view-1");
+		store.deferring = true;
+		Result<Session> removed = new Result<>();
+		sessionManager.removeView("session-1", "view-1", removed);
+		Result<Integer> expired = new Result<>();
+		sessionManager.expireViews(expired);
+		assertNull("Expiry has to wait for the removal of the view.", expired.result);
+		
+		store.deferredRemoval.run();
+		assertTrue(removed.result.succeeded());
+		assertEquals(0, (int) expired.result.result());
+		assertEquals(1, getViewIds("session-1").size());
+		assertEquals(1, publishedAddresses.size());
+	}
+}
@@ -0,0 +1,97 @@
+package de.appsist.service.auth.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import de.appsist.service.auth.SessionCache;
+import de.appsist.service.auth.SessionExpiryQueue;
+import de.appsist.service.auth.SessionLookupFilter;
+import de.appsist.service.auth.SessionManager;
+import de.appsist.service.auth.SessionMutationQueue;
+import de.appsist.service.auth.UserSessionIndex;
+import de.appsist.service.auth.ViewKey;
+import de.appsist.service.auth.model.Session;
+import de.appsist.service.auth.model.View;
+import de.appsist.service.auth.store.MemorySessionStore;
+
+public class ViewRegistrationTest {
+	private CountingStore store;
+	private SessionManager sessionManager;
+	
+	private static class Result<T> implements AsyncResultHandler<T> {
+		private AsyncResult<T> result;
+		
+		@Override
+		public void handle(AsyncResult<T> event) {
+			result = event;
+		}
+	}
+	
+	private static class CountingStore extends MemorySessionStore {
+		private int reads;
+		
+		@Override
+		public void get(String sessionId, AsyncResultHandler<JsonObject> resultHandler) {
+			reads++;
+			super.get(sessionId, resultHandler);
+		}
+	}
+	
+	@Before
+	public void setUp() {
+		EventBus eventBus = (EventBus) Proxy.newProxyInstance(EventBus.class.getClassLoader(), new Class<?>[] {EventBus.class}, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getReturnType() == EventBus.class ? proxy : null;
+			}
+		});
+		store = new CountingStore();
+		// The cache is disabled, so each read of a session accesses the store.
+		sessionManager = new SessionManager(store, eventBus, new SessionCache(0), new SessionMutationQueue(null), new UserSessionIndex(true), new SessionExpiryQueue<String>(3600000), new SessionExpiryQueue<ViewKey>(3600000), new SessionLookupFilter(false, 0), 60, false);
+		store.put(new JsonObject().putString("id", "session-1").putString("userId", "alice"), null);
+	}
+	
+	@Test
+	public void registersViewWithoutReadingSession() {
+		Result<Session> registered = new Result<>();
+		sessionManager.registerView("session-1", new View("view-1", "desktop", "device-1"), registered);
+		assertTrue(registered.result.succeeded());
+		assertEquals("alice", registered.result.result().getUserId());
+		assertEquals(1, registered.result.result().getViews().size());
+		assertEquals(0, store.reads);
+	}
+	
+	@Test
+	public void removesViewWithoutReadingSession() {
+		sessionManager.registerView("session-1", new View("view-1", "desktop", "device-1"), new Result<Session>());
+		Result<Session> removed = new Result<>();
+		sessionManager.removeView("session-1", "view-1", removed);
+		assertTrue(removed.result.succeeded());
+		assertEquals(0, removed.result.result().getViews().size());
+		assertEquals(0, store.reads);
+	}
+	
+	@Test
+	public void rejectsSimilarDevice() {
+		sessionManager.registerView("session-1", new View("view-1", "desktop", "device-1"), new Result<Session>());
+		Result<Session> registered = new Result<>();
+		sessionManager.registerView("session-1", new View("view-2", "desktop", "device-2"), registered);
+		assertEquals("The user is already logged in with a similar device.", registered.result.cause().getMessage());
+		
+		sessionManager.registerView("session-2", new View("view-3", "mobile", "device-3"), registered);
+		assertTrue(registered.result.failed());
+		assertEquals(2, store.reads);
+	}
+}